@@ -0,0 +1,80 @@
+/* Cost of classifying packet headers with a PacketFilter, compared with verifying the
+ * checksum of the same packets.
+ *
+ * Headers are rotated through a set of distinct sources such that lookups are not hoisted
+ * from the loop, with every other packet rejected.
+ *
+ * Usage: filterbench [iterations] [tpdu size]
+ */
+
+import hk.miru.javapgm.GlobalSourceId;
+import hk.miru.javapgm.Packet;
+import hk.miru.javapgm.PacketFilter;
+import hk.miru.javapgm.TransportSessionId;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+public class filterbench {
+	int iterations = 10 * 1000 * 1000;
+	int tpdu_size = 1500;
+	int dataDestinationPort = 7500;
+/* Distinct packets cycled through, a power of two */
+	static final int PACKETS = 64;
+
+	public filterbench (String[] args) throws UnknownHostException
+	{
+		if (args.length > 0) this.iterations = Integer.parseInt (args[0]);
+		if (args.length > 1) this.tpdu_size = Integer.parseInt (args[1]);
+
+		final PacketFilter filter = new PacketFilter()
+			.allowDestinationPort (this.dataDestinationPort)
+			.allowType (Packet.PGM_ODATA)
+			.allowType (Packet.PGM_SPM);
+		final byte[][] packets = new byte[PACKETS][];
+		for (int i = 0; i < PACKETS; i++) {
+			final byte[] buf = new byte[this.tpdu_size];
+			final GlobalSourceId gsi = new GlobalSourceId (new byte[] { 10, 0, 0, 0, 0, (byte)i });
+			System.arraycopy (gsi.getBytes(), 0, buf, Packet.PGM_GSI_OFFSET, GlobalSourceId.SIZE);
+			buf[Packet.PGM_SPORT_OFFSET] = (byte)(i >> 8);
+			buf[Packet.PGM_SPORT_OFFSET + 1] = (byte)i;
+			buf[Packet.PGM_DPORT_OFFSET] = (byte)(this.dataDestinationPort >> 8);
+			buf[Packet.PGM_DPORT_OFFSET + 1] = (byte)this.dataDestinationPort;
+			buf[Packet.PGM_TYPE_OFFSET] = (byte)Packet.PGM_ODATA;
+/* Odd sources are denied by TSI */
+			if (1 == (i & 1))
+				filter.denyTransportSessionId (new TransportSessionId (gsi, i));
+			packets[i] = buf;
+		}
+		final InetAddress source = InetAddress.getByName ("10.0.0.1");
+		final InetAddress group = InetAddress.getByName ("239.192.0.1");
+
+		for (int round = 0; round < 5; round++) {
+			long start = System.nanoTime();
+			int accepted = 0;
+			for (int i = 0; i < this.iterations; i++) {
+				if (filter.accept (packets[i & (PACKETS - 1)], 0, source, group))
+					accepted++;
+			}
+			final long filterNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			int checksum = 0;
+			for (int i = 0; i < this.iterations / 100; i++)
+				checksum += Packet.doChecksum (packets[i & (PACKETS - 1)]);
+			final long checksumNanos = System.nanoTime() - start;
+
+			System.out.println ("filter: " + String.format ("%.1f", (double)filterNanos / this.iterations) + "ns/packet" +
+					    " accepted: " + accepted +
+					    " checksum: " + String.format ("%.1f", (double)checksumNanos / (this.iterations / 100)) + "ns/packet" +
+					    " (" + checksum + ")");
+		}
+	}
+
+	public static void main (String[] args) throws UnknownHostException
+	{
+		new filterbench (args);
+	}
+}
+
+/* eof */
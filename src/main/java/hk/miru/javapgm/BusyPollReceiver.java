@@ -0,0 +1,245 @@
+/* Low latency receive on a dedicated thread polling the socket without a selector.
+ *
+ * The thread calls Socket.poll() in a loop, each call a non-blocking read of the receive
+ * socket that also runs any expired NAK and SPM timers inline, and between empty polls
+ * waits with the configured IdleStrategy.  BusySpin gives the lowest wake-up latency at
+ * the cost of a core, SpinYield and BackOff trade latency for processor time.
+ *
+ * The thread may be pinned to one CPU on Linux with taskset(1).  Latency and processor
+ * cost are measured such that strategies can be compared.  Delivery latency is the time
+ * from the socket reading a datagram to its message reaching the handler, including any
+ * wait for repair or reassembly.  Time queued in the kernel before the read is not visible
+ * to Java, it is bounded by the idle time spent in the strategy before the poll that
+ * found work.  Processor time of the thread over its wall time gives the cost.
+ */
+package hk.miru.javapgm;
+
+import static hk.miru.javapgm.Preconditions.checkArgument;
+import static hk.miru.javapgm.Preconditions.checkNotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+public class BusyPollReceiver
+{
+        private static Logger LOG = LogManager.getLogger (BusyPollReceiver.class.getName());
+
+/* Messages delivered per poll() call */
+        private static final int POLL_LIMIT = 64;
+
+        private final Socket sock;
+        private final IdleStrategy idleStrategy;
+        private final int cpu;
+        private Thread thread = null;
+        private volatile boolean isRunning = false;
+
+/* Statistics, written by the poll thread only */
+        private volatile long pollCount = 0;
+        private volatile long idleCount = 0;
+        private volatile long messageCount = 0;
+        private volatile long wakeCount = 0;
+        private volatile long idleNanos = 0;
+        private volatile long maxIdleNanos = 0;
+        private volatile long deliveryMicros = 0;
+        private volatile long maxDeliveryMicros = 0;
+        private volatile long startNanos = 0;
+        private volatile long stopNanos = 0;
+        private volatile long cpuNanos = 0;
+
+/* Receiver polling a bound and connected socket, pinned to cpu on Linux, -1 for no
+ * pinning.
+ */
+        public BusyPollReceiver (Socket sock, IdleStrategy idleStrategy, int cpu) {
+/* Pre-conditions */
+                checkNotNull (sock);
+                checkNotNull (idleStrategy);
+                checkArgument (cpu >= -1);
+                checkArgument (sock.isBound && sock.canReceiveData);
+
+                this.sock = sock;
+                this.idleStrategy = idleStrategy;
+                this.cpu = cpu;
+        }
+
+/* Start the poll thread passing every delivered APDU to the handler.
+ */
+        public synchronized void start (final MessageHandler handler) {
+                checkNotNull (handler);
+                if (this.isRunning)
+                        return;
+
+                this.isRunning = true;
+                this.thread = new Thread (new Runnable() {
+                        @Override
+                        public void run() {
+                                runPoll (handler);
+                        }
+                }, "pgm-busy-poll");
+                this.thread.start();
+        }
+
+        public synchronized void stop() throws InterruptedException {
+                if (!this.isRunning)
+                        return;
+                this.isRunning = false;
+                this.thread.join();
+        }
+
+        private void runPoll (final MessageHandler handler) {
+                if (this.cpu >= 0)
+                        pin (this.cpu);
+                final ThreadMXBean mxbean = ManagementFactory.getThreadMXBean();
+                final boolean hasCpuTime = mxbean.isCurrentThreadCpuTimeSupported();
+                final long startCpu = hasCpuTime ? mxbean.getCurrentThreadCpuTime() : 0;
+                this.startNanos = System.nanoTime();
+                long lastIdleNanos = 0;
+                final MessageHandler timedHandler = new MessageHandler() {
+                        @Override
+                        public void onMessage (TransportSessionId tsi, byte[] buffer, int offset, int length, int msgFlags) {
+                                final long latency = Socket.microTime() - BusyPollReceiver.this.sock.getMessageTimestamp();
+                                BusyPollReceiver.this.deliveryMicros += latency;
+                                if (latency > BusyPollReceiver.this.maxDeliveryMicros)
+                                        BusyPollReceiver.this.maxDeliveryMicros = latency;
+                                handler.onMessage (tsi, buffer, offset, length, msgFlags);
+                        }
+                };
+                try {
+                        while (this.isRunning) {
+                                final int count = this.sock.poll (timedHandler, POLL_LIMIT);
+                                this.pollCount++;
+                                if (count < 0) {
+                                        LOG.error ("Busy poll receive failed, status {}.", this.sock.getPollStatus());
+                                        break;
+                                }
+                                if (count > 0) {
+                                        this.messageCount += count;
+                                        if (lastIdleNanos > 0) {
+                                                this.wakeCount++;
+                                                this.idleNanos += lastIdleNanos;
+                                                if (lastIdleNanos > this.maxIdleNanos)
+                                                        this.maxIdleNanos = lastIdleNanos;
+                                                lastIdleNanos = 0;
+                                        }
+                                        this.idleStrategy.reset();
+                                        continue;
+                                }
+                                this.idleCount++;
+                                final long idleStart = System.nanoTime();
+                                this.idleStrategy.idle (0);
+                                lastIdleNanos = System.nanoTime() - idleStart;
+                        }
+                } catch (IOException e) {
+                        LOG.error (e.toString());
+                        this.isRunning = false;
+                } finally {
+                        this.stopNanos = System.nanoTime();
+                        if (hasCpuTime)
+                                this.cpuNanos = mxbean.getCurrentThreadCpuTime() - startCpu;
+                }
+        }
+
+/* Pin the calling thread to one CPU with taskset(1) using its kernel thread id, failure
+ * is logged and otherwise ignored.
+ */
+        static boolean pin (int cpu) {
+                try {
+                        final String tid = new File ("/proc/thread-self").getCanonicalFile().getName();
+                        final Process process = new ProcessBuilder ("taskset", "-p", "-c", String.valueOf (cpu), tid)
+                                                        .redirectErrorStream (true)
+                                                        .start();
+                        process.getInputStream().close();
+                        if (0 != process.waitFor()) {
+                                LOG.warn ("Pinning thread {} to CPU {} failed.", tid, cpu);
+                                return false;
+                        }
+                        LOG.debug ("Pinned thread {} to CPU {}.", tid, cpu);
+                        return true;
+                } catch (IOException e) {
+                        LOG.warn ("Thread pinning unavailable: {}", e.toString());
+                } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                }
+                return false;
+        }
+
+        public IdleStrategy getIdleStrategy() {
+                return this.idleStrategy;
+        }
+
+        public long getPollCount() {
+                return this.pollCount;
+        }
+
+/* Polls that found no work and waited with the idle strategy.
+ */
+        public long getIdleCount() {
+                return this.idleCount;
+        }
+
+        public long getMessageCount() {
+                return this.messageCount;
+        }
+
+/* Mean and worst time in microseconds from reading a datagram to passing its message to
+ * the handler.
+ */
+        public long getMeanDeliveryLatency() {
+                final long count = this.messageCount;
+                return count > 0 ? this.deliveryMicros / count : 0;
+        }
+
+        public long getMaxDeliveryLatency() {
+                return this.maxDeliveryMicros;
+        }
+
+/* Mean and worst time in nanoseconds in the idle strategy before a poll that found work,
+ * bounding how long a datagram may have waited in the kernel to be read.
+ */
+        public long getMeanIdleTime() {
+                final long count = this.wakeCount;
+                return count > 0 ? this.idleNanos / count : 0;
+        }
+
+        public long getMaxIdleTime() {
+                return this.maxIdleNanos;
+        }
+
+/* Fraction of one processor consumed by the poll thread, available once stopped where
+ * thread processor time is supported.
+ */
+        public double getCpuUtilisation() {
+                final long wall = this.stopNanos - this.startNanos;
+                return (wall > 0 && this.stopNanos > 0) ? (double)this.cpuNanos / wall : 0;
+        }
+
+/* Processor time in nanoseconds per message delivered, available once stopped.
+ */
+        public long getCpuNanosPerMessage() {
+                final long count = this.messageCount;
+                return count > 0 ? this.cpuNanos / count : 0;
+        }
+
+        @Override
+        public String toString() {
+                return "{ " +
+                        "\"idleStrategy\": \"" + this.idleStrategy.getClass().getSimpleName() + "\"" +
+                      ", \"cpu\": " + this.cpu +
+                      ", \"polls\": " + this.pollCount +
+                      ", \"idle\": " + this.idleCount +
+                      ", \"messages\": " + this.messageCount +
+                      ", \"meanDeliveryLatency\": " + getMeanDeliveryLatency() +
+                      ", \"maxDeliveryLatency\": " + this.maxDeliveryMicros +
+                      ", \"meanIdleTime\": " + getMeanIdleTime() +
+                      ", \"maxIdleTime\": " + this.maxIdleNanos +
+                      ", \"cpuUtilisation\": " + getCpuUtilisation() +
+                      ", \"cpuNanosPerMessage\": " + getCpuNanosPerMessage() +
+                       " }";
+        }
+}
+
+/* eof */
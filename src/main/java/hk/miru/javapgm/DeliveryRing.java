@@ -0,0 +1,243 @@
+/* Preallocated ring of delivered APDUs fanned out to multiple in-process consumers.
+ *
+ * One socket is driven by a single I/O thread calling Socket.poll() with the ring as the
+ * message handler, each APDU is copied into the next slot and published.  Consumers each
+ * hold an independent cursor and read at their own pace from any thread, sharing one
+ * multicast join, receive window and NAK stream.
+ *
+ * The producer never waits on consumers.  A consumer lapped by the producer skips to the
+ * oldest retained message and flags it MSG_OVERRUN with the count of lost messages held in
+ * getOverrunCount(), slots are verified after copying such that a message overwritten
+ * during a read is never passed on.  The producer logs each consumer falling a full ring
+ * behind.
+ */
+package hk.miru.javapgm;
+
+import static hk.miru.javapgm.Preconditions.checkArgument;
+import static hk.miru.javapgm.Preconditions.checkNotNull;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+public class DeliveryRing implements MessageHandler
+{
+        private static Logger LOG = LogManager.getLogger (DeliveryRing.class.getName());
+
+        private final int capacity;
+        private final int mask;
+        private final byte[][] data;
+        private final int[] lengths;
+        private final int[] flags;
+        private final TransportSessionId[] tsis;
+/* Sequence held by each slot, -1 whilst being written.
+ *
+ * Slot contents are plain fields ordered only through this array, Java 7 offers no fences.
+ * The producer publishes with lazySet after the contents, such that a consumer reading the
+ * sequence sees them.  A consumer then validates its copy with a compare-and-set of the
+ * unchanged sequence, a volatile write that the copied reads cannot move after, and the
+ * producer claims a slot with getAndSet, a volatile read: if the claim follows the
+ * validation in synchronization order the copy happens-before the new contents are
+ * written and cannot see them, otherwise the validation finds -1 or a later sequence and
+ * fails.
+ */
+        private final AtomicLongArray sequences;
+/* Next sequence to be published */
+        private final AtomicLong published = new AtomicLong (0);
+        private final List<Consumer> consumers = new CopyOnWriteArrayList<>();
+/* Producer view of the slowest consumer */
+        private long minimumCache = 0;
+
+/* Ring of capacity slots, rounded up to a power of two, each preallocated for messages
+ * of maxMessageSize bytes.  Larger messages grow their slot.
+ */
+        public DeliveryRing (int capacity, int maxMessageSize) {
+/* Pre-conditions */
+                checkArgument (capacity > 0 && capacity <= (1 << 30));
+                checkArgument (maxMessageSize > 0);
+
+                int size = 1;
+                while (size < capacity)
+                        size <<= 1;
+                this.capacity = size;
+                this.mask = size - 1;
+                this.data = new byte[size][maxMessageSize];
+                this.lengths = new int[size];
+                this.flags = new int[size];
+                this.tsis = new TransportSessionId[size];
+                this.sequences = new AtomicLongArray (size);
+                for (int i = 0; i < size; i++)
+                        this.sequences.set (i, -1);
+        }
+
+/* Register a consumer starting with the next published message.
+ */
+        public Consumer addConsumer (String name, IdleStrategy idleStrategy) {
+                checkNotNull (name);
+                checkNotNull (idleStrategy);
+                final Consumer consumer = new Consumer (name, idleStrategy, this.published.get());
+                this.consumers.add (consumer);
+                return consumer;
+        }
+
+        public void removeConsumer (Consumer consumer) {
+                checkNotNull (consumer);
+                this.consumers.remove (consumer);
+        }
+
+/* Producer, the I/O thread only.
+ */
+        @Override
+        public void onMessage (TransportSessionId tsi, byte[] buffer, int offset, int length, int msgFlags) {
+                final long sequence = this.published.get();
+                final int index = (int)sequence & this.mask;
+                this.sequences.getAndSet (index, -1);
+                if (length > this.data[index].length) {
+                        LOG.debug ("Growing delivery ring slot to {} bytes.", length);
+                        this.data[index] = new byte[length];
+                }
+                System.arraycopy (buffer, offset, this.data[index], 0, length);
+                this.lengths[index] = length;
+                this.flags[index] = msgFlags;
+                this.tsis[index] = tsi;
+                this.sequences.lazySet (index, sequence);
+                this.published.lazySet (sequence + 1);
+                if (sequence - this.minimumCache >= this.capacity)
+                        checkConsumers (sequence);
+        }
+
+/* Report consumers the producer has lapped, once each until they catch up.
+ */
+        private void checkConsumers (long sequence) {
+                long minimum = sequence;
+                for (Consumer consumer : this.consumers) {
+                        final long position = consumer.position.get();
+                        if (sequence - position >= this.capacity) {
+                                if (!consumer.isReported) {
+                                        LOG.warn ("Delivery ring consumer \"{}\" overrun, {} messages behind.", consumer.name, sequence - position);
+                                        consumer.isReported = true;
+                                }
+                        } else {
+                                consumer.isReported = false;
+                        }
+                        minimum = Math.min (minimum, position);
+                }
+                this.minimumCache = minimum;
+        }
+
+        public long getPublishedCount() {
+                return this.published.get();
+        }
+
+        public int getCapacity() {
+                return this.capacity;
+        }
+
+        public class Consumer
+        {
+                private final String name;
+                private final IdleStrategy idleStrategy;
+/* Next sequence to read, published for the producer */
+                private final AtomicLong position;
+                private long cursor;
+                private long overrunCount = 0;
+                private int pendingFlags = 0;
+                private byte[] buffer;
+/* Producer thread only */
+                private boolean isReported = false;
+
+                private Consumer (String name, IdleStrategy idleStrategy, long cursor) {
+                        this.name = name;
+                        this.idleStrategy = idleStrategy;
+                        this.cursor = cursor;
+                        this.position = new AtomicLong (cursor);
+                        this.buffer = new byte[DeliveryRing.this.data[0].length];
+                }
+
+/* Pass up to limit published messages to the handler, each message copied into a buffer
+ * owned by this consumer and valid for the duration of the call.
+ *
+ * Returns count of messages handled, zero if none were available.
+ */
+                public int poll (MessageHandler handler, int limit) {
+                        checkNotNull (handler);
+                        checkArgument (limit > 0);
+
+                        int count = 0;
+                        final long available = DeliveryRing.this.published.get();
+                        while (count < limit && this.cursor < available) {
+                                if (available - this.cursor > DeliveryRing.this.capacity) {
+                                        skipTo (available - DeliveryRing.this.capacity);
+                                        continue;
+                                }
+                                final int index = (int)this.cursor & DeliveryRing.this.mask;
+                                if (DeliveryRing.this.sequences.get (index) != this.cursor) {
+                                        skipTo (Math.max (this.cursor + 1, DeliveryRing.this.published.get() - DeliveryRing.this.capacity));
+                                        continue;
+                                }
+                                final byte[] slot = DeliveryRing.this.data[index];
+                                final TransportSessionId tsi = DeliveryRing.this.tsis[index];
+                                final int msgFlags = DeliveryRing.this.flags[index];
+                                final int length = Math.min (DeliveryRing.this.lengths[index], slot.length);
+                                if (length > this.buffer.length)
+                                        this.buffer = new byte[slot.length];
+                                System.arraycopy (slot, 0, this.buffer, 0, length);
+/* Verify the slot was not claimed by the producer whilst copying */
+                                if (!DeliveryRing.this.sequences.compareAndSet (index, this.cursor, this.cursor)) {
+                                        skipTo (Math.max (this.cursor + 1, DeliveryRing.this.published.get() - DeliveryRing.this.capacity));
+                                        continue;
+                                }
+                                this.position.lazySet (++this.cursor);
+                                handler.onMessage (tsi, this.buffer, 0, length, msgFlags | this.pendingFlags);
+                                this.pendingFlags = 0;
+                                count++;
+                        }
+                        return count;
+                }
+
+/* As poll() but wait with the idle strategy until at least one message is handled.
+ *
+ * Returns count of messages handled, zero if the thread was interrupted.
+ */
+                public int take (MessageHandler handler, int limit) {
+                        int count;
+                        while (0 == (count = poll (handler, limit))) {
+                                if (Thread.currentThread().isInterrupted())
+                                        return 0;
+                                this.idleStrategy.idle (0);
+                        }
+                        this.idleStrategy.reset();
+                        return count;
+                }
+
+                private void skipTo (long sequence) {
+                        LOG.trace ("Delivery ring consumer \"{}\" lapped, skipping {} messages.", this.name, sequence - this.cursor);
+                        this.overrunCount += sequence - this.cursor;
+                        this.pendingFlags |= MessageHandler.MSG_OVERRUN;
+                        this.cursor = sequence;
+                        this.position.lazySet (sequence);
+                }
+
+                public String getName() {
+                        return this.name;
+                }
+
+/* Messages published but not yet read.
+ */
+                public long getLag() {
+                        return DeliveryRing.this.published.get() - this.position.get();
+                }
+
+/* Messages lost to the producer lapping this consumer.
+ */
+                public long getOverrunCount() {
+                        return this.overrunCount;
+                }
+        }
+}
+
+/* eof */
@@ -70,7 +70,10 @@ public class Header {
 	}
 
 	public final boolean isDownstream() {
-		final int type = getType();
+		return isDownstream (getType());
+	}
+
+	public static boolean isDownstream (int type) {
 		return (type == Packet.PGM_SPM ||		/* all multicast */
 			type == Packet.PGM_ODATA ||
 			type == Packet.PGM_RDATA ||
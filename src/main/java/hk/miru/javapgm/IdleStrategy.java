@@ -0,0 +1,122 @@
+/* Wait strategy of a thread polling for work, such as a DeliveryRing consumer.
+ */
+package hk.miru.javapgm;
+
+import static hk.miru.javapgm.Preconditions.checkArgument;
+
+import java.util.concurrent.locks.LockSupport;
+
+public interface IdleStrategy {
+
+/* Called after each poll with the count of work items found, zero to wait.
+ */
+	void idle (int workCount);
+
+/* Work was found, restart any back-off.
+ */
+	void reset();
+
+/* Lowest latency, one core is consumed whilst waiting.
+ */
+	public static class BusySpin implements IdleStrategy {
+		@Override
+		public void idle (int workCount) {
+		}
+
+		@Override
+		public void reset() {
+		}
+	}
+
+/* Yield the processor to other threads whilst waiting.
+ */
+	public static class Yielding implements IdleStrategy {
+		@Override
+		public void idle (int workCount) {
+			if (workCount > 0)
+				return;
+			Thread.yield();
+		}
+
+		@Override
+		public void reset() {
+		}
+	}
+
+/* Spin maxSpins times, then yield the processor whilst waiting.
+ */
+	public static class SpinYield implements IdleStrategy {
+		private final int maxSpins;
+		private int spins = 0;
+
+		public SpinYield (int maxSpins) {
+			checkArgument (maxSpins >= 0);
+			this.maxSpins = maxSpins;
+		}
+
+		@Override
+		public void idle (int workCount) {
+			if (workCount > 0) {
+				reset();
+				return;
+			}
+			if (this.spins < this.maxSpins)
+				this.spins++;
+			else
+				Thread.yield();
+		}
+
+		@Override
+		public void reset() {
+			this.spins = 0;
+		}
+	}
+
+/* Spin, then yield, then park with an exponential back-off up to maxParkNanos.
+ */
+	public static class BackOff implements IdleStrategy {
+		private final int maxSpins;
+		private final int maxYields;
+		private final long minParkNanos;
+		private final long maxParkNanos;
+		private int spins = 0;
+		private int yields = 0;
+		private long parkNanos;
+
+		public BackOff (int maxSpins, int maxYields, long minParkNanos, long maxParkNanos) {
+			checkArgument (maxSpins >= 0);
+			checkArgument (maxYields >= 0);
+			checkArgument (minParkNanos > 0 && minParkNanos <= maxParkNanos);
+			this.maxSpins = maxSpins;
+			this.maxYields = maxYields;
+			this.minParkNanos = minParkNanos;
+			this.maxParkNanos = maxParkNanos;
+			this.parkNanos = minParkNanos;
+		}
+
+		@Override
+		public void idle (int workCount) {
+			if (workCount > 0) {
+				reset();
+				return;
+			}
+			if (this.spins < this.maxSpins) {
+				this.spins++;
+			} else if (this.yields < this.maxYields) {
+				this.yields++;
+				Thread.yield();
+			} else {
+				LockSupport.parkNanos (this.parkNanos);
+				this.parkNanos = Math.min (this.parkNanos << 1, this.maxParkNanos);
+			}
+		}
+
+		@Override
+		public void reset() {
+			this.spins = this.yields = 0;
+			this.parkNanos = this.minParkNanos;
+		}
+	}
+}
+
+/* eof */
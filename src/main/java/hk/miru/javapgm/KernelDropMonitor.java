@@ -0,0 +1,110 @@
+/* Kernel receive buffer overrun counter for a UDP port, read from the drops column of
+ * /proc/net/udp and /proc/net/udp6 on Linux.
+ *
+ * Every socket bound to the port is summed, including the receive lines of a redundant
+ * feed and any other process sharing the port with SO_REUSEADDR.  Sockets bound to the
+ * wildcard address can be excluded where they only receive copies of multicast traffic
+ * also read from group bound sockets.
+ */
+package hk.miru.javapgm;
+
+import static hk.miru.javapgm.Preconditions.checkArgument;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+public class KernelDropMonitor
+{
+        private static Logger LOG = LogManager.getLogger (KernelDropMonitor.class.getName());
+
+        private static final String[] PROC_FILES = { "/proc/net/udp", "/proc/net/udp6" };
+
+        private final int port;
+        private boolean isAvailable;
+        private boolean isWildcardExcluded = false;
+
+        public KernelDropMonitor (int port) {
+                checkArgument (port > 0 && port <= 65535);
+                this.port = port;
+                this.isAvailable = new File (PROC_FILES[0]).canRead();
+                if (!this.isAvailable)
+                        LOG.debug ("Kernel drop counters unavailable, {} not readable.", PROC_FILES[0]);
+        }
+
+/* Counters can be read on this host.
+ */
+        public boolean isAvailable() {
+                return this.isAvailable;
+        }
+
+/* Skip sockets bound to the wildcard address, changing the cumulative count.
+ */
+        public void setWildcardExcluded (boolean isWildcardExcluded) {
+                this.isWildcardExcluded = isWildcardExcluded;
+        }
+
+        public boolean isWildcardExcluded() {
+                return this.isWildcardExcluded;
+        }
+
+/* Cumulative datagrams dropped by the kernel for sockets bound to the port, or -1 if the
+ * counters are unavailable.
+ */
+        public long sample() {
+                if (!this.isAvailable)
+                        return -1;
+                long drops = 0;
+                for (String name : PROC_FILES) {
+                        final File file = new File (name);
+                        if (!file.canRead())
+                                continue;
+                        try (BufferedReader reader = new BufferedReader (new FileReader (file))) {
+                                drops += parse (reader, this.port, this.isWildcardExcluded);
+                        } catch (IOException | NumberFormatException e) {
+                                LOG.warn ("Reading kernel drop counters from {}: {}", name, e.toString());
+                                this.isAvailable = false;
+                                return -1;
+                        }
+                }
+                return drops;
+        }
+
+/* Sum the drops column, the last, of entries with local port port, skipping the wildcard
+ * address if excludeWildcard.  Entries are of the form:
+ *
+ *   sl  local_address rem_address   st tx_queue rx_queue tr tm->when retrnsmt   uid  timeout inode ref pointer drops
+ *   0: 00000000:1F90 00000000:0000 07 00000000:00000000 00:00000000 00000000     0        0 12345 2 0000000000000000 17
+ */
+        static long parse (BufferedReader reader, int port, boolean excludeWildcard) throws IOException {
+                long drops = 0;
+                String line = reader.readLine();        /* header */
+                while (null != (line = reader.readLine())) {
+                        final String[] fields = line.trim().split ("\\s+");
+                        if (fields.length < 13)
+                                continue;
+                        final String local = fields[1];
+                        final int colon = local.lastIndexOf (':');
+                        if (colon < 0 || Integer.parseInt (local.substring (colon + 1), 16) != port)
+                                continue;
+                        if (excludeWildcard && isWildcard (local.substring (0, colon)))
+                                continue;
+                        drops += Long.parseLong (fields[fields.length - 1]);
+                }
+                return drops;
+        }
+
+        private static boolean isWildcard (String address) {
+                for (int i = 0; i < address.length(); i++) {
+                        if ('0' != address.charAt (i))
+                                return false;
+                }
+                return true;
+        }
+}
+
+/* eof */
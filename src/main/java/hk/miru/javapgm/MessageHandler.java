@@ -0,0 +1,23 @@
+/* Callback for complete APDUs delivered by Socket.poll() or a DeliveryRing consumer.
+ */
+package hk.miru.javapgm;
+
+public interface MessageHandler {
+
+/* Message was copied from fragments into the socket reassembly buffer */
+	public static final int MSG_REASSEMBLED	= 0x1;
+/* Unrecoverable data loss was detected before this message */
+	public static final int MSG_RESET	= 0x2;
+/* Sequences were skipped on the delivery deadline before this message */
+	public static final int MSG_GAP		= 0x4;
+/* Streamed fragment of an APDU, further fragments follow */
+	public static final int MSG_PARTIAL	= 0x8;
+/* DeliveryRing consumer fell behind and messages were overwritten before this message */
+	public static final int MSG_OVERRUN	= 0x10;
+
+/* Buffer contents are only valid for the duration of the call.
+ */
+	void onMessage (TransportSessionId tsi, byte[] buffer, int offset, int length, int flags);
+}
+
+/* eof */
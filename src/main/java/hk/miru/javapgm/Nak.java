@@ -55,9 +55,10 @@ public class Nak {
 		this._offset = offset;
 	}
 
-	public static SocketBuffer create (InetAddress nak_src_nla, InetAddress nak_grp_nla, int count) {
+/* Length of a NAK carrying count sequence numbers, before IP encapsulation.
+ */
+	public static int getTpduLength (InetAddress nak_src_nla, int count) {
                 checkNotNull (nak_src_nla);
-                checkNotNull (nak_grp_nla);
                 checkArgument (count > 0 && count <= 63);
 		int tpdu_length = Packet.SIZEOF_PGM_HEADER + SIZEOF_PGM_NAK;
 		if (Inet6Address.class.isInstance (nak_src_nla))
@@ -67,7 +68,14 @@ public class Nak {
 				       SIZEOF_PGM_OPT_HEADER +
 				       SIZEOF_PGM_OPT_RESERVED +
 				       ( (count-1) * SIZEOF_PGM_SQN );
-		SocketBuffer skb = new SocketBuffer (tpdu_length);
+		return tpdu_length;
+	}
+
+	public static SocketBuffer create (InetAddress nak_src_nla, InetAddress nak_grp_nla, int count) {
+                checkNotNull (nak_src_nla);
+                checkNotNull (nak_grp_nla);
+                checkArgument (count > 0 && count <= 63);
+		SocketBuffer skb = new SocketBuffer (getTpduLength (nak_src_nla, count));
 		skb.setHeaderOffset (0);
 		skb.getHeader().setType (Packet.PGM_NAK);
 		skb.reserve (Packet.SIZEOF_PGM_HEADER);
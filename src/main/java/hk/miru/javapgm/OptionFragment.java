@@ -9,28 +9,61 @@ public class OptionFragment {
 	protected SocketBuffer	_skb = null;
 	protected int		_offset = 0;
 
+	private static final int OPT_TYPE_OFFSET	= 0;
+	private static final int OPT_LENGTH_OFFSET	= 1;
 	private static final int OPT_SQN_OFFSET		= 4;
 	private static final int OPT_FRAG_OFF_OFFSET	= 8;
 	private static final int OPT_FRAG_LEN_OFFSET	= 12;
 
+	private static final int SIZEOF_PGM_OPT_FRAGMENT = Packet.SIZEOF_PGM_OPT_HEADER + Packet.SIZEOF_PGM_OPT_FRAGMENT;
+
 	public OptionFragment (SocketBuffer skb, int offset) {
                 checkNotNull (skb);
 		this._skb = skb;
 		this._offset = offset;
 	}
 
+	public static OptionFragment create (SocketBuffer skb, int offset) {
+		OptionFragment optFragment = new OptionFragment (skb, offset);
+		skb.setUnsignedByte (offset + OPT_TYPE_OFFSET, OptionHeader.OPT_FRAGMENT);
+		skb.setUnsignedByte (offset + OPT_LENGTH_OFFSET, optFragment.getLength());
+		skb.reserve (optFragment.getLength());
+		return optFragment;
+	}
+
+	public int getOffset() {
+		return this._offset;
+	}
+
+	public int getLength() {
+		return SIZEOF_PGM_OPT_FRAGMENT;
+	}
+
 	public final SequenceNumber getFirstSequenceNumber() {
 		return SequenceNumber.fromIntBits (this._skb.getSignedInt (this._offset + OPT_SQN_OFFSET));
 	}
 
+	public void setFirstSequenceNumber (SequenceNumber first_sqn) {
+                checkNotNull (first_sqn);
+		this._skb.setUnsignedInt (this._offset + OPT_SQN_OFFSET, first_sqn.longValue());
+	}
+
 	public final long getFragmentOffset() {
 		return this._skb.getUnsignedInt (this._offset + OPT_FRAG_OFF_OFFSET);
 	}
 
+	public void setFragmentOffset (long frag_off) {
+		this._skb.setUnsignedInt (this._offset + OPT_FRAG_OFF_OFFSET, frag_off);
+	}
+
 /* Rename FRAG_LEN to APDU length as this isn't the fragment length */
 	public final long getApduLength() {
 		return this._skb.getUnsignedInt (this._offset + OPT_FRAG_LEN_OFFSET);
 	}
+
+	public void setApduLength (long apdu_length) {
+		this._skb.setUnsignedInt (this._offset + OPT_FRAG_LEN_OFFSET, apdu_length);
+	}
 }
 
 /* eof */
\ No newline at end of file
@@ -51,6 +51,22 @@ public class OptionHeader {
 		return (OPT_NAK_LIST == getType());
 	}
 
+	public final boolean isJoinOption() {
+		return (OPT_JOIN == getType());
+	}
+
+	public final boolean isSynOption() {
+		return (OPT_SYN == getType());
+	}
+
+	public final boolean isFinOption() {
+		return (OPT_FIN == getType());
+	}
+
+	public final boolean isRstOption() {
+		return (OPT_RST == getType());
+	}
+
 	public final boolean isLastOption() {
 		return ((getRawType() & OPT_END) == OPT_END);
 	}
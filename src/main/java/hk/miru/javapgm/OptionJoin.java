@@ -0,0 +1,58 @@
+/* PGM Option Late Join Extension.
+ *
+ * Advertised by a source in ODATA and SPM packets, opt_join_min is the earliest
+ * sequence number a late joining receiver may request repairs for.
+ */
+package hk.miru.javapgm;
+
+import static hk.miru.javapgm.Preconditions.checkNotNull;
+
+public class OptionJoin {
+
+	protected SocketBuffer	_skb = null;
+	protected int		_offset = 0;
+
+	private static final int OPT_TYPE_OFFSET	= 0;
+	private static final int OPT_LENGTH_OFFSET	= 1;
+	private static final int OPT_JOIN_MIN_OFFSET	= 4;
+
+	private static final int SIZEOF_PGM_OPT_JOIN = Packet.SIZEOF_PGM_OPT_HEADER + Packet.SIZEOF_PGM_OPT_JOIN;
+
+	public OptionJoin (SocketBuffer skb, int offset) {
+                checkNotNull (skb);
+		this._skb = skb;
+		this._offset = offset;
+	}
+
+	public static OptionJoin create (SocketBuffer skb, int offset) {
+		OptionJoin optJoin = new OptionJoin (skb, offset);
+		skb.setUnsignedByte (offset + OPT_TYPE_OFFSET, OptionHeader.OPT_JOIN);
+		skb.setUnsignedByte (offset + OPT_LENGTH_OFFSET, optJoin.getLength());
+		skb.reserve (optJoin.getLength());
+		return optJoin;
+	}
+
+	public int getOffset() {
+		return this._offset;
+	}
+
+	public int getLength() {
+		return SIZEOF_PGM_OPT_JOIN;
+	}
+
+	public final SequenceNumber getJoinMinimum() {
+		return SequenceNumber.fromIntBits (this._skb.getSignedInt (this._offset + OPT_JOIN_MIN_OFFSET));
+	}
+
+	public void setJoinMinimum (SequenceNumber join_min) {
+                checkNotNull (join_min);
+		this._skb.setUnsignedInt (this._offset + OPT_JOIN_MIN_OFFSET, join_min.longValue());
+	}
+
+        @Override
+	public String toString() {
+		return "{ \"joinMin\": " + getJoinMinimum() + " }";
+	}
+}
+
+/* eof */
@@ -12,6 +12,8 @@ public class OriginalData {
 	protected int		_offset = 0;
 
 	public static final int SIZEOF_DATA_HEADER	= 8;
+/* OPT_FIN appended to the last ODATA of a session */
+	public static final int SIZEOF_FIN_OPTION	= Packet.SIZEOF_PGM_OPT_HEADER + Packet.SIZEOF_PGM_OPT_FIN;
 
 	private static final int DATA_SQN_OFFSET	= 0;
 	private static final int DATA_TRAIL_OFFSET	= 4;
@@ -25,6 +27,95 @@ public class OriginalData {
 		this._offset = offset;
 	}
         
+/* Create an ODATA packet of one fragment of an APDU, with OPT_LENGTH and OPT_FRAGMENT
+ * option extensions, and OPT_JOIN if canJoin.  The options are returned through the skb.
+ */
+        public static SocketBuffer createFragment (ProtocolFamily family, int tsdu_length, boolean canJoin) {
+                return createFragment (family, tsdu_length, canJoin, false);
+        }
+
+/* As createFragment() with OPT_FIN appended if isFin, marking the last fragment of the
+ * session.
+ */
+        public static SocketBuffer createFragment (ProtocolFamily family, int tsdu_length, boolean canJoin, boolean isFin) {
+                int tpdu_length = Packet.calculateOffset (true, canJoin, null) + (isFin ? SIZEOF_FIN_OPTION : 0) + tsdu_length;
+                SocketBuffer skb = new SocketBuffer (tpdu_length);
+		skb.setHeaderOffset (0);
+		skb.getHeader().setType (Packet.PGM_ODATA);
+		skb.getHeader().setOptions (Packet.PGM_OPT_PRESENT);
+                skb.getHeader().setTsduLength (tsdu_length);
+		skb.reserve (Packet.SIZEOF_PGM_HEADER + Packet.SIZEOF_PGM_DATA);
+                skb.setOriginalDataOffset (Packet.SIZEOF_PGM_HEADER);
+		OptionLength optLength = OptionLength.create (skb, skb.getDataOffset());
+		OptionFragment optFragment = OptionFragment.create (skb, optLength.getOffset() + optLength.getLength());
+		int total_length = optLength.getLength() + optFragment.getLength();
+		int last_offset = optFragment.getOffset();
+		if (canJoin) {
+			OptionJoin optJoin = OptionJoin.create (skb, optFragment.getOffset() + optFragment.getLength());
+			total_length += optJoin.getLength();
+			last_offset = optJoin.getOffset();
+			skb.setJoinOptionOffset (optJoin.getOffset());
+		}
+		if (isFin) {
+			last_offset = appendFinOption (skb, optLength.getOffset() + total_length);
+			total_length += SIZEOF_FIN_OPTION;
+		}
+		new OptionHeader (skb, last_offset).setLastOption();
+		optLength.setTotalLength (total_length);
+		skb.setFragmentOptionOffset (optFragment.getOffset());
+                skb.put (tsdu_length);
+                return skb;
+        }
+
+        public static SocketBuffer create (ProtocolFamily family, int tsdu_length, boolean canJoin) {
+                return create (family, tsdu_length, canJoin, false);
+        }
+
+/* ODATA with OPT_JOIN if canJoin, and OPT_FIN if isFin marking the last packet of the
+ * session.
+ */
+        public static SocketBuffer create (ProtocolFamily family, int tsdu_length, boolean canJoin, boolean isFin) {
+                if (!canJoin && !isFin)
+                        return create (family, tsdu_length);
+                int tpdu_length = Packet.calculateOffset (false, true, null) + tsdu_length;
+                if (!canJoin)
+                        tpdu_length -= Packet.SIZEOF_PGM_OPT_HEADER + Packet.SIZEOF_PGM_OPT_JOIN;
+                if (isFin)
+                        tpdu_length += SIZEOF_FIN_OPTION;
+                SocketBuffer skb = new SocketBuffer (tpdu_length);
+		skb.setHeaderOffset (0);
+		skb.getHeader().setType (Packet.PGM_ODATA);
+		skb.getHeader().setOptions (Packet.PGM_OPT_PRESENT);
+                skb.getHeader().setTsduLength (tsdu_length);
+		skb.reserve (Packet.SIZEOF_PGM_HEADER + Packet.SIZEOF_PGM_DATA);
+                skb.setOriginalDataOffset (Packet.SIZEOF_PGM_HEADER);
+		OptionLength optLength = OptionLength.create (skb, skb.getDataOffset());
+		int total_length = optLength.getLength();
+		int last_offset = optLength.getOffset();
+		if (canJoin) {
+			OptionJoin optJoin = OptionJoin.create (skb, optLength.getOffset() + total_length);
+			total_length += optJoin.getLength();
+			last_offset = optJoin.getOffset();
+			skb.setJoinOptionOffset (optJoin.getOffset());
+		}
+		if (isFin) {
+			last_offset = appendFinOption (skb, optLength.getOffset() + total_length);
+			total_length += SIZEOF_FIN_OPTION;
+		}
+		new OptionHeader (skb, last_offset).setLastOption();
+		optLength.setTotalLength (total_length);
+                skb.put (tsdu_length);
+                return skb;
+        }
+
+        private static int appendFinOption (SocketBuffer skb, int offset) {
+		skb.setUnsignedByte (offset, OptionHeader.OPT_FIN);
+		skb.setUnsignedByte (offset + 1, SIZEOF_FIN_OPTION);
+		skb.reserve (SIZEOF_FIN_OPTION);
+		skb.setFinOption();
+		return offset;
+        }
+
         public static SocketBuffer create (ProtocolFamily family, int tsdu_length) {
                 int tpdu_length = Packet.calculateOffset (false, null) + tsdu_length;
                 SocketBuffer skb = new SocketBuffer (tpdu_length);
@@ -65,7 +156,7 @@ public class OriginalData {
 
 	public final byte[] getData () {
 		byte[] buf = new byte[this._skb.getHeader().getTsduLength()];
-		System.arraycopy (this._skb.getRawBytes(), this._offset + DATA_OPTIONS_OFFSET,
+		System.arraycopy (this._skb.getRawBytes(), this._offset + DATA_OPTIONS_OFFSET + getOptionTotalLength(),
 				  buf, 0,
 				  buf.length);
 		return buf;
@@ -78,7 +169,7 @@ public class OriginalData {
         
         public void setData (byte[] tsdu, int offset, int length) {
 		System.arraycopy (tsdu, offset,
-                                  this._skb.getRawBytes(), this._offset + DATA_OPTIONS_OFFSET,
+                                  this._skb.getRawBytes(), this._offset + DATA_OPTIONS_OFFSET + getOptionTotalLength(),
 				  length);                
         }
         
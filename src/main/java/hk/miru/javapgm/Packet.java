@@ -42,7 +42,10 @@ public class Packet {
         public static final int SIZEOF_PGM_OPT_HEADER	= 3;
         public static final int SIZEOF_PGM_OPT_LENGTH	= 4;
         public static final int SIZEOF_PGM_OPT_FRAGMENT	= 13;
+        public static final int SIZEOF_PGM_OPT_JOIN     = 5;
         public static final int SIZEOF_PGM_OPT_FIN      = 1;
+        public static final int SIZEOF_PGM_OPT_SYN      = 1;
+        public static final int SIZEOF_PGM_OPT_RST      = 1;
         public static final int SIZEOF_PGM_OPT_PGMCC_DATA	= 13;
         public static final int SIZEOF_PGM_OPT6_PGMCC_DATA	= 25;
 
@@ -100,12 +103,22 @@ public class Packet {
 	public static final int PGM_TYPE_DATA_OFFSET	= SIZEOF_PGM_HEADER;
 
         public static int calculateOffset (boolean canFragment, @Nullable ProtocolFamily pgmcc_family) {
+                return calculateOffset (canFragment, false, pgmcc_family);
+        }
+
+/* Offset of the payload with OPT_JOIN advertised to late joining receivers.
+ */
+        public static int calculateOffset (boolean canFragment, boolean canJoin, @Nullable ProtocolFamily pgmcc_family) {
                 int data_size = SIZEOF_PGM_HEADER + SIZEOF_PGM_DATA;
                 int pkt_size = data_size;
                 if (canFragment || (null != pgmcc_family))
                         pkt_size += SIZEOF_PGM_OPT_LENGTH + SIZEOF_PGM_OPT_HEADER;
+                else if (canJoin)
+                        pkt_size += SIZEOF_PGM_OPT_LENGTH;
                 if (canFragment)
                         pkt_size += SIZEOF_PGM_OPT_FRAGMENT;
+                if (canJoin)
+                        pkt_size += SIZEOF_PGM_OPT_HEADER + SIZEOF_PGM_OPT_JOIN;
                 if (StandardProtocolFamily.INET == pgmcc_family)
                         pkt_size += SIZEOF_PGM_OPT_PGMCC_DATA;
                 else if (StandardProtocolFamily.INET6 == pgmcc_family)
@@ -115,8 +128,8 @@ public class Packet {
         
 	public static boolean parseUdpEncapsulated (SocketBuffer skb) {
                 checkNotNull (skb);
-		if (skb.getRawBytes().length < SIZEOF_PGM_HEADER) {
-                        LOG.error ("UDP payload too small for PGM packet at {} bytes, expecting at least {} bytes.", skb.getRawBytes().length, SIZEOF_PGM_HEADER);
+		if (skb.getLength() < SIZEOF_PGM_HEADER) {
+                        LOG.error ("UDP payload too small for PGM packet at {} bytes, expecting at least {} bytes.", skb.getLength(), SIZEOF_PGM_HEADER);
 			return false;
 		}
 
@@ -129,7 +142,7 @@ public class Packet {
 		if (skb.getHeader().hasChecksum()) {
 			final int source_checksum = skb.getHeader().getChecksum();
 			skb.getHeader().clearChecksum();
-			final int calculated_checksum = doChecksum (skb.getRawBytes());
+			final int calculated_checksum = doChecksum (skb.getRawBytes(), skb.getDataOffset(), skb.getLength());
 			if (source_checksum != calculated_checksum) {
                                 LOG.error ("PGM packet checksum mismatch, reported {} whilst calculated {}.", String.format ("%#x", source_checksum), String.format ("%#x", calculated_checksum));
 				return false;
@@ -150,20 +163,69 @@ public class Packet {
 		return true;
 	}
 
+/* Walk the option extensions from the OPT_LENGTH at offset.  Every option is bounded by
+ * the packet, as buffers are reused and bytes beyond it are left from earlier datagrams.
+ */
 	public static boolean parseOptionExtensions (SocketBuffer skb, int offset) {
+		final int packet_end = skb.getDataOffset() + skb.getLength();
+		if (offset + SIZEOF_PGM_OPT_LENGTH > packet_end) {
+			LOG.error ("PGM option extension beyond packet end.");
+			return false;
+		}
 		OptionHeader optHeader = new OptionHeader (skb, offset);
+		final int end = offset + skb.getUnsignedShort (offset + OptionHeader.OPT_TOTAL_LENGTH_OFFSET);
+		if (end > packet_end) {
+			LOG.error ("PGM option extension total length exceeds packet.");
+			return false;
+		}
 		do {
-			optHeader = new OptionHeader (skb, optHeader.getOffset() + optHeader.getLength());
+/* Protocol sanity check: zero length option never terminates */
+			if (0 == optHeader.getLength()) {
+				LOG.error ("PGM option extension with zero length.");
+				return false;
+			}
+			final int next = optHeader.getOffset() + optHeader.getLength();
+			if (next + SIZEOF_PGM_OPT_HEADER > end) {
+				LOG.error ("PGM option extension beyond option total length.");
+				return false;
+			}
+			optHeader = new OptionHeader (skb, next);
+			if (next + optHeader.getLength() > end) {
+				LOG.error ("PGM option extension length beyond option total length.");
+				return false;
+			}
 			if (optHeader.isFragmentOption()) {
+				if (optHeader.getLength() < SIZEOF_PGM_OPT_HEADER + SIZEOF_PGM_OPT_FRAGMENT) {
+					LOG.error ("PGM fragment option truncated.");
+					return false;
+				}
 				skb.setFragmentOptionOffset (optHeader.getOffset());
+			} else if (optHeader.isJoinOption()) {
+				if (optHeader.getLength() < SIZEOF_PGM_OPT_HEADER + SIZEOF_PGM_OPT_JOIN) {
+					LOG.error ("PGM join option truncated.");
+					return false;
+				}
+				skb.setJoinOptionOffset (optHeader.getOffset());
+			} else if (optHeader.isSynOption()) {
+				skb.setSynOption();
+			} else if (optHeader.isFinOption()) {
+				skb.setFinOption();
+			} else if (optHeader.isRstOption()) {
+				skb.setRstOption();
 			}
 		} while (!optHeader.isLastOption());
 		return true;
 	}
 
 	public static int doChecksum (byte[] buf) {
+		return doChecksum (buf, 0, buf.length);
+	}
+
+/* Checksum of len bytes from offset, permitting buffers larger than the packet.
+ */
+	public static int doChecksum (byte[] buf, int offset, int length) {
 		int acc = 0;
-		int i = 0, len = buf.length;
+		int i = offset, len = length;
 		while (len > 1) {
 /* First byte as most significant, second byte as least significant */                    
 			final int word16 = ((buf[i] & 0xff) << 8) | (buf[i + 1] & 0xff);
@@ -0,0 +1,225 @@
+/* Allow and deny lists applied to the PGM header of each received datagram before the
+ * checksum is verified or the packet parsed.
+ *
+ * Packets are matched on the header fields as sent: GSI, TSI, source port, destination
+ * port and type, and on the datagram source address and destination group.  The TSI of
+ * upstream and peer packets, NAK, NNAK and SPMR, is taken from the GSI and destination
+ * port, whereas the raw port lists match the header fields as sent whatever the direction:
+ * for those types the source port is the data-destination port of the session.  For each field
+ * a non-empty allow list admits only listed values, and a deny list refuses listed values.
+ * Ports and types are bit tables and GSIs and TSIs sorted arrays, so a rejection costs a
+ * few comparisons with no allocation.
+ *
+ * A filter is configured before it is set on a socket with PGM_FILTER, and is used by the
+ * receive thread only.
+ */
+package hk.miru.javapgm;
+
+import static hk.miru.javapgm.Preconditions.checkArgument;
+import static hk.miru.javapgm.Preconditions.checkNotNull;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+public class PacketFilter
+{
+        private static final int PORT_WORDS = 1024;    /* 65536 bits */
+        private static final int TYPE_WORDS = 4;       /* 256 bits */
+
+        private long[] allowSourcePorts = null, denySourcePorts = null;
+        private long[] allowDestinationPorts = null, denyDestinationPorts = null;
+        private long[] allowTypes = null, denyTypes = null;
+/* GSIs packed into the low 48 bits, TSIs as GSI then source port, sorted */
+        private long[] allowGsis = new long[0], denyGsis = new long[0];
+        private long[] allowTsis = new long[0], denyTsis = new long[0];
+        private final Set<InetAddress> allowSources = new HashSet<>();
+        private final Set<InetAddress> denySources = new HashSet<>();
+        private final Set<InetAddress> allowGroups = new HashSet<>();
+        private final Set<InetAddress> denyGroups = new HashSet<>();
+        private long rejectedCount = 0;
+
+        public PacketFilter allowGlobalSourceId (GlobalSourceId gsi) {
+                this.allowGsis = add (this.allowGsis, pack (checkNotNull (gsi)));
+                return this;
+        }
+
+        public PacketFilter denyGlobalSourceId (GlobalSourceId gsi) {
+                this.denyGsis = add (this.denyGsis, pack (checkNotNull (gsi)));
+                return this;
+        }
+
+        public PacketFilter allowTransportSessionId (TransportSessionId tsi) {
+                checkNotNull (tsi);
+                this.allowTsis = add (this.allowTsis, (pack (tsi.getGlobalSourceId()) << 16) | tsi.getSourcePort());
+                return this;
+        }
+
+        public PacketFilter denyTransportSessionId (TransportSessionId tsi) {
+                checkNotNull (tsi);
+                this.denyTsis = add (this.denyTsis, (pack (tsi.getGlobalSourceId()) << 16) | tsi.getSourcePort());
+                return this;
+        }
+
+        public PacketFilter allowSourcePort (int port) {
+                this.allowSourcePorts = set (this.allowSourcePorts, PORT_WORDS, checkPort (port));
+                return this;
+        }
+
+        public PacketFilter denySourcePort (int port) {
+                this.denySourcePorts = set (this.denySourcePorts, PORT_WORDS, checkPort (port));
+                return this;
+        }
+
+        public PacketFilter allowDestinationPort (int port) {
+                this.allowDestinationPorts = set (this.allowDestinationPorts, PORT_WORDS, checkPort (port));
+                return this;
+        }
+
+        public PacketFilter denyDestinationPort (int port) {
+                this.denyDestinationPorts = set (this.denyDestinationPorts, PORT_WORDS, checkPort (port));
+                return this;
+        }
+
+/* Packet.PGM_SPM, Packet.PGM_ODATA, etc.
+ */
+        public PacketFilter allowType (int type) {
+                this.allowTypes = set (this.allowTypes, TYPE_WORDS, checkType (type));
+                return this;
+        }
+
+        public PacketFilter denyType (int type) {
+                this.denyTypes = set (this.denyTypes, TYPE_WORDS, checkType (type));
+                return this;
+        }
+
+        public PacketFilter allowSourceAddress (InetAddress address) {
+                this.allowSources.add (checkNotNull (address));
+                return this;
+        }
+
+        public PacketFilter denySourceAddress (InetAddress address) {
+                this.denySources.add (checkNotNull (address));
+                return this;
+        }
+
+/* Multicast group the datagram was received on, as read from a group channel or line.
+ */
+        public PacketFilter allowGroup (InetAddress group) {
+                this.allowGroups.add (checkNotNull (group));
+                return this;
+        }
+
+        public PacketFilter denyGroup (InetAddress group) {
+                this.denyGroups.add (checkNotNull (group));
+                return this;
+        }
+
+/* Classify the PGM header at offset of buf, at least Packet.SIZEOF_PGM_HEADER bytes,
+ * received from source on group destination.  Returns false to discard.
+ */
+        public boolean accept (byte[] buf, int offset, InetAddress source, InetAddress destination) {
+                final int sport = ((buf[offset + Packet.PGM_SPORT_OFFSET] & 0xff) << 8) | (buf[offset + Packet.PGM_SPORT_OFFSET + 1] & 0xff);
+                final int dport = ((buf[offset + Packet.PGM_DPORT_OFFSET] & 0xff) << 8) | (buf[offset + Packet.PGM_DPORT_OFFSET + 1] & 0xff);
+                final int type = buf[offset + Packet.PGM_TYPE_OFFSET] & 0xff;
+                if (!(matches (this.allowTypes, type, true) && !matches (this.denyTypes, type, false) &&
+                      matches (this.allowDestinationPorts, dport, true) && !matches (this.denyDestinationPorts, dport, false) &&
+                      matches (this.allowSourcePorts, sport, true) && !matches (this.denySourcePorts, sport, false)))
+                {
+                        this.rejectedCount++;
+                        return false;
+                }
+                if (this.allowGsis.length > 0 || this.denyGsis.length > 0 ||
+                    this.allowTsis.length > 0 || this.denyTsis.length > 0)
+                {
+                        long gsi = 0;
+                        for (int i = 0; i < GlobalSourceId.SIZE; i++)
+                                gsi = (gsi << 8) | (buf[offset + Packet.PGM_GSI_OFFSET + i] & 0xff);
+/* Upstream and peer packets carry the session port as the destination port */
+                        final long tsi = (gsi << 16) | (Header.isDownstream (type) ? sport : dport);
+                        if ((this.allowGsis.length > 0 && Arrays.binarySearch (this.allowGsis, gsi) < 0) ||
+                            Arrays.binarySearch (this.denyGsis, gsi) >= 0 ||
+                            (this.allowTsis.length > 0 && Arrays.binarySearch (this.allowTsis, tsi) < 0) ||
+                            Arrays.binarySearch (this.denyTsis, tsi) >= 0)
+                        {
+                                this.rejectedCount++;
+                                return false;
+                        }
+                }
+                if ((!this.allowSources.isEmpty() && !this.allowSources.contains (source)) ||
+                    (!this.denySources.isEmpty() && this.denySources.contains (source)) ||
+                    (!this.allowGroups.isEmpty() && !this.allowGroups.contains (destination)) ||
+                    (!this.denyGroups.isEmpty() && this.denyGroups.contains (destination)))
+                {
+                        this.rejectedCount++;
+                        return false;
+                }
+                return true;
+        }
+
+/* Packets discarded by this filter.
+ */
+        public long getRejectedCount() {
+                return this.rejectedCount;
+        }
+
+/* An absent table matches everything for an allow list and nothing for a deny list.
+ */
+        private static boolean matches (long[] table, int value, boolean isAllow) {
+                if (null == table)
+                        return isAllow;
+                return 0 != (table[value >>> 6] & (1L << value));
+        }
+
+        private static long[] set (long[] table, int words, int value) {
+                if (null == table)
+                        table = new long[words];
+                table[value >>> 6] |= 1L << value;
+                return table;
+        }
+
+        private static long[] add (long[] sorted, long value) {
+                if (Arrays.binarySearch (sorted, value) >= 0)
+                        return sorted;
+                final long[] grown = Arrays.copyOf (sorted, sorted.length + 1);
+                grown[sorted.length] = value;
+                Arrays.sort (grown);
+                return grown;
+        }
+
+        private static long pack (GlobalSourceId gsi) {
+                final byte[] bytes = gsi.getBytes();
+                long packed = 0;
+                for (int i = 0; i < GlobalSourceId.SIZE; i++)
+                        packed = (packed << 8) | (bytes[i] & 0xff);
+                return packed;
+        }
+
+        private static int checkPort (int port) {
+                checkArgument (port >= 0 && port <= 0xffff);
+                return port;
+        }
+
+        private static int checkType (int type) {
+                checkArgument (type >= 0 && type <= 0xff);
+                return type;
+        }
+
+        @Override
+        public String toString() {
+                return "{ " +
+                        "\"allowGsis\": " + this.allowGsis.length +
+                      ", \"denyGsis\": " + this.denyGsis.length +
+                      ", \"allowTsis\": " + this.allowTsis.length +
+                      ", \"denyTsis\": " + this.denyTsis.length +
+                      ", \"allowSources\": " + this.allowSources.size() +
+                      ", \"denySources\": " + this.denySources.size() +
+                      ", \"allowGroups\": " + this.allowGroups.size() +
+                      ", \"denyGroups\": " + this.denyGroups.size() +
+                      ", \"rejected\": " + this.rejectedCount +
+                       " }";
+        }
+}
+
+/* eof */
@@ -8,6 +8,7 @@ import static hk.miru.javapgm.Preconditions.checkNotNull;
 import java.net.InetAddress;
 import java.util.List;
 import java.util.Queue;
+import javax.annotation.Nullable;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -17,17 +18,26 @@ public class Peer {
         private Logger LOG = LogManager.getLogger (Peer.class.getName());
     
 	private TransportSessionId tsi = null;
+/* Data-destination port of the session */
+	private int dport = 0;
 	private InetAddress group_nla = null;
 	private InetAddress nla = null, local_nla = null;
 	private long lastPacketTimestamp = 0;
 	private SequenceNumber spm_sqn = null;
 	private ReceiveWindow window;
 	private boolean hasPendingLinkData = false;
+	private boolean isFin = false;
 	private long lastCommit = 0;
 	private long lostCount = 0;
 	private long lastCumulativeLosses = 0;
+	private long skippedCount = 0;
+	private long lastCumulativeSkips = 0;
 	private long spmrExpiration = 0;
 	private long expiration = 0;
+/* Slot in the socket ReceiveCheckpoint, -1 for none */
+	private int checkpointSlot = -1;
+/* NAK output towards this source, PGM_NAK_MAX_RTE */
+	private RateControl nakRateControl = null;
 
 	public Peer (
                 Socket sock,
@@ -50,13 +60,17 @@ public class Peer {
 		this.tsi = tsi;
                 this.group_nla = dst_addr;
                 this.local_nla = src_addr;
-		this.spm_sqn = SequenceNumber.ZERO;
                 
 		this.window = new ReceiveWindow (tsi,
                                                  sock.getMaximumTpdu(),
                                                  sock.getReceiveWindowSizeInSequenceNumbers(),   /* RXW_SQNS */
                                                  sock.getReceiveWindowSizeInSeconds(),    /* RXW_SECS */
                                                  sock.getMaximumReceiveRate());     /* RXW_MAX_RTE */
+                this.window.setUnordered (sock.isUnordered());
+                this.window.setMaxDeliveryDelay (sock.getMaximumDeliveryDelay());
+                this.window.setMaxFragments (sock.getMaximumFragments());
+                this.window.setStreaming (sock.isStreaming());
+                this.window.setLateJoin (sock.getLateJoinSequenceNumbers());
                 this.spmrExpiration = now + sock.getSpmRequestExpiration();
 	}
 
@@ -65,16 +79,65 @@ public class Peer {
 		return window.add (skb, now, nak_rb_expiry);
 	}
 
-	public int update (SequenceNumber txw_lead, SequenceNumber txw_trail, long now, long nak_rb_expiry) {
+	public int update (SequenceNumber txw_lead, SequenceNumber txw_trail, @Nullable SequenceNumber join_min, long now, long nak_rb_expiry) {
                 checkNotNull (txw_lead);
                 checkNotNull (txw_trail);
-		return window.update (txw_lead, txw_trail, now, nak_rb_expiry);
+		return window.update (txw_lead, txw_trail, join_min, now, nak_rb_expiry);
+	}
+
+	public ReceiveWindow.Returns confirm (SequenceNumber sequence, long now, long nak_rdata_expiry, long nak_rb_expiry) {
+                checkNotNull (sequence);
+		return this.window.confirm (sequence, now, nak_rdata_expiry, nak_rb_expiry);
+	}
+
+	public ReceiveWindow.Returns suppress (SequenceNumber sequence, long nak_rpt_expiry) {
+                checkNotNull (sequence);
+		return this.window.suppress (sequence, nak_rpt_expiry);
 	}
 
 	public int read (List<SocketBuffer> skbs) {
 		return this.window.read (skbs);
 	}
 
+	public int read (List<SocketBuffer> skbs, int maxMessages, long maxBytes) {
+		return this.window.read (skbs, maxMessages, maxBytes);
+	}
+
+/* Next sequence to be delivered, null before any data or SPM has been received.
+ */
+	public SequenceNumber getCommitLead() {
+		return this.window.getCommitLead();
+	}
+
+/* Resume delivery from a checkpointed sequence after a receiver restart.
+ */
+	public SequenceNumber getTrail() {
+		return this.window.getTrail();
+	}
+
+	public void setResume (SequenceNumber resume) {
+                checkNotNull (resume);
+		this.window.setResume (resume);
+	}
+
+	public int getCheckpointSlot() {
+		return this.checkpointSlot;
+	}
+
+	public void setCheckpointSlot (int checkpointSlot) {
+		this.checkpointSlot = checkpointSlot;
+	}
+
+/* Contiguous data remains after a budget limited read.
+ */
+	public boolean hasPendingRead() {
+		return this.window.isReadLimited();
+	}
+
+	public long getMessagesDelivered() {
+		return this.window.getMessagesDelivered();
+	}
+
 	public TransportSessionId getTransportSessionId() {
 		return this.tsi;
 	}
@@ -82,6 +145,14 @@ public class Peer {
 	public int getSourcePort() {
 		return this.tsi.getSourcePort();
 	}
+
+	public int getDataDestinationPort() {
+		return this.dport;
+	}
+
+	public void setDataDestinationPort (int dport) {
+		this.dport = dport;
+	}
         
         public InetAddress getGroupAddress() {
                 return this.group_nla;
@@ -96,6 +167,11 @@ public class Peer {
 		return this.nla;
 	}
 
+/* Packet source address of the peer, available before any SPM advertises the NLA */
+	public InetAddress getLocalNetworkLayerAddress() {
+		return this.local_nla;
+	}
+
 	public void setNetworkLayerAddress (InetAddress nla) {
                 checkNotNull (nla);
 		this.nla = nla;
@@ -118,6 +194,11 @@ public class Peer {
 		return this.spm_sqn;
 	}
 
+/* No SPM has been received from the source yet */
+	public boolean hasSpmSequenceNumber() {
+		return (null != this.spm_sqn);
+	}
+
 /* Edge triggered has receiver pending events
  */
 	public boolean hasPending() {
@@ -136,6 +217,14 @@ public class Peer {
 		this.hasPendingLinkData = false;
 	}
 
+	public RateControl getNakRateControl() {
+		return this.nakRateControl;
+	}
+
+	public void setNakRateControl (RateControl nakRateControl) {
+		this.nakRateControl = nakRateControl;
+	}
+
 	public boolean hasPendingLinkData() {
 		return this.hasPendingLinkData;
 	}
@@ -160,6 +249,27 @@ public class Peer {
 		return this.window.hasCommitData();
 	}
 
+	public boolean hasIncomingData() {
+		return this.window.hasIncomingData();
+	}
+
+/* Source announced the end of the session with OPT_FIN.
+ */
+	public void setFin() {
+		this.isFin = true;
+	}
+
+	public boolean isFin() {
+		return this.isFin;
+	}
+
+/* Session ended and every remaining sequence has been delivered or reported lost, the
+ * peer can be released without waiting for expiration.
+ */
+	public boolean isFinished() {
+		return this.isFin && !hasPendingLinkData() && !hasIncomingData();
+	}
+
 	public boolean hasDataLoss() {
 		return (this.lastCumulativeLosses != this.window.getCumulativeLosses());
 	}
@@ -169,11 +279,56 @@ public class Peer {
 		this.lastCumulativeLosses = this.window.getCumulativeLosses();
 	}
 
+/* Sequences abandoned on the delivery deadline since the last notification.
+ */
+	public boolean hasGap() {
+		return (this.lastCumulativeSkips != this.window.getCumulativeSkips());
+	}
+
+	public void clearGap() {
+		this.skippedCount = this.window.getCumulativeSkips() - this.lastCumulativeSkips;
+		this.lastCumulativeSkips = this.window.getCumulativeSkips();
+	}
+
+/* Window holds as many sequences as it can, further data requires the trail to advance.
+ */
+	public boolean isWindowFull() {
+		return this.window.isFull();
+	}
+
+	public long getMaxApdu() {
+		return this.window.getMaxApdu();
+	}
+
+/* Sequences the window has found missing, whether or not later repaired.
+ */
+	public long getCumulativePlaceholders() {
+		return this.window.getCumulativePlaceholders();
+	}
+
 	public void markLost (SequenceNumber sequence) {
                 checkNotNull (sequence);
 		this.window.markLost (sequence);
 	}
 
+	public void markSkipped (SequenceNumber sequence) {
+                checkNotNull (sequence);
+		this.window.markSkipped (sequence);
+	}
+
+	public boolean isRepairable (SequenceNumber sequence, long repair_ivl) {
+                checkNotNull (sequence);
+		return this.window.isRepairable (sequence, repair_ivl);
+	}
+
+	public long firstDeliveryDeadline() {
+		return this.window.firstDeliveryDeadline();
+	}
+
+	public int skipExpired (long now) {
+		return this.window.skipExpired (now);
+	}
+
 	public boolean hasSpmrExpiration() {
 		return (this.spmrExpiration > 0);
 	}
@@ -220,6 +375,14 @@ public class Peer {
 		return this.window.firstRepairDataExpiration();
 	}
 
+	public RoundTripEstimator getNakConfirmRoundTrip() {
+		return this.window.getNakConfirmRoundTrip();
+	}
+
+	public RoundTripEstimator getRepairDataRoundTrip() {
+		return this.window.getRepairDataRoundTrip();
+	}
+
 	public long getExpiration() {
 		return this.expiration;
 	}
@@ -49,7 +49,7 @@ public class RateControl
                 {
                         now = Socket.microTime();
 
-                        if (minor_bucket.rate_per_msec > 0)
+                        if (major_bucket.rate_per_msec > 0)
                         {
                                 final long time_since_last_rate_check = now - major_bucket.last_rate_check;
                                 if (time_since_last_rate_check > (1L * 1000L)) {
@@ -252,7 +252,11 @@ public class RateControl
                 
                 final long now = Socket.microTime();
                 final long timeSinceLastRateCheck = now - bucket.last_rate_check;
-                final long bucketBytes = bucket.rate_limit + ((bucket.rate_per_sec * timeSinceLastRateCheck) / (1000L * 1000L)) - n;
+/* Credit accrues up to the bucket size as per check(), beyond that n is paced at the rate */
+                final long capacity = bucket.rate_per_msec > 0 ? bucket.rate_per_msec : bucket.rate_per_sec;
+                final long accrued = (timeSinceLastRateCheck > 1000L * 1000L) ? capacity :
+                                     bucket.rate_limit + ((bucket.rate_per_sec * timeSinceLastRateCheck) / (1000L * 1000L));
+                final long bucketBytes = Math.min (capacity, accrued) - n;
                 
                 if (bucketBytes >= 0)
                         return 0;
@@ -0,0 +1,211 @@
+/* Receiver state checkpointed per TSI to a small memory-mapped file, such that a restarted
+ * receiver resumes each session from the first sequence not yet delivered.
+ *
+ * The file holds a fixed count of slots, one per live peer, written in place as data is
+ * delivered and SPMs arrive.  Writes go to the page cache and survive the process
+ * exiting, call force() to survive the host.
+ *
+ * File layout, all fields in network order:
+ *
+ *   0: magic, version, slot count
+ *  16: slots, each SIZEOF_SLOT bytes:
+ *        int   state, SLOT_FREE or SLOT_USED
+ *        byte  TSI[8]
+ *        int   commit lead, the next sequence to deliver
+ *        int   SPM sequence number
+ *        int   flags, HAS_COMMIT and HAS_SPM
+ *        long  timestamp of the last update in microseconds
+ *
+ * Delivery is checkpointed as APDUs are handed to the application, a restart never
+ * delivers an APDU twice and loses at most the APDUs being processed at the time.
+ */
+package hk.miru.javapgm;
+
+import static hk.miru.javapgm.Preconditions.checkArgument;
+import static hk.miru.javapgm.Preconditions.checkNotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+public class ReceiveCheckpoint
+{
+        private static Logger LOG = LogManager.getLogger (ReceiveCheckpoint.class.getName());
+
+        public static final int MAGIC                   = 0x50474d43;   /* "PGMC" */
+        public static final int VERSION                 = 1;
+        public static final int SIZEOF_HEADER           = 16;
+        public static final int SIZEOF_SLOT             = 32;
+
+        private static final int SLOT_FREE              = 0;
+        private static final int SLOT_USED              = 1;
+        private static final int HAS_COMMIT             = 0x1;
+        private static final int HAS_SPM                = 0x2;
+
+        private static final int SLOT_STATE_OFFSET      = 0;
+        private static final int SLOT_TSI_OFFSET        = 4;
+        private static final int SLOT_COMMIT_OFFSET     = 12;
+        private static final int SLOT_SPM_OFFSET        = 16;
+        private static final int SLOT_FLAGS_OFFSET      = 20;
+        private static final int SLOT_TIMESTAMP_OFFSET  = 24;
+
+        private final File file;
+        private final int capacity;
+        private final MappedByteBuffer map;
+/* Slots recovered from the file and not yet claimed by a peer */
+        private final Map<TransportSessionId, Integer> restored = new HashMap<>();
+        private final Deque<Integer> free = new ArrayDeque<>();
+
+/* Checkpoint file with room for capacity concurrent sessions, an existing file is loaded
+ * for peers to resume from.
+ */
+        public ReceiveCheckpoint (File file, int capacity) throws IOException {
+/* Pre-conditions */
+                checkNotNull (file);
+                checkArgument (capacity > 0);
+
+                this.file = file;
+                final boolean exists = file.length() > 0;
+                try (RandomAccessFile raf = new RandomAccessFile (file, "rw")) {
+                        if (exists) {
+                                if (raf.length() < SIZEOF_HEADER)
+                                        throw new IOException ("Invalid checkpoint file " + file);
+                                final int magic = raf.readInt();
+                                final int version = raf.readInt();
+                                final int slots = raf.readInt();
+                                if (MAGIC != magic || VERSION != version)
+                                        throw new IOException ("Invalid checkpoint file " + file);
+/* Never shrink an existing file and drop sessions */
+                                capacity = Math.max (capacity, slots);
+                        }
+                        this.capacity = capacity;
+                        raf.setLength (Math.max (raf.length(), SIZEOF_HEADER + (long)capacity * SIZEOF_SLOT));
+                        this.map = raf.getChannel().map (FileChannel.MapMode.READ_WRITE, 0, SIZEOF_HEADER + (long)capacity * SIZEOF_SLOT);
+                }
+                this.map.putInt (0, MAGIC);
+                this.map.putInt (4, VERSION);
+                this.map.putInt (8, this.capacity);
+                for (int slot = 0; slot < this.capacity; slot++) {
+                        if (SLOT_USED == this.map.getInt (offset (slot) + SLOT_STATE_OFFSET))
+                                this.restored.put (readTsi (slot), slot);
+                        else
+                                this.free.addLast (slot);
+                }
+                if (!this.restored.isEmpty())
+                        LOG.debug ("Restored checkpoint for {} sessions from {}.", this.restored.size(), file);
+        }
+
+/* Claim a slot for a new peer, seeding it from the checkpoint unless isNewSession such as
+ * on a restarted source session.
+ */
+        void attach (Peer peer, boolean isNewSession) {
+                checkNotNull (peer);
+
+                final TransportSessionId tsi = peer.getTransportSessionId();
+                Integer slot = this.restored.remove (tsi);
+                if (null != slot && !isNewSession) {
+                        final int offset = offset (slot);
+                        final int flags = this.map.getInt (offset + SLOT_FLAGS_OFFSET);
+                        if (0 != (flags & HAS_COMMIT)) {
+                                final SequenceNumber resume = SequenceNumber.fromIntBits (this.map.getInt (offset + SLOT_COMMIT_OFFSET));
+                                LOG.debug ("Resuming tsi {} from #{}.", tsi, resume);
+                                peer.setResume (resume);
+                        }
+                        if (0 != (flags & HAS_SPM))
+                                peer.setSpmSequenceNumber (SequenceNumber.fromIntBits (this.map.getInt (offset + SLOT_SPM_OFFSET)));
+                } else {
+                        if (null == slot)
+                                slot = this.free.pollFirst();
+                        if (null == slot) {
+                                LOG.warn ("Checkpoint file full, tsi {} will not be checkpointed.", tsi);
+                                return;
+                        }
+                        final int offset = offset (slot);
+                        this.map.putInt (offset + SLOT_FLAGS_OFFSET, 0);
+                        this.map.position (offset + SLOT_TSI_OFFSET);
+                        this.map.put (tsi.getGlobalSourceId().getBytes(), 0, GlobalSourceId.SIZE);
+                        this.map.putShort ((short)tsi.getSourcePort());
+                        this.map.putInt (offset + SLOT_STATE_OFFSET, SLOT_USED);
+                }
+                peer.setCheckpointSlot (slot);
+        }
+
+/* Release the slot of a removed peer.
+ */
+        void detach (Peer peer) {
+                final int slot = peer.getCheckpointSlot();
+                if (slot < 0)
+                        return;
+                this.map.putInt (offset (slot) + SLOT_STATE_OFFSET, SLOT_FREE);
+                this.free.addLast (slot);
+                peer.setCheckpointSlot (-1);
+        }
+
+/* Record the next sequence to deliver after delivering data to the application.
+ */
+        void commit (Peer peer, SequenceNumber commitLead, long now) {
+                final int slot = peer.getCheckpointSlot();
+                if (slot < 0 || null == commitLead)
+                        return;
+                final int offset = offset (slot);
+                this.map.putInt (offset + SLOT_COMMIT_OFFSET, commitLead.intValue());
+                this.map.putLong (offset + SLOT_TIMESTAMP_OFFSET, now);
+                this.map.putInt (offset + SLOT_FLAGS_OFFSET, this.map.getInt (offset + SLOT_FLAGS_OFFSET) | HAS_COMMIT);
+        }
+
+/* Record the latest SPM sequence number accepted from the source.
+ */
+        void spm (Peer peer, SequenceNumber spm_sqn, long now) {
+                final int slot = peer.getCheckpointSlot();
+                if (slot < 0)
+                        return;
+                final int offset = offset (slot);
+                this.map.putInt (offset + SLOT_SPM_OFFSET, spm_sqn.intValue());
+                this.map.putLong (offset + SLOT_TIMESTAMP_OFFSET, now);
+                this.map.putInt (offset + SLOT_FLAGS_OFFSET, this.map.getInt (offset + SLOT_FLAGS_OFFSET) | HAS_SPM);
+        }
+
+/* Flush the checkpoint to storage.
+ */
+        public void force() {
+                this.map.force();
+        }
+
+        public File getFile() {
+                return this.file;
+        }
+
+        public int getCapacity() {
+                return this.capacity;
+        }
+
+/* Sessions loaded from the file that no peer has resumed yet.
+ */
+        public int getRestoredCount() {
+                return this.restored.size();
+        }
+
+        private static int offset (int slot) {
+                return SIZEOF_HEADER + slot * SIZEOF_SLOT;
+        }
+
+        private TransportSessionId readTsi (int slot) {
+                final byte[] bytes = new byte[8];
+                this.map.position (offset (slot) + SLOT_TSI_OFFSET);
+                this.map.get (bytes);
+                return new TransportSessionId (new GlobalSourceId (Arrays.copyOf (bytes, GlobalSourceId.SIZE)),
+                                               ((bytes[6] & 0xff) << 8) | (bytes[7] & 0xff));
+        }
+}
+
+/* eof */
@@ -0,0 +1,91 @@
+/* One joined multicast group, a receive channel bound to the group address such that every
+ * datagram read is known to have been sent to that group.
+ *
+ * Memberships of the group on any interface, any-source or per source, are made on the
+ * one channel: a second channel bound to the same group and port would receive a copy of
+ * every datagram.
+ */
+package hk.miru.javapgm;
+
+import static hk.miru.javapgm.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.ProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+
+public class ReceiveGroup
+{
+        private final InetAddress group;
+        private final DatagramChannel channel;
+        private int memberships = 0;
+        private long packetCount = 0;
+
+        ReceiveGroup (ProtocolFamily family, InetAddress group, int port) throws IOException {
+                checkNotNull (family);
+                checkNotNull (group);
+
+                this.group = group;
+                this.channel = DatagramChannel.open (family);
+                this.channel.setOption (StandardSocketOptions.SO_REUSEADDR, true);
+                this.channel.configureBlocking (false);
+                this.channel.bind (new InetSocketAddress (group, port));
+        }
+
+        DatagramChannel getChannel() {
+                return this.channel;
+        }
+
+/* Join the group on the request interface, restricted to the request source if any.
+ */
+        MembershipKey join (GroupSourceRequest gsr) throws IOException {
+                final NetworkInterface ni = NetworkInterface.getByIndex (gsr.getNetworkInterfaceIndex());
+                final MembershipKey key = (null == gsr.getSourceAddress()) ?
+                                          this.channel.join (this.group, ni) :
+                                          this.channel.join (this.group, ni, gsr.getSourceAddress());
+                this.memberships++;
+                return key;
+        }
+
+/* Drop one membership, returns true when none remain.
+ */
+        boolean drop (MembershipKey key) {
+                key.drop();
+                return 0 == --this.memberships;
+        }
+
+        boolean isEmpty() {
+                return 0 == this.memberships;
+        }
+
+        void close() throws IOException {
+                this.channel.close();
+        }
+
+        void onPacket() {
+                this.packetCount++;
+        }
+
+        public InetAddress getGroupAddress() {
+                return this.group;
+        }
+
+        public long getPacketCount() {
+                return this.packetCount;
+        }
+
+        @Override
+        public String toString() {
+                return "{ " +
+                        "\"group\": \"" + this.group + "\"" +
+                      ", \"memberships\": " + this.memberships +
+                      ", \"packets\": " + this.packetCount +
+                       " }";
+        }
+}
+
+/* eof */
@@ -0,0 +1,390 @@
+/* Journal of delivered APDUs in pre-allocated memory-mapped segment files.
+ *
+ * Each APDU delivered by a socket with PGM_JOURNAL set is appended with its TSI, first
+ * sequence number and receive timestamp.  Segments are created at full size and mapped
+ * once, appending is a bounds check and a copy into the mapping without allocation, a new
+ * segment is only mapped when the current one is full.
+ *
+ * Segment layout, all fields in network order:
+ *
+ *   0: magic, version, segment size, segment index
+ *  32: records, each 8 byte aligned:
+ *        int   record length, header and payload, written last
+ *        int   flags, MessageHandler.MSG_*
+ *        byte  TSI[8]
+ *        int   sequence number
+ *        int   payload length
+ *        long  receive timestamp in microseconds
+ *        byte  payload[payload length]
+ *
+ * A record length of zero marks the end of written data, END_OF_SEGMENT that the journal
+ * continues in the next segment.  Segments are named by index in hexadecimal such that
+ * lexical order is journal order, and are created under a temporary name renamed once the
+ * header is written such that a reader never maps a partial segment.
+ */
+package hk.miru.javapgm;
+
+import static hk.miru.javapgm.Preconditions.checkArgument;
+import static hk.miru.javapgm.Preconditions.checkNotNull;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+public class ReceiveJournal
+{
+        private static Logger LOG = LogManager.getLogger (ReceiveJournal.class.getName());
+
+        public static final int MAGIC                   = 0x50474d4a;   /* "PGMJ" */
+        public static final int VERSION                 = 1;
+        public static final int SIZEOF_SEGMENT_HEADER   = 32;
+        public static final int SIZEOF_RECORD_HEADER    = 32;
+        public static final int END_OF_SEGMENT          = -1;
+        public static final String SUFFIX               = ".journal";
+        private static final String TEMPORARY_SUFFIX    = ".tmp";
+
+        private static final int RECORD_LENGTH_OFFSET   = 0;
+        private static final int RECORD_FLAGS_OFFSET    = 4;
+        private static final int RECORD_TSI_OFFSET      = 8;
+        private static final int RECORD_SQN_OFFSET      = 16;
+        private static final int RECORD_PAYLOAD_LENGTH_OFFSET = 20;
+        private static final int RECORD_TIMESTAMP_OFFSET = 24;
+
+        private final File directory;
+        private final int segmentSize;
+        private final int maxSegments;
+/* Retained segment files, oldest first */
+        private final Deque<File> segments = new ArrayDeque<>();
+        private long segmentIndex;
+        private MappedByteBuffer segment = null;
+        private int position = 0;
+/* Record under construction by begin(), write() and commit() */
+        private int recordOffset = -1, recordLength = 0, recordPosition = 0;
+        private long recordCount = 0;
+        private long discardCount = 0;
+
+/* Journal in directory with segments of segmentSize bytes, keeping at most maxSegments
+ * segment files with the oldest deleted on rolling, zero to keep all.  Existing segments
+ * are retained and the journal continues in a new segment after them.
+ */
+        public ReceiveJournal (File directory, int segmentSize, int maxSegments) throws IOException {
+/* Pre-conditions */
+                checkNotNull (directory);
+                checkArgument (segmentSize > SIZEOF_SEGMENT_HEADER + SIZEOF_RECORD_HEADER);
+                checkArgument (maxSegments >= 0);
+
+                if (!directory.isDirectory() && !directory.mkdirs())
+                        throw new FileNotFoundException (directory.toString());
+                this.directory = directory;
+                this.segmentSize = segmentSize & ~7;
+                this.maxSegments = maxSegments;
+                final File[] existing = listSegments (directory);
+                this.segments.addAll (Arrays.asList (existing));
+                this.segmentIndex = existing.length > 0 ? parseIndex (existing[existing.length - 1]) + 1 : 0;
+                if (existing.length > 0)
+                        seal (existing[existing.length - 1]);
+                roll();
+        }
+
+/* Append one APDU.  Returns false if the APDU cannot fit within an empty segment and was
+ * not journalled.
+ */
+        public boolean append (TransportSessionId tsi, int sequence, long timestamp, byte[] buffer, int offset, int length, int flags) throws IOException {
+                if (!begin (tsi, sequence, timestamp, length, flags))
+                        return false;
+                write (buffer, offset, length);
+                commit();
+                return true;
+        }
+
+/* Start a record of length payload bytes, filled by write() and published by commit().
+ */
+        boolean begin (TransportSessionId tsi, int sequence, long timestamp, int length, int flags) throws IOException {
+                assert (-1 == this.recordOffset);
+                final int size = align (SIZEOF_RECORD_HEADER + length);
+                if (size > this.segmentSize - SIZEOF_SEGMENT_HEADER) {
+                        LOG.warn ("Discarding {} byte APDU exceeding journal segment size.", length);
+                        this.discardCount++;
+                        return false;
+                }
+/* Reserve room for the end of segment marker */
+                if (this.position + size + 4 > this.segmentSize) {
+                        this.segment.putInt (this.position, END_OF_SEGMENT);
+                        roll();
+                }
+                final MappedByteBuffer segment = this.segment;
+                final int offset = this.position;
+                final byte[] gsi = tsi.getGlobalSourceId().getBytes();
+                segment.putInt (offset + RECORD_FLAGS_OFFSET, flags);
+                segment.position (offset + RECORD_TSI_OFFSET);
+                segment.put (gsi, 0, GlobalSourceId.SIZE);
+                segment.putShort ((short)tsi.getSourcePort());
+                segment.putInt (offset + RECORD_SQN_OFFSET, sequence);
+                segment.putInt (offset + RECORD_PAYLOAD_LENGTH_OFFSET, length);
+                segment.putLong (offset + RECORD_TIMESTAMP_OFFSET, timestamp);
+                this.recordOffset = offset;
+                this.recordLength = size;
+                this.recordPosition = offset + SIZEOF_RECORD_HEADER;
+                return true;
+        }
+
+        void write (byte[] buffer, int offset, int length) {
+                assert (-1 != this.recordOffset);
+                assert (this.recordPosition + length <= this.recordOffset + this.recordLength);
+                this.segment.position (this.recordPosition);
+                this.segment.put (buffer, offset, length);
+                this.recordPosition += length;
+        }
+
+/* Publish the record by writing its length last.  The mapping gives no ordering of these
+ * plain stores to another thread, a reader is only assured of the complete record across
+ * processes once it has been flushed by force().
+ */
+        void commit() {
+                assert (-1 != this.recordOffset);
+                this.segment.putInt (this.recordOffset + RECORD_LENGTH_OFFSET, this.recordLength);
+                this.position = this.recordOffset + this.recordLength;
+                this.recordOffset = -1;
+                this.recordCount++;
+        }
+
+/* Flush written records to storage.
+ */
+        public void force() {
+                this.segment.force();
+        }
+
+        public void close() {
+                force();
+                this.segment = null;
+        }
+
+        public File getDirectory() {
+                return this.directory;
+        }
+
+        public long getRecordCount() {
+                return this.recordCount;
+        }
+
+/* APDUs too large for a segment.
+ */
+        public long getDiscardCount() {
+                return this.discardCount;
+        }
+
+/* Terminate the last segment of an earlier writer, which without close() ends at the first
+ * zero record length, such that a reader continues in the segments that follow.
+ */
+        private static void seal (File file) throws IOException {
+                try (RandomAccessFile raf = new RandomAccessFile (file, "rw")) {
+                        final MappedByteBuffer segment = raf.getChannel().map (FileChannel.MapMode.READ_WRITE, 0, raf.length());
+                        if (segment.limit() < SIZEOF_SEGMENT_HEADER || MAGIC != segment.getInt (0))
+                                return;
+                        int offset = SIZEOF_SEGMENT_HEADER;
+                        while (offset + 4 <= segment.limit()) {
+                                final int recordLength = segment.getInt (offset + RECORD_LENGTH_OFFSET);
+                                if (END_OF_SEGMENT == recordLength)
+                                        return;
+                                if (recordLength <= 0) {
+                                        LOG.debug ("Sealing journal segment {} at {}.", file, offset);
+                                        segment.putInt (offset + RECORD_LENGTH_OFFSET, END_OF_SEGMENT);
+                                        segment.force();
+                                        return;
+                                }
+                                offset += recordLength;
+                        }
+                }
+        }
+
+/* Create and map the next segment at full size, retiring the oldest beyond maxSegments.
+ */
+        private void roll() throws IOException {
+                if (null != this.segment)
+                        this.segment.force();
+                final String name = String.format ("%016x%s", this.segmentIndex, SUFFIX);
+                final File file = new File (this.directory, name);
+                final File temporary = new File (this.directory, name + TEMPORARY_SUFFIX);
+                LOG.debug ("Rolling journal to segment {}.", file);
+                try (RandomAccessFile raf = new RandomAccessFile (temporary, "rw")) {
+                        raf.setLength (this.segmentSize);
+                        this.segment = raf.getChannel().map (FileChannel.MapMode.READ_WRITE, 0, this.segmentSize);
+                }
+                this.segment.putInt (0, MAGIC);
+                this.segment.putInt (4, VERSION);
+                this.segment.putInt (8, this.segmentSize);
+                this.segment.putLong (16, this.segmentIndex);
+                this.segment.force();
+/* Published complete, the mapping follows the file */
+                Files.move (temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                this.position = SIZEOF_SEGMENT_HEADER;
+                this.segmentIndex++;
+                this.segments.addLast (file);
+                while (this.maxSegments > 0 && this.segments.size() > this.maxSegments) {
+                        final File oldest = this.segments.removeFirst();
+                        if (!oldest.delete())
+                                LOG.warn ("Failed to delete journal segment {}.", oldest);
+                }
+        }
+
+        private static int align (int length) {
+                return (length + 7) & ~7;
+        }
+
+        private static long parseIndex (File file) {
+                final String name = file.getName();
+                return Long.parseLong (name.substring (0, name.length() - SUFFIX.length()), 16);
+        }
+
+/* Segment files in journal order.
+ */
+        static File[] listSegments (File directory) {
+                final File[] files = directory.listFiles();
+                if (null == files)
+                        return new File[0];
+                int count = 0;
+                for (File file : files) {
+                        final String name = file.getName();
+                        if (name.length() == 16 + SUFFIX.length() && name.endsWith (SUFFIX))
+                                files[count++] = file;
+                }
+                final File[] segments = Arrays.copyOf (files, count);
+                Arrays.sort (segments);
+                return segments;
+        }
+
+/* Callback for journal records, payload is only valid for the duration of the call.
+ */
+        public interface RecordHandler {
+                void onRecord (TransportSessionId tsi, int sequence, long timestamp, ByteBuffer buffer, int offset, int length, int flags);
+        }
+
+/* Sequential reader of a journal directory, records are passed in place from the mapped
+ * segments.  A reader may follow a live journal in another process, polling again once no
+ * further records are available, records are complete once the writer has called force().
+ */
+        public static class Reader
+        {
+                private final File directory;
+                private File file = null;
+                private long index = -1;
+                private ByteBuffer segment = null;
+                private int position = 0;
+/* Last TSI passed up, reused whilst records are from the same source */
+                private final byte[] tsiBytes = new byte[8];
+                private TransportSessionId tsi = null;
+
+                public Reader (File directory) {
+                        checkNotNull (directory);
+                        this.directory = directory;
+                }
+
+/* Pass up to limit records to the handler.
+ *
+ * Returns count of records handled, zero when no further records are available.
+ */
+                public int poll (RecordHandler handler, int limit) throws IOException {
+                        checkNotNull (handler);
+                        checkArgument (limit > 0);
+
+                        if (null == this.segment && !openNext())
+                                return 0;
+                        int count = 0;
+                        while (count < limit) {
+                                final ByteBuffer segment = this.segment;
+                                final int offset = this.position;
+                                if (offset + 4 > segment.limit())
+                                        break;
+                                final int recordLength = segment.getInt (offset + RECORD_LENGTH_OFFSET);
+                                if (END_OF_SEGMENT == recordLength) {
+                                        if (!openNext())
+                                                break;
+                                        continue;
+                                }
+                                if (0 == recordLength)
+                                        break;
+                                final int length = segment.getInt (offset + RECORD_PAYLOAD_LENGTH_OFFSET);
+                                handler.onRecord (readTsi (segment, offset + RECORD_TSI_OFFSET),
+                                                  segment.getInt (offset + RECORD_SQN_OFFSET),
+                                                  segment.getLong (offset + RECORD_TIMESTAMP_OFFSET),
+                                                  segment, offset + SIZEOF_RECORD_HEADER, length,
+                                                  segment.getInt (offset + RECORD_FLAGS_OFFSET));
+                                this.position = offset + recordLength;
+                                count++;
+                        }
+                        return count;
+                }
+
+/* Map the segment following the current one, or the first segment.
+ */
+                private boolean openNext() throws IOException {
+                        final File[] segments = listSegments (this.directory);
+                        File next = null;
+                        for (File file : segments) {
+                                if (parseIndex (file) > this.index) {
+                                        next = file;
+                                        break;
+                                }
+                        }
+                        if (null == next)
+                                return false;
+                        final ByteBuffer segment;
+                        try (RandomAccessFile raf = new RandomAccessFile (next, "r")) {
+                                segment = raf.getChannel().map (FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                        }
+/* Segment of an earlier writer still being created, retried on the next poll */
+                        if (segment.limit() < SIZEOF_SEGMENT_HEADER ||
+                            0 == segment.getInt (0))
+                        {
+                                return false;
+                        }
+                        if (MAGIC != segment.getInt (0) ||
+                            VERSION != segment.getInt (4))
+                        {
+                                throw new IOException ("Invalid journal segment " + next);
+                        }
+                        this.segment = segment;
+                        LOG.debug ("Reading journal segment {}.", next);
+                        this.file = next;
+                        this.index = parseIndex (next);
+                        this.position = SIZEOF_SEGMENT_HEADER;
+                        return true;
+                }
+
+                private TransportSessionId readTsi (ByteBuffer segment, int offset) {
+                        boolean isSame = null != this.tsi;
+                        for (int i = 0; i < 8; i++) {
+                                final byte b = segment.get (offset + i);
+                                if (b != this.tsiBytes[i]) {
+                                        this.tsiBytes[i] = b;
+                                        isSame = false;
+                                }
+                        }
+                        if (!isSame) {
+                                this.tsi = new TransportSessionId (new GlobalSourceId (Arrays.copyOf (this.tsiBytes, GlobalSourceId.SIZE)),
+                                                                   ((this.tsiBytes[6] & 0xff) << 8) | (this.tsiBytes[7] & 0xff));
+                        }
+                        return this.tsi;
+                }
+
+/* Segment currently being read, null before the first record.
+ */
+                public File getSegment() {
+                        return this.file;
+                }
+        }
+}
+
+/* eof */
@@ -0,0 +1,127 @@
+/* One line of a redundant A/B feed, a receive channel bound to a multicast group on one
+ * interface.  All lines feed the same peers and receive windows, the first copy of each
+ * sequence is kept and later copies are discarded as duplicates.
+ *
+ * Binding to the group address filters datagrams by destination on Linux such that each
+ * line only sees its own group.
+ */
+package hk.miru.javapgm;
+
+import static hk.miru.javapgm.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.ProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ReceiveLine
+{
+        private final GroupRequest gr;
+        private final DatagramChannel channel;
+        private final MembershipKey key;
+/* Highest ODATA sequence seen on this line per source */
+        private final Map<TransportSessionId, SequenceNumber> leads = new HashMap<>();
+        private long packetCount = 0;
+        private long firstCount = 0;
+        private long duplicateCount = 0;
+        private long lossCount = 0;
+
+        ReceiveLine (ProtocolFamily family, GroupRequest gr, int port) throws IOException {
+                checkNotNull (family);
+                checkNotNull (gr);
+
+                this.gr = gr;
+                this.channel = DatagramChannel.open (family);
+                this.channel.setOption (StandardSocketOptions.SO_REUSEADDR, true);
+                this.channel.configureBlocking (false);
+                this.channel.bind (new InetSocketAddress (gr.getMulticastAddress(), port));
+                this.key = this.channel.join (gr.getMulticastAddress(), NetworkInterface.getByIndex (gr.getNetworkInterfaceIndex()));
+        }
+
+        DatagramChannel getChannel() {
+                return this.channel;
+        }
+
+        void close() throws IOException {
+                this.key.drop();
+                this.channel.close();
+        }
+
+        void onPacket() {
+                this.packetCount++;
+        }
+
+/* Account a data packet, isFirst when this line delivered the first copy of the sequence.
+ * Only ODATA advances the per-line loss accounting, repairs arrive out of order.
+ */
+        void onData (TransportSessionId tsi, SequenceNumber sequence, boolean isOriginal, boolean isFirst) {
+                if (isFirst)
+                        this.firstCount++;
+                else
+                        this.duplicateCount++;
+                if (!isOriginal)
+                        return;
+                final SequenceNumber lead = this.leads.get (tsi);
+                if (null == lead || sequence.gt (lead)) {
+                        if (null != lead)
+                                this.lossCount += sequence.minus (lead).intValue() - 1;
+                        this.leads.put (tsi, sequence);
+                }
+        }
+
+/* Sources no longer present.
+ */
+        void removeSource (TransportSessionId tsi) {
+                this.leads.remove (tsi);
+        }
+
+        public GroupRequest getGroupRequest() {
+                return this.gr;
+        }
+
+        public InetAddress getGroupAddress() {
+                return this.gr.getMulticastAddress();
+        }
+
+        public long getPacketCount() {
+                return this.packetCount;
+        }
+
+/* Sequences this line delivered first.
+ */
+        public long getFirstCount() {
+                return this.firstCount;
+        }
+
+/* Sequences already delivered by another line, or repeated on this line.
+ */
+        public long getDuplicateCount() {
+                return this.duplicateCount;
+        }
+
+/* Original data sequences never seen on this line.
+ */
+        public long getLossCount() {
+                return this.lossCount;
+        }
+
+        @Override
+        public String toString() {
+                return "{ " +
+                        "\"group\": \"" + this.gr.getMulticastAddress() + "\"" +
+                      ", \"interfaceIndex\": " + this.gr.getNetworkInterfaceIndex() +
+                      ", \"packets\": " + this.packetCount +
+                      ", \"first\": " + this.firstCount +
+                      ", \"duplicates\": " + this.duplicateCount +
+                      ", \"lost\": " + this.lossCount +
+                       " }";
+        }
+}
+
+/* eof */
@@ -0,0 +1,230 @@
+/* Delivered APDUs published to one subscriber with demand driven backpressure.
+ *
+ * Subscriber demand is the delivery budget of the socket: each poll() releases at most
+ * the outstanding request count from the receive windows, everything else stays
+ * committed in the windows.  Without demand the socket continues to read, NAK and repair
+ * until the windows fill, then refuses new data as with any slow consumer, so pressure
+ * reaches the protocol rather than an unbounded application queue.
+ *
+ * The interfaces follow java.util.concurrent.Flow and the Reactive Streams specification
+ * whilst the library targets Java 7, adapting to Flow is one line per method.
+ *
+ * Items are SocketBuffers valid for the duration of onNext() as with receive(), taking a
+ * reference with get() retains one beyond that.  Fragmented APDUs are passed as a single
+ * buffer copied from the fragments, or with PGM_STREAMING fragment by fragment, each
+ * fragment counting against demand.  Streamed fragments beyond the demand are retained
+ * and passed first once further demand arrives.
+ *
+ * poll() is called by the thread driving the socket, request() and cancel() may be
+ * called from any thread including from within onNext().
+ */
+package hk.miru.javapgm;
+
+import static hk.miru.javapgm.Preconditions.checkArgument;
+import static hk.miru.javapgm.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+public class ReceivePublisher
+{
+        private static Logger LOG = LogManager.getLogger (ReceivePublisher.class.getName());
+
+/* Messages released per poll() call however large the demand */
+        private static final int MAX_BATCH = 1024;
+
+        public interface Subscriber {
+                void onSubscribe (Subscription subscription);
+                void onNext (SocketBuffer skb);
+                void onError (Throwable throwable);
+                void onComplete();
+        }
+
+        public interface Subscription {
+                void request (long n);
+                void cancel();
+        }
+
+        private final Socket sock;
+        private final List<SocketBuffer> skbs = new ArrayList<>();
+/* Streamed fragments read beyond the demand, each holding a reference */
+        private final Deque<SocketBuffer> backlog = new ArrayDeque<>();
+        private volatile SubscriptionImpl subscription = null;
+
+        public ReceivePublisher (Socket sock) {
+                checkNotNull (sock);
+                checkArgument (sock.canReceiveData);
+                this.sock = sock;
+        }
+
+/* Attach the one subscriber, further subscribers are refused with onError().
+ */
+        public synchronized void subscribe (Subscriber subscriber) {
+                checkNotNull (subscriber);
+                if (null != this.subscription && !this.subscription.isCancelled) {
+                        subscriber.onSubscribe (new SubscriptionImpl (null));
+                        subscriber.onError (new IllegalStateException ("Publisher already has a subscriber."));
+                        return;
+                }
+                final SubscriptionImpl subscription = new SubscriptionImpl (subscriber);
+                this.subscription = subscription;
+                subscriber.onSubscribe (subscription);
+        }
+
+/* Receive from the socket releasing up to the outstanding demand to the subscriber.
+ *
+ * Returns the socket status as receive(), PGM_IO_STATUS_NORMAL when data was released.
+ */
+        public Socket.IoStatus poll() throws IOException {
+                final SubscriptionImpl subscription = this.subscription;
+                if (null == subscription || subscription.isCancelled) {
+                        clearBacklog();
+                        return this.sock.service();
+                }
+
+/* Retained fragments first, in order */
+                final Deque<SocketBuffer> backlog = this.backlog;
+                if (!backlog.isEmpty()) {
+                        while (!backlog.isEmpty() && !subscription.isCancelled && subscription.demand.get() > 0) {
+                                final SocketBuffer skb = backlog.removeFirst();
+                                subscription.demand.decrementAndGet();
+                                subscription.subscriber.onNext (skb);
+                                skb.free();
+                        }
+                        if (!backlog.isEmpty())
+                                return statusOf (subscription, this.sock.service());
+                }
+
+                final long demand = subscription.demand.get();
+                if (demand <= 0)
+                        return statusOf (subscription, this.sock.service());
+
+                final List<SocketBuffer> skbs = this.skbs;
+                skbs.clear();
+                final Socket.IoStatus status = this.sock.receive (skbs, (int)Math.min (demand, MAX_BATCH));
+                if (Socket.IoStatus.IO_STATUS_NORMAL != status)
+                        return statusOf (subscription, status);
+
+                final boolean isStreaming = this.sock.isStreaming();
+                for (int i = 0; i < skbs.size() && !subscription.isCancelled;) {
+                        final SocketBuffer skb = skbs.get (i++);
+/* One APDU read per unit of demand may stream as several fragments */
+                        if (isStreaming && (!backlog.isEmpty() || subscription.demand.get() <= 0)) {
+                                backlog.addLast (skb.get());
+                                continue;
+                        }
+                        subscription.demand.decrementAndGet();
+                        if (!skb.isFragment() || isStreaming) {
+                                subscription.subscriber.onNext (skb);
+                                continue;
+                        }
+                        final int apdu_length = (int)skb.getFragmentOption().getApduLength();
+                        final SocketBuffer apdu = new SocketBuffer (apdu_length);
+                        apdu.setTransportSessionId (skb.getTransportSessionId());
+                        apdu.setSequenceNumber (skb.getSequenceNumber());
+                        apdu.setTimestamp (skb.getTimestamp());
+                        apdu.put (apdu_length);
+                        System.arraycopy (skb.getRawBytes(), skb.getDataOffset(), apdu.getRawBytes(), apdu.getDataOffset(), skb.getLength());
+                        int contiguous_length = skb.getLength();
+                        while (contiguous_length < apdu_length) {
+                                final SocketBuffer fragment = skbs.get (i++);
+                                System.arraycopy (fragment.getRawBytes(), fragment.getDataOffset(),
+                                                  apdu.getRawBytes(), apdu.getDataOffset() + contiguous_length,
+                                                  fragment.getLength());
+                                contiguous_length += fragment.getLength();
+                        }
+                        subscription.subscriber.onNext (apdu);
+                }
+                skbs.clear();
+                return status;
+        }
+
+        private void clearBacklog() {
+                SocketBuffer skb;
+                while (null != (skb = this.backlog.pollFirst()))
+                        skb.free();
+        }
+
+/* Terminal socket states end the subscription.
+ */
+        private Socket.IoStatus statusOf (SubscriptionImpl subscription, Socket.IoStatus status) {
+                switch (status) {
+                case IO_STATUS_EOF:
+                        if (subscription.terminate())
+                                subscription.subscriber.onComplete();
+                        break;
+                case IO_STATUS_ERROR:
+                        if (subscription.terminate())
+                                subscription.subscriber.onError (new IOException ("Socket receive failed."));
+                        break;
+                case IO_STATUS_RESET:
+                        if (this.sock.isAbortOnReset() && subscription.terminate())
+                                subscription.subscriber.onError (new IOException ("Unrecoverable data loss."));
+                        break;
+                default:
+                        break;
+                }
+                return status;
+        }
+
+/* Outstanding demand of the current subscriber.
+ */
+        public long getDemand() {
+                final SubscriptionImpl subscription = this.subscription;
+                return null == subscription ? 0 : Math.max (0, subscription.demand.get());
+        }
+
+        private class SubscriptionImpl implements Subscription {
+                private final Subscriber subscriber;
+                private final AtomicLong demand = new AtomicLong (0);
+                private volatile boolean isCancelled;
+
+                private SubscriptionImpl (Subscriber subscriber) {
+                        this.subscriber = subscriber;
+                        this.isCancelled = (null == subscriber);
+                }
+
+/* Demand is capped at Long.MAX_VALUE, effectively unbounded.
+ */
+                @Override
+                public void request (long n) {
+                        if (this.isCancelled)
+                                return;
+                        if (n <= 0) {
+                                if (terminate())
+                                        this.subscriber.onError (new IllegalArgumentException ("Non-positive request " + n));
+                                return;
+                        }
+                        long current, next;
+                        do {
+                                current = this.demand.get();
+                                next = current + n;
+                                if (next < 0)
+                                        next = Long.MAX_VALUE;
+                        } while (!this.demand.compareAndSet (current, next));
+                }
+
+                @Override
+                public void cancel() {
+                        if (terminate())
+                                LOG.debug ("Subscription cancelled.");
+                }
+
+/* Returns true on the first call only */
+                private synchronized boolean terminate() {
+                        if (this.isCancelled)
+                                return false;
+                        this.isCancelled = true;
+                        return true;
+                }
+        }
+}
+
+/* eof */
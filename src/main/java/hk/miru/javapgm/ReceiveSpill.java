@@ -0,0 +1,315 @@
+/* Overflow of contiguous undelivered APDUs to a memory-mapped file for slow consumers.
+ *
+ * With PGM_SPILL set a receive window that fills with data the application has not yet
+ * read moves its complete APDUs from the commit lead into the spill, releasing the window
+ * such that it continues to advance instead of refusing new data and repairing it again.
+ * Whilst the spill holds data every delivery passes through it, the application reads
+ * the spill in arrival order before any newer window data, preserving per source order.
+ *
+ * The spill is a ring of records within one file mapped once at full size, contents are
+ * transient and discarded when the file is next opened.  Record layout, all fields in
+ * network order, each record 8 byte aligned:
+ *
+ *   int   record length, header and payload, or WRAP to continue at the start
+ *   int   flags, MessageHandler.MSG_* or EVENT
+ *   byte  TSI[8]
+ *   int   sequence number of the first TPDU
+ *   int   sequence number following the last TPDU
+ *   int   payload length
+ *   int   data-destination port the APDU was sent to
+ *   long  receive timestamp in microseconds
+ *   byte  payload[payload length]
+ */
+package hk.miru.javapgm;
+
+import static hk.miru.javapgm.Preconditions.checkArgument;
+import static hk.miru.javapgm.Preconditions.checkNotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+public class ReceiveSpill
+{
+        private static Logger LOG = LogManager.getLogger (ReceiveSpill.class.getName());
+
+        public static final int SIZEOF_RECORD_HEADER    = 40;
+        public static final int WRAP                    = -1;
+/* Record carries no data, only the loss flags of its source */
+        public static final int EVENT                   = 0x100;
+
+        private static final int RECORD_LENGTH_OFFSET   = 0;
+        private static final int RECORD_FLAGS_OFFSET    = 4;
+        private static final int RECORD_TSI_OFFSET      = 8;
+        private static final int RECORD_SQN_OFFSET      = 16;
+        private static final int RECORD_NEXT_OFFSET     = 20;
+        private static final int RECORD_PAYLOAD_LENGTH_OFFSET = 24;
+        private static final int RECORD_DPORT_OFFSET    = 28;
+        private static final int RECORD_TIMESTAMP_OFFSET = 32;
+
+        private final File file;
+        private final int capacity;
+        private MappedByteBuffer ring;
+/* Oldest record, next record written, and bytes between including wrapped space */
+        private int head = 0, tail = 0, used = 0;
+        private int recordOffset = -1, recordLength = 0, recordPosition = 0;
+        private int nextSequence = 0;
+/* Statistics */
+        private long depth = 0;
+        private int maxUsed = 0;
+        private long spilledCount = 0, spilledBytes = 0;
+        private long deliveredCount = 0, deliveredBytes = 0;
+        private long fullCount = 0;
+
+/* Spill in file of capacity bytes, created or truncated.
+ */
+        public ReceiveSpill (File file, int capacity) throws IOException {
+/* Pre-conditions */
+                checkNotNull (file);
+                checkArgument (capacity > 2 * SIZEOF_RECORD_HEADER);
+
+                this.file = file;
+                this.capacity = capacity & ~7;
+                try (RandomAccessFile raf = new RandomAccessFile (file, "rw")) {
+                        raf.setLength (this.capacity);
+                        this.ring = raf.getChannel().map (FileChannel.MapMode.READ_WRITE, 0, this.capacity);
+                }
+                LOG.debug ("Spill {} of {} bytes.", file, this.capacity);
+        }
+
+/* A record of length payload bytes can be written.
+ */
+        public boolean hasRoom (int length) {
+                final int size = align (SIZEOF_RECORD_HEADER + length);
+                if (0 == this.used)
+                        return size <= this.capacity;
+                if (this.tail > this.head)
+                        return size <= this.capacity - this.tail || size <= this.head;
+                return size <= this.head - this.tail;
+        }
+
+        public boolean isEmpty() {
+                return 0 == this.used;
+        }
+
+/* Start a record of length payload bytes, filled by write() and published by commit().
+ * Returns false if the spill is full.
+ */
+        boolean begin (TransportSessionId tsi, int dport, int sequence, int next, long timestamp, int length, int flags) {
+                assert (-1 == this.recordOffset);
+                if (!hasRoom (length)) {
+                        this.fullCount++;
+                        return false;
+                }
+                final int size = align (SIZEOF_RECORD_HEADER + length);
+                if (0 == this.used) {
+                        this.head = this.tail = 0;
+                } else if (this.tail > this.head && size > this.capacity - this.tail) {
+/* Continue at the start, the remainder of the ring is skipped */
+                        this.ring.putInt (this.tail + RECORD_LENGTH_OFFSET, WRAP);
+                        this.used += this.capacity - this.tail;
+                        this.tail = 0;
+                }
+                final MappedByteBuffer ring = this.ring;
+                final int offset = this.tail;
+                ring.putInt (offset + RECORD_FLAGS_OFFSET, flags);
+                ring.position (offset + RECORD_TSI_OFFSET);
+                ring.put (tsi.getGlobalSourceId().getBytes(), 0, GlobalSourceId.SIZE);
+                ring.putShort ((short)tsi.getSourcePort());
+                ring.putInt (offset + RECORD_SQN_OFFSET, sequence);
+                ring.putInt (offset + RECORD_NEXT_OFFSET, next);
+                ring.putInt (offset + RECORD_PAYLOAD_LENGTH_OFFSET, length);
+                ring.putInt (offset + RECORD_DPORT_OFFSET, dport);
+                ring.putLong (offset + RECORD_TIMESTAMP_OFFSET, timestamp);
+                this.recordOffset = offset;
+                this.recordLength = size;
+                this.recordPosition = offset + SIZEOF_RECORD_HEADER;
+                return true;
+        }
+
+        void write (byte[] buffer, int offset, int length) {
+                assert (-1 != this.recordOffset);
+                assert (this.recordPosition + length <= this.recordOffset + this.recordLength);
+                this.ring.position (this.recordPosition);
+                this.ring.put (buffer, offset, length);
+                this.recordPosition += length;
+        }
+
+        void commit() {
+                assert (-1 != this.recordOffset);
+                this.ring.putInt (this.recordOffset + RECORD_LENGTH_OFFSET, this.recordLength);
+                this.tail = this.recordOffset + this.recordLength;
+                if (this.tail == this.capacity)
+                        this.tail = 0;
+                this.used += this.recordLength;
+                if (this.used > this.maxUsed)
+                        this.maxUsed = this.used;
+                this.depth++;
+                if (0 == (this.ring.getInt (this.recordOffset + RECORD_FLAGS_OFFSET) & EVENT)) {
+                        this.spilledCount++;
+                        this.spilledBytes += this.recordPosition - this.recordOffset - SIZEOF_RECORD_HEADER;
+                }
+                this.recordOffset = -1;
+        }
+
+/* Record a loss of the source in order with its data, flags MSG_RESET or MSG_GAP.
+ */
+        boolean event (TransportSessionId tsi, int flags) {
+                if (!begin (tsi, 0, 0, 0, 0, 0, flags | EVENT))
+                        return false;
+                commit();
+                return true;
+        }
+
+/* Flags of the oldest record, -1 if empty.
+ */
+        int peekFlags() {
+                if (0 == this.used)
+                        return -1;
+                skipWrap();
+                return this.ring.getInt (this.head + RECORD_FLAGS_OFFSET);
+        }
+
+/* Remove the oldest record into a new buffer, null for an event record.  The buffer
+ * carries a PGM header with the TSI and data-destination port as received, and the record
+ * flags as its message flags.  The sequence following the record is then available from
+ * getNextSequence().
+ */
+        SocketBuffer poll() {
+                if (0 == this.used)
+                        return null;
+                skipWrap();
+                final MappedByteBuffer ring = this.ring;
+                final int offset = this.head;
+                final int recordLength = ring.getInt (offset + RECORD_LENGTH_OFFSET);
+                final int flags = ring.getInt (offset + RECORD_FLAGS_OFFSET);
+                SocketBuffer skb = null;
+                if (0 == (flags & EVENT)) {
+                        final int length = ring.getInt (offset + RECORD_PAYLOAD_LENGTH_OFFSET);
+                        final byte[] tsi = new byte[8];
+                        ring.position (offset + RECORD_TSI_OFFSET);
+                        ring.get (tsi);
+                        final GlobalSourceId gsi = new GlobalSourceId (Arrays.copyOf (tsi, GlobalSourceId.SIZE));
+                        final int sport = ((tsi[6] & 0xff) << 8) | (tsi[7] & 0xff);
+                        skb = new SocketBuffer (Packet.SIZEOF_PGM_HEADER + length);
+                        skb.setHeaderOffset (0);
+                        final Header header = skb.getHeader();
+                        header.setType (Packet.PGM_ODATA);
+                        header.setGlobalSourceId (gsi);
+                        header.setSourcePort (sport);
+                        header.setDestinationPort (ring.getInt (offset + RECORD_DPORT_OFFSET));
+                        skb.reserve (Packet.SIZEOF_PGM_HEADER);
+                        skb.setTransportSessionId (new TransportSessionId (gsi, sport));
+                        skb.setMessageFlags (flags);
+                        skb.setSequenceNumber (SequenceNumber.valueOf (ring.getInt (offset + RECORD_SQN_OFFSET) & 0xffffffffL));
+                        skb.setTimestamp (ring.getLong (offset + RECORD_TIMESTAMP_OFFSET));
+                        skb.put (length);
+                        ring.position (offset + SIZEOF_RECORD_HEADER);
+                        ring.get (skb.getRawBytes(), skb.getDataOffset(), length);
+                        this.nextSequence = ring.getInt (offset + RECORD_NEXT_OFFSET);
+                        this.deliveredCount++;
+                        this.deliveredBytes += length;
+                }
+                this.head = offset + recordLength;
+                if (this.head == this.capacity)
+                        this.head = 0;
+                this.used -= recordLength;
+                this.depth--;
+                return skb;
+        }
+
+        private void skipWrap() {
+                if (WRAP == this.ring.getInt (this.head + RECORD_LENGTH_OFFSET)) {
+                        this.used -= this.capacity - this.head;
+                        this.head = 0;
+                }
+        }
+
+/* Sequence following the last record removed by poll().
+ */
+        int getNextSequence() {
+                return this.nextSequence;
+        }
+
+        public void close() {
+                this.ring = null;
+        }
+
+        public File getFile() {
+                return this.file;
+        }
+
+        public int getCapacity() {
+                return this.capacity;
+        }
+
+/* Records waiting, including loss events.
+ */
+        public long getDepth() {
+                return this.depth;
+        }
+
+        public int getDepthBytes() {
+                return this.used;
+        }
+
+/* Greatest depth in bytes since creation.
+ */
+        public int getMaxDepthBytes() {
+                return this.maxUsed;
+        }
+
+/* Cumulative APDUs and payload bytes moved into and read from the spill, rates follow
+ * from periodic samples.
+ */
+        public long getSpilledCount() {
+                return this.spilledCount;
+        }
+
+        public long getSpilledBytes() {
+                return this.spilledBytes;
+        }
+
+        public long getDeliveredCount() {
+                return this.deliveredCount;
+        }
+
+        public long getDeliveredBytes() {
+                return this.deliveredBytes;
+        }
+
+/* Records refused with the spill full, the window then constrains the lead as without a
+ * spill.
+ */
+        public long getFullCount() {
+                return this.fullCount;
+        }
+
+        private static int align (int length) {
+                return (length + 7) & ~7;
+        }
+
+        @Override
+        public String toString() {
+                return "{ " +
+                        "\"file\": \"" + this.file + "\"" +
+                      ", \"capacity\": " + this.capacity +
+                      ", \"depth\": " + this.depth +
+                      ", \"depthBytes\": " + this.used +
+                      ", \"maxDepthBytes\": " + this.maxUsed +
+                      ", \"spilled\": " + this.spilledCount +
+                      ", \"spilledBytes\": " + this.spilledBytes +
+                      ", \"delivered\": " + this.deliveredCount +
+                      ", \"deliveredBytes\": " + this.deliveredBytes +
+                      ", \"full\": " + this.fullCount +
+                       " }";
+        }
+}
+
+/* eof */
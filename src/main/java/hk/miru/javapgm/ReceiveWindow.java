@@ -2,6 +2,7 @@
  */
 package hk.miru.javapgm;
 
+import java.util.ArrayDeque;
 import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -11,6 +12,8 @@ import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.Marker;
 import org.apache.logging.log4j.MarkerManager;
 
+import javax.annotation.Nullable;
+
 public class ReceiveWindow {
     
         private static Logger LOG = LogManager.getLogger (ReceiveWindow.class.getName());
@@ -43,6 +46,7 @@ public class ReceiveWindow {
 	public static final long UINT32_MAX	= 4294967295L;
 	public static final int MAX_FRAGMENTS	= 16;
 	public static final int MAX_APDU	= MAX_FRAGMENTS * 1500;
+	public static final long TRAIL_SAMPLE_IVL = 10 * 1000;	/* microseconds */
 
 	protected TransportSessionId tsi;
 
@@ -50,11 +54,14 @@ public class ReceiveWindow {
 		long			nakBackoffExpiration;
 		long			nakRepeatExpiration;
 		long			repairDataExpiration;
+		long			nakTransmitTime;
 		PacketState		pktState;
 		int			nakTransmitCount;
 		int			ncfRetryCount;
 		int			dataRetryCount;
 		boolean			isContiguous;
+		boolean			isDelivered;
+		boolean			isSkipped;
 
 		public State (PacketState pktState) {
                         assert (null != pktState);
@@ -69,6 +76,8 @@ public class ReceiveWindow {
 	protected Queue<SocketBuffer>	nakBackoffQueue;
 	protected Queue<SocketBuffer>	waitNakConfirmQueue;
 	protected Queue<SocketBuffer>	waitDataQueue;
+/* First TPDU of each complete APDU awaiting out-of-order delivery */
+	protected Queue<SocketBuffer>	unorderedQueue;
 
 	protected long			lostCount;
 	protected long			fragmentCount;
@@ -82,6 +91,19 @@ public class ReceiveWindow {
 	protected boolean		isConstrained = true;
 	protected boolean		isDefined = false;
 	protected boolean		hasEvent = false;
+	protected boolean		isReadLimited = false;
+	protected boolean		isUnordered = false;
+	protected long			maxDeliveryDelay = 0;
+	protected int			maxFragments = MAX_FRAGMENTS;
+	protected long			maxApdu = MAX_APDU;
+	protected boolean		isStreaming = false;
+/* Sequences before the first observed to recover on joining a session */
+	protected int			lateJoinSqns = 0;
+/* First sequence not yet delivered before a restart, from a receiver checkpoint */
+	protected SequenceNumber	resumeSqn = null;
+/* Payload of the streamed APDU at the commit lead delivered so far */
+	protected long			streamOffset = 0;
+	protected SequenceNumber	streamFirst = null;
 	protected boolean		isFecAvailable = false;
 	protected long			transmissionGroupSize;
 	protected long			tgSqnShift;
@@ -91,6 +113,15 @@ public class ReceiveWindow {
 	protected long			minNakTransmitCount;
 	protected long			maxNakTransmitCount;
 	protected long			cumulativeLosses;
+	protected long			cumulativePlaceholders;
+	protected long			cumulativeSkips;
+	protected long			naksSuppressed;
+/* Advance rate of the advertised transmit window trail, sequences per second */
+	protected long			trailRate;
+	protected long			trailSampleTime;
+	protected SequenceNumber	trailSampleSequence;
+	protected final RoundTripEstimator nakConfirmRtt = new RoundTripEstimator();
+	protected final RoundTripEstimator repairDataRtt = new RoundTripEstimator();
 	protected long			bytesDelivered;
 	protected long			messagesDelivered;
 
@@ -168,6 +199,15 @@ public class ReceiveWindow {
 		state.nakTransmitCount++;
 	}
 
+/* Record transmission time of the first NAK for round trip sampling.
+ */
+	public static void setNakTransmitTime (SocketBuffer skb, long now) {
+                assert (null != skb);
+		State state = (State)skb.getControlBuffer();
+		if (0 == state.nakTransmitTime)
+			state.nakTransmitTime = now;
+	}
+
 	public static void incrementNcfRetryCount (SocketBuffer skb) {
                 assert (null != skb);
 		State state = (State)skb.getControlBuffer();
@@ -264,10 +304,14 @@ public class ReceiveWindow {
 		return getLength() == 0;
 	}
 
-	private boolean isFull() {
+	public boolean isFull() {
 		return getLength() == getMaxLength();
 	}
 
+	public long getMaxApdu() {
+		return this.maxApdu;
+	}
+
 /* Constructor for receive window.  Zero-length windows are not permitted.
  */        
 	public ReceiveWindow (
@@ -325,6 +369,7 @@ public class ReceiveWindow {
 		this.nakBackoffQueue = new ConcurrentLinkedQueue<> ();
 		this.waitNakConfirmQueue = new ConcurrentLinkedQueue<> ();
 		this.waitDataQueue = new ConcurrentLinkedQueue<> ();
+		this.unorderedQueue = new ArrayDeque<> ();
                 
 /* Post-conditions */
                 assert (getMaxLength() == alloc_sqns);
@@ -409,17 +454,20 @@ public class ReceiveWindow {
 				return Returns.RXW_MALFORMED;
 			}
 /* Protocol sanity check: maximum APDU length */                        
-			if (skb.getFragmentOption().getApduLength() > MAX_APDU) {
+			if (skb.getFragmentOption().getApduLength() > this.maxApdu) {
 				LOG.debug ("APDU greater than supported length.");
 				return Returns.RXW_MALFORMED;
 			}
 		}
 
-/* First packet of a session defines the window */                
+/* First packet of a session defines the window, previous lead needed for append to occur */
 		if (!this.isDefined) {
-			define (skb.getSequenceNumber().minus (1));     /* Previous lead needed for append to occur */
+			define (calculateJoinLead (skb.getSequenceNumber(),
+						   skb.getAsOriginalData().getDataTrail(),
+						   skb.hasJoinOption() ? skb.getJoinOption().getJoinMinimum() : null));
 		} else {
 			updateTrail (skb.getAsOriginalData().getDataTrail());
+			sampleTrailRate (now);
 		}
 
 /* Bounds checking */               
@@ -437,24 +485,72 @@ LOG.debug ("SKB:{} trail:{} commit:{} lead:{} (RXW_TRAIL:{})",
             skb.getSequenceNumber(), this.trail, this.commitLead, this.lead, this.rxw_trail);
 		if (skb.getSequenceNumber().lte (this.lead)) {
 			this.hasEvent = true;
-			return insert (skb);
+			status = insert (skb);
 		}
-
-		if (skb.getSequenceNumber().equals (this.lead.plus (1))) {
+		else if (skb.getSequenceNumber().equals (this.lead.plus (1))) {
 			this.hasEvent = true;
-			return append (skb, now);
+			status = append (skb, now);
+		}
+		else {
+			status = addPlaceholderRange (skb.getSequenceNumber(), now, nak_rb_expiry);
+			if (Returns.RXW_APPENDED == status) {
+				status = append (skb, now);
+				if (Returns.RXW_APPENDED == status)
+					status = Returns.RXW_MISSING;
+			}
 		}
 
-		status = addPlaceholderRange (skb.getSequenceNumber(), now, nak_rb_expiry);
-		if (Returns.RXW_APPENDED == status) {
-			status = append (skb, now);
-			if (Returns.RXW_APPENDED == status)
-				status = Returns.RXW_MISSING;
+		switch (status) {
+		case RXW_INSERTED:
+		case RXW_APPENDED:
+		case RXW_MISSING:
+/* Window holds its own reference, released when the trail advances past the skb */
+			skb.get();
+			if (this.isUnordered)
+				unorderedAdd (skb);
+			break;
+		default:
+			break;
 		}
 
 		return status;
 	}
 
+/* Unordered delivery: queue the APDU containing skb if it is now complete but waiting
+ * behind the commit lead.  The TPDUs remain in the window so recovery and duplicate
+ * detection proceed as normal, they are skipped when the commit lead reaches them.
+ */
+	private void unorderedAdd (SocketBuffer skb)
+	{
+/* Pre-conditions */
+                assert (null != skb);
+
+		final SequenceNumber first = skb.isFragment() ? skb.getFragmentOption().getFirstSequenceNumber() : skb.getSequenceNumber();
+
+/* Next in order, read() will deliver without delay */
+		if (!first.gt (this.commitLead))
+			return;
+
+		if (!isApduComplete (first))
+			return;
+
+		final SocketBuffer first_skb = peek (first);
+		final long apdu_len = first_skb.isFragment() ? first_skb.getFragmentOption().getApduLength() : first_skb.getLength();
+		long contiguous_length = 0;
+		SequenceNumber sequence = first;
+		do {
+			final SocketBuffer fragment = peek (sequence);
+			State state = (State)fragment.getControlBuffer();
+			state.isDelivered = true;
+			contiguous_length += fragment.getLength();
+			sequence = sequence.plus (1);
+		} while (apdu_len > contiguous_length);
+
+		this.unorderedQueue.offer (first_skb);
+		this.hasEvent = true;
+		LOG.trace (RX_WINDOW_MARKER, "APDU #{} queued for unordered delivery.", first);
+	}
+
 /* Trail is the next packet to commit upstream, lead is the leading edge
  * of the receive window with possible gaps inside, rxw_trail is the transmit
  * window trail for retransmit requests.
@@ -486,11 +582,72 @@ LOG.debug ("SKB:{} trail:{} commit:{} lead:{} (RXW_TRAIL:{})",
                 assert (this.isConstrained);
 	}
 
+/* Leading edge to define the window with so that recovery starts lateJoinSqns before
+ * the first sequence, bounded by the source advertised OPT_JOIN minimum, or without one
+ * by the transmit window trail.
+ */
+	private SequenceNumber calculateJoinLead (SequenceNumber first, SequenceNumber txw_trail, @Nullable SequenceNumber join_min)
+	{
+/* Pre-conditions */
+                assert (null != first);
+                assert (null != txw_trail);
+
+		if (null != this.resumeSqn) {
+			final SequenceNumber resume = this.resumeSqn;
+			this.resumeSqn = null;
+			if (resume.lte (first))
+				return calculateResumeLead (resume, first, txw_trail);
+/* Ahead of the source, already delivered up to resume, or an unrelated session */
+			if (resume.minus (first).longValue() < getMaxLength())
+				return resume.minus (1);
+			LOG.trace (RX_WINDOW_MARKER, "Checkpoint #{} unrelated to session at #{}, ignoring.", resume, first);
+		}
+
+		if (0 == this.lateJoinSqns)
+			return first.minus (1);
+
+/* Leave space for the first sequence itself */
+		SequenceNumber start = first.minus (Math.min (this.lateJoinSqns, getMaxLength() - 1));
+		final SequenceNumber bound = (null != join_min) ? join_min : txw_trail;
+		if (start.lt (bound))
+			start = bound.gt (first) ? first : bound;
+
+		if (start.lt (first))
+			LOG.trace (RX_WINDOW_MARKER, "Late join recovering {} sequences from #{}.",
+				   first.minus (start).longValue(), start);
+		return start.minus (1);
+	}
+
+/* Leading edge to define the window with on restarting from a checkpoint, recovering
+ * from the resume sequence whilst still within the transmit window trail.  Sequences the
+ * source no longer holds are counted as lost.
+ */
+	private SequenceNumber calculateResumeLead (SequenceNumber resume, SequenceNumber first, SequenceNumber txw_trail)
+	{
+/* Leave space for the first sequence itself */
+		SequenceNumber start = resume;
+		final SequenceNumber bound = first.minus (getMaxLength() - 1);
+		if (start.lt (bound))
+			start = bound;
+		if (start.lt (txw_trail))
+			start = txw_trail.gt (first) ? first : txw_trail;
+
+		if (start.gt (resume)) {
+			final long lost = start.minus (resume).longValue();
+			LOG.trace (RX_WINDOW_MARKER, "Resume lost {} sequences from #{} outside transmit window.", lost, resume);
+			this.cumulativeLosses += lost;
+		}
+		if (start.lt (first))
+			LOG.trace (RX_WINDOW_MARKER, "Resume recovering {} sequences from #{}.",
+				   first.minus (start).longValue(), start);
+		return start.minus (1);
+	}
+
 /* Update window with latest transmitted parameters.
  * 
  * Returns count of placeholders added into window, used to starting sending naks.
  */        
-	public int update (SequenceNumber txw_lead, SequenceNumber txw_trail, long now, long nak_rb_expiry)
+	public int update (SequenceNumber txw_lead, SequenceNumber txw_trail, @Nullable SequenceNumber join_min, long now, long nak_rb_expiry)
 	{
 /* Pre-conditions */            
                 assert (null != txw_lead);
@@ -499,12 +656,14 @@ LOG.debug ("SKB:{} trail:{} commit:{} lead:{} (RXW_TRAIL:{})",
 		LOG.debug ("update (txw-lead:{} txw-trail:{} nak-rb-expiry:{})",
                             txw_lead, txw_trail, nak_rb_expiry);
                 
+/* Window starts after the advertised lead, less any late join recovery */
 		if (!this.isDefined) {
-			define (txw_trail);
-			return 0;
+			define (calculateJoinLead (txw_lead.plus (1), txw_trail, join_min));
+			return updateLead (txw_lead, now, nak_rb_expiry);
 		}
 
 		updateTrail (txw_trail);
+		sampleTrailRate (now);
 		return updateLead (txw_lead, now, nak_rb_expiry);
 	}
 
@@ -576,6 +735,45 @@ LOG.debug ("SKB:{} trail:{} commit:{} lead:{} (RXW_TRAIL:{})",
 		}
 	}
 
+/* Track advance of the advertised transmit window trail over intervals of at least
+ * TRAIL_SAMPLE_IVL, smoothed with a gain of 1/8.
+ */
+	private void sampleTrailRate (long now)
+	{
+		if (this.isConstrained)
+			return;
+		if (null == this.trailSampleSequence) {
+			this.trailSampleTime = now;
+			this.trailSampleSequence = this.rxw_trail;
+			return;
+		}
+		final long elapsed = now - this.trailSampleTime;
+		if (elapsed < TRAIL_SAMPLE_IVL)
+			return;
+		final long rate = (this.rxw_trail.minus (this.trailSampleSequence).longValue() * 1000L * 1000L) / elapsed;
+		this.trailRate = (0 == this.trailRate) ? rate : this.trailRate + (rate - this.trailRate) / 8;
+		this.trailSampleTime = now;
+		this.trailSampleSequence = this.rxw_trail;
+	}
+
+/* Returns FALSE if the source transmit window is expected to have advanced past the
+ * sequence before a repair requested now could arrive, repair_ivl is the expected
+ * NAK to RDATA time or zero if unknown.
+ */
+	public boolean isRepairable (SequenceNumber sequence, long repair_ivl)
+	{
+/* Pre-conditions */
+                assert (null != sequence);
+
+/* Advertised trail is not meaningful until the window is unconstrained */
+		if (this.isConstrained)
+			return true;
+		if (sequence.lt (this.rxw_trail))
+			return false;
+		final long horizon = (this.trailRate * repair_ivl) / (1000L * 1000L);
+		return sequence.minus (this.rxw_trail).longValue() >= horizon;
+	}
+
 /* Add one placeholder to leading edge due to detected lost packet.
  */
 	private void addPlaceholder (long now, long nak_rb_expiry)
@@ -585,6 +783,7 @@ LOG.debug ("SKB:{} trail:{} commit:{} lead:{} (RXW_TRAIL:{})",
                 
 /* Advance lead */
 		this.lead = this.lead.plus (1);
+		this.cumulativePlaceholders++;
 
 		SocketBuffer skb = new SocketBuffer (this.max_tpdu);
 		skb.setControlBuffer (new State ());
@@ -722,8 +921,12 @@ LOG.debug ("SKB:{} trail:{} commit:{} lead:{} (RXW_TRAIL:{})",
 
 		final SocketBuffer first_skb = peek (apdu_first_sequence);
 /* First fragment out-of-bounds */
-		if (null == first_skb)
+		if (null == first_skb) {
+/* Leading fragments already streamed to the application */
+			if (this.isStreaming && this.streamOffset > 0 && apdu_first_sequence.equals (this.streamFirst))
+				return false;
 			return true;
+		}
 
 		state = (State)first_skb.getControlBuffer();
 		if (PacketState.PKT_LOST_DATA_STATE == state.pktState)
@@ -732,6 +935,24 @@ LOG.debug ("SKB:{} trail:{} commit:{} lead:{} (RXW_TRAIL:{})",
 		return false;
 	}
 
+/* Checks whether the first TPDU of a fragmented APDU was abandoned on the delivery
+ * deadline, further fragments are skipped with it rather than reported as loss.
+ */
+	private boolean isApduSkipped (SocketBuffer skb)
+	{
+/* Pre-conditions */
+                assert (null != skb);
+
+		if (!skb.isFragment())
+			return false;
+
+		final SocketBuffer first_skb = peek (skb.getFragmentOption().getFirstSequenceNumber());
+		if (null == first_skb)
+			return false;
+
+		return ((State)first_skb.getControlBuffer()).isSkipped;
+	}
+
 /* Returns true if skb is a parity packet with packet length not
  * matching the transmission group length without the variable-packet-length
  * flag set.
@@ -793,6 +1014,8 @@ LOG.debug ("SKB:{} trail:{} commit:{} lead:{} (RXW_TRAIL:{})",
 
 /* APDU fragments are already declared lost */
 		if (skb.isFragment() && isApduLost (skb)) {
+			if (isApduSkipped (skb))
+				state.isSkipped = true;
 			markLost (placeholder.getSequenceNumber());
 			return Returns.RXW_BOUNDS;
 		}
@@ -813,8 +1036,15 @@ LOG.debug ("SKB:{} trail:{} commit:{} lead:{} (RXW_TRAIL:{})",
 		}
 
 /* Statistics */
+		if (PacketState.PKT_WAIT_NCF_STATE == state.pktState ||
+		    PacketState.PKT_WAIT_DATA_STATE == state.pktState)
+		{
+			sampleRoundTrip (this.repairDataRtt, state, skb.getTimestamp());
+		}
 
-/* Replace placeholder skb with incoming skb */
+/* Replace placeholder skb with incoming skb, unlinking the placeholder from any NAK queue */
+		clearPacketState (placeholder);
+		placeholder.free();
 		final int index = (int)(skb.getSequenceNumber().longValue() % getMaxLength());
 		this.pdata[index] = skb;
 		setPacketState (skb, PacketState.PKT_HAVE_DATA_STATE);
@@ -870,9 +1100,11 @@ LOG.debug ("SKB:{} trail:{} commit:{} lead:{} (RXW_TRAIL:{})",
 
 /* Add lost-placeholder skb to window */
 			final int index = (int)(lost_skb.getSequenceNumber().longValue() % getMaxLength());
-			this.pdata[index] = skb;
+			this.pdata[index] = lost_skb;
 
-			setPacketState (skb, PacketState.PKT_LOST_DATA_STATE);
+			if (isApduSkipped (skb))
+				((State)lost_skb.getControlBuffer()).isSkipped = true;
+			setPacketState (lost_skb, PacketState.PKT_LOST_DATA_STATE);
 			LOG.debug ("APDU already declared lost, ignoring TPDU.");
 			return Returns.RXW_BOUNDS;
 		}
@@ -911,6 +1143,14 @@ LOG.debug ("SKB:{} trail:{} commit:{} lead:{} (RXW_TRAIL:{})",
 		return (this.committedCount > 0);
 	}
 
+/* Sequences between the commit lead and lead remain to be delivered, whether as data or
+ * as a notification of loss.
+ */
+	public boolean hasIncomingData()
+	{
+		return !isIncomingEmpty();
+	}
+
 /* Flush packets but instead of calling on_data append the contiguous data packets
  * to the provided scatter/gather vector.
  *
@@ -921,51 +1161,122 @@ LOG.debug ("SKB:{} trail:{} commit:{} lead:{} (RXW_TRAIL:{})",
  * Returns -1 on nothing read, returns length of bytes read, 0 is a valid read length.
  */
 	public int read (List<SocketBuffer> skbs)
+	{
+		return read (skbs, Integer.MAX_VALUE, Long.MAX_VALUE);
+	}
+
+/* As above but stop reading once maxMessages APDUs or maxBytes of payload have been
+ * appended, at least one complete APDU is always read if available.  isReadLimited()
+ * reports whether further contiguous data was left in the incoming window.
+ */
+	public int read (List<SocketBuffer> skbs, int maxMessages, long maxBytes)
 	{
 		int bytes_read = -1;
                 
 /* Pre-conditions */
                 assert (null != skbs);
-  //              assert (skbs.capacity() > 0);
+                assert (maxMessages > 0);
+                assert (maxBytes > 0);
                 
                 LOG.debug ("read (\"skbs.size\": {})", skbs.size());
                 
-		if (isIncomingEmpty())
-			return bytes_read;
-                
-		SocketBuffer skb = peek (this.commitLead);
-                assert (null != skb);
+		this.isReadLimited = false;
+		final long messages = this.messagesDelivered;
+		if (!isIncomingEmpty()) {
+			SocketBuffer skb = peek (this.commitLead);
+                        assert (null != skb);
                 
-		State state = (State)skb.getControlBuffer();
-		switch (state.pktState) {
-		case PKT_HAVE_DATA_STATE:
-			bytes_read = incomingRead (skbs);
-			break;
-		case PKT_LOST_DATA_STATE:
+			State state = (State)skb.getControlBuffer();
+			switch (state.pktState) {
+			case PKT_HAVE_DATA_STATE:
+				bytes_read = incomingRead (skbs, maxMessages, maxBytes);
+				break;
+			case PKT_LOST_DATA_STATE:
 /* Do not purge in situ sequence */
-			if (isCommitEmpty()) {
-				LOG.trace (RX_WINDOW_MARKER, "Removing lost trail from window");
-				removeTrail();
-			} else {
-				LOG.trace (RX_WINDOW_MARKER, "Locking trail at commit window");
-			}
+				if (isCommitEmpty()) {
+					LOG.trace (RX_WINDOW_MARKER, "Removing lost trail from window");
+					removeTrail();
+/* Release a run of sequences skipped on the delivery deadline as one gap */
+					if (state.isSkipped) {
+						while (!isIncomingEmpty()) {
+							state = (State)peek (this.commitLead).getControlBuffer();
+							if (PacketState.PKT_LOST_DATA_STATE != state.pktState || !state.isSkipped)
+								break;
+							removeTrail();
+						}
+					}
+				} else {
+					LOG.trace (RX_WINDOW_MARKER, "Locking trail at commit window");
+				}
 /* Fall through */
-		case PKT_BACK_OFF_STATE:
-		case PKT_WAIT_NCF_STATE:
-		case PKT_WAIT_DATA_STATE:
-		case PKT_HAVE_PARITY_STATE:
-			break;
+			case PKT_BACK_OFF_STATE:
+			case PKT_WAIT_NCF_STATE:
+			case PKT_WAIT_DATA_STATE:
+			case PKT_HAVE_PARITY_STATE:
+				break;
 
-		case PKT_COMMIT_DATA_STATE:
-		case PKT_ERROR_STATE:
-		default:
-			System.exit (-1);
-			break;
+			case PKT_COMMIT_DATA_STATE:
+			case PKT_ERROR_STATE:
+			default:
+				System.exit (-1);
+				break;
+			}
+		}
+
+/* Complete APDUs waiting behind a gap */
+		if (!this.unorderedQueue.isEmpty() && !this.isReadLimited) {
+			final int messages_remaining = maxMessages - (int)(this.messagesDelivered - messages);
+			final long bytes_remaining = maxBytes - Math.max (0, bytes_read);
+			if (messages_remaining > 0 && bytes_remaining > 0) {
+				final int unordered_bytes = unorderedRead (skbs, messages_remaining, bytes_remaining);
+				if (unordered_bytes >= 0)
+					bytes_read = Math.max (0, bytes_read) + unordered_bytes;
+			}
+			this.isReadLimited = !this.unorderedQueue.isEmpty();
 		}
 
 		return bytes_read;
 	}
 
+/* Read queued APDUs ahead of the commit lead.  The TPDUs are not committed, they are
+ * released when the commit lead passes over them.
+ *
+ * Returns -1 on nothing read, otherwise count of bytes read.
+ */
+	private int unorderedRead (List<SocketBuffer> skbs, int maxMessages, long maxBytes)
+	{
+		int bytes_read = 0;
+		int data_read = 0;
+
+/* Pre-conditions */
+                assert (null != skbs);
+
+		while (!this.unorderedQueue.isEmpty() &&
+		       data_read < maxMessages &&
+		       bytes_read < maxBytes)
+		{
+			SocketBuffer skb = this.unorderedQueue.poll();
+/* Window trail pulled past APDU before delivery */
+			if (skb != peek (skb.getSequenceNumber()))
+				continue;
+			final long apdu_len = skb.isFragment() ? skb.getFragmentOption().getApduLength() : skb.getLength();
+			int contiguous_length = 0;
+			do {
+				skbs.add (skb);
+				contiguous_length += skb.getLength();
+				if (apdu_len == contiguous_length)
+					break;
+				skb = peek (skb.getSequenceNumber().plus (1));
+			} while (null != skb);
+			bytes_read += contiguous_length;
+			data_read++;
+		}
+
+		this.bytesDelivered    += bytes_read;
+		this.messagesDelivered += data_read;
+		return data_read > 0 ? bytes_read : -1;
+	}
+
 /* Remove lost sequences from the trailing edge of the window.  lost sequence
  * at lead of commit window invalidates all parity-data packets as any
  * transmission group is now unrecoverable.
@@ -978,34 +1289,47 @@ LOG.debug ("SKB:{} trail:{} commit:{} lead:{} (RXW_TRAIL:{})",
                 assert (!isEmpty());
             
 		SocketBuffer skb = peek (this.trail);
+		final State state = (State)skb.getControlBuffer();
+		final boolean was_lost = PacketState.PKT_LOST_DATA_STATE == state.pktState;
 		clearPacketState (skb);
 		this.size -= skb.getLength();
-/* Remove reference to skb */
+/* Pending unordered delivery is abandoned with the skb */
+		if (state.isDelivered)
+			this.unorderedQueue.remove (skb);
+/* Release window reference to skb, the application may still retain it */
+		this.pdata[(int)(this.trail.longValue() % getMaxLength())] = null;
+		skb.free();
 		skb = null;
 		final boolean data_loss = this.trail.equals (this.commitLead);
 		this.trail = this.trail.plus (1);
 		if (data_loss) {
-/* Data-loss */
+/* Data-loss, lost sequences were already counted when marked */
 			this.commitLead = this.commitLead.plus (1);
-			this.cumulativeLosses++;
+			if (state.isSkipped)
+				this.cumulativeSkips++;
+			else if (!was_lost)
+				this.cumulativeLosses++;
 			LOG.trace (RX_WINDOW_MARKER, "Data loss due to pulled trailing edge, fragment count {}", this.fragmentCount);
 			return 1;
 		}
 		return 0;
 	}
 
-/* Read contiguous APDU-grouped sequences from the incoming window.
+/* Read contiguous APDU-grouped sequences from the incoming window, up to the provided
+ * message and byte budget.
  *
  * Side effects:
  *
  * 1) increments statics for window messages and bytes read.
+ * 2) sets isReadLimited if the budget expired with data remaining.
  *
  * Returns count of bytes read.
  */
-	private int incomingRead (List<SocketBuffer> skbs)
+	private int incomingRead (List<SocketBuffer> skbs, int maxMessages, long maxBytes)
 	{
 		int bytes_read = 0;
 		int data_read = 0;
+		int skipped = 0;
                 
 /* Pre-conditions */
                 assert (null != skbs);
@@ -1017,18 +1341,89 @@ LOG.debug ("SKB:{} trail:{} commit:{} lead:{} (RXW_TRAIL:{})",
 		do {
 			SocketBuffer skb = peek (this.commitLead);
                         assert (null != skb);
-			if (isApduComplete (skb.isFragment() ? skb.getFragmentOption().getFirstSequenceNumber() : skb.getSequenceNumber()))
+			if (this.isStreaming && skb.isFragment() && !((State)skb.getControlBuffer()).isDelivered)
 			{
+				final int stream_bytes = incomingReadStream (skbs);
+				if (stream_bytes < 0)
+					break;
+				bytes_read += stream_bytes;
+				data_read  ++;
+			}
+			else if (isApduComplete (skb.isFragment() ? skb.getFragmentOption().getFirstSequenceNumber() : skb.getSequenceNumber()))
+			{
+				if (((State)skb.getControlBuffer()).isDelivered) {
+/* Already delivered out of order, commit without reading */
+					incomingReadApdu (null);
+					skipped++;
+					continue;
+				}
 				bytes_read += incomingReadApdu (skbs);
 				data_read  ++;
 			} else {
 				break;
 			}
+			if (data_read >= maxMessages || bytes_read >= maxBytes) {
+				this.isReadLimited = !isIncomingEmpty();
+				break;
+			}
 		} while (!isIncomingEmpty());
 
 		this.bytesDelivered    += bytes_read;
 		this.messagesDelivered += data_read;
-		return data_read > 0 ? bytes_read : -1;
+		return (data_read > 0 || skipped > 0) ? bytes_read : -1;
+	}
+
+/* Streaming read of the fragmented APDU at the commit lead, contiguous fragments are
+ * committed without waiting for the complete APDU.  Stops at the end of the APDU,
+ * streamOffset tracks the payload delivered of a partially read APDU.
+ *
+ * Returns count of bytes read, or -1 if no fragment could be read.
+ */
+	private int incomingReadStream (List<SocketBuffer> skbs)
+	{
+		int contiguous_length = 0;
+
+		LOG.debug ("incomingReadStream (\"skbs.size\": {})", skbs.size());
+
+		SocketBuffer skb = peek (this.commitLead);
+		while (null != skb &&
+		       PacketState.PKT_HAVE_DATA_STATE == ((State)skb.getControlBuffer()).pktState &&
+		       skb.isFragment())
+		{
+			final OptionFragment fragment = skb.getFragmentOption();
+
+/* First fragment starts a new APDU */
+			if (fragment.getFirstSequenceNumber().equals (skb.getSequenceNumber())) {
+				this.streamOffset = 0;
+				this.streamFirst = skb.getSequenceNumber();
+			}
+
+/* Protocol sanity check: fragment continues the stream within the APDU */
+			if (fragment.getFragmentOffset() != this.streamOffset ||
+			    fragment.getApduLength() > this.maxApdu ||
+			    this.streamOffset + skb.getLength() > fragment.getApduLength())
+			{
+				if (contiguous_length > 0)
+					break;
+				markLost (this.commitLead);
+				this.streamOffset = 0;
+				return -1;
+			}
+
+			setPacketState (skb, PacketState.PKT_COMMIT_DATA_STATE);
+			skbs.add (skb);
+			contiguous_length += skb.getLength();
+			this.streamOffset += skb.getLength();
+			this.commitLead = this.commitLead.plus (1);
+
+/* Last fragment completes the APDU */
+			if (this.streamOffset == fragment.getApduLength()) {
+				this.streamOffset = 0;
+				break;
+			}
+			skb = peek (this.commitLead);
+		}
+		return contiguous_length > 0 ? contiguous_length : -1;
 	}
 
 /* Returns TRUE if transmission group is lost.
@@ -1060,7 +1455,7 @@ LOG.debug ("SKB:{} trail:{} commit:{} lead:{} (RXW_TRAIL:{})",
  * Packets with single fragment fragment headers must be normalised as regular
  * packets before calling.
  *
- * APDUs exceeding PGM_MAX_FRAGMENTS or PGM_MAX_APDU length will be discarded.
+ * APDUs exceeding maxFragments or maxApdu length will be discarded.
  *
  * Returns FALSE if APDU is incomplete or longer than max_len sequences.
  */
@@ -1079,7 +1474,7 @@ LOG.debug ("SKB:{} trail:{} commit:{} lead:{} (RXW_TRAIL:{})",
 		final SequenceNumber tg_sqn = transmissionGroupSequenceNumber (firstSequence);
 
 /* Protocol sanity check: maximum length */
-		if (apdu_size > MAX_APDU) {
+		if (apdu_size > this.maxApdu) {
 			markLost (firstSequence);
 			return false;
 		}
@@ -1115,7 +1510,7 @@ LOG.debug ("SKB:{} trail:{} commit:{} lead:{} (RXW_TRAIL:{})",
 			}
 
 /* Protocol sanity check: maximum number of fragments per apdu */
-			if (++contiguous_tpdus > MAX_FRAGMENTS) {
+			if (++contiguous_tpdus > this.maxFragments) {
 				markLost (firstSequence);
 				return false;
 			}
@@ -1134,17 +1529,15 @@ LOG.debug ("SKB:{} trail:{} commit:{} lead:{} (RXW_TRAIL:{})",
 	}
 
 /* Read one APDU consisting of one or more TPDUs.  Target array is guaranteed
- * to be big enough to store complete APDU.
+ * to be big enough to store complete APDU, a null target commits the APDU without
+ * reading.
  */
-	private int incomingReadApdu (List<SocketBuffer> skbs)
+	private int incomingReadApdu (@Nullable List<SocketBuffer> skbs)
 	{
 		int contiguous_length = 0;
 		int count = 0;
                 
-/* Pre-conditions */
-                assert (null != skbs);
-                
-		LOG.debug ("incomingReadApdu (\"skbs.size\": {})", skbs.size());
+		LOG.debug ("incomingReadApdu (\"skbs.size\": {})", null == skbs ? 0 : skbs.size());
                 
 		SocketBuffer skb = peek (this.commitLead);
                 assert (null != skb);
@@ -1154,7 +1547,8 @@ LOG.debug ("SKB:{} trail:{} commit:{} lead:{} (RXW_TRAIL:{})",
 
 		do {
 			setPacketState (skb, PacketState.PKT_COMMIT_DATA_STATE);
-			skbs.add (skb);
+			if (null != skbs)
+				skbs.add (skb);
 			contiguous_length += skb.getLength();
 			this.commitLead = this.commitLead.plus (1);
 			if (apdu_len == contiguous_length)
@@ -1245,7 +1639,8 @@ LOG.debug ("SKB:{} trail:{} commit:{} lead:{} (RXW_TRAIL:{})",
 			break;
 		case PKT_LOST_DATA_STATE:
 			this.lostCount++;
-			this.cumulativeLosses++;
+			if (!state.isSkipped)
+				this.cumulativeLosses++;
 			this.hasEvent = true;
 			break;
 		case PKT_ERROR_STATE:
@@ -1313,6 +1708,115 @@ LOG.debug ("SKB:{} trail:{} commit:{} lead:{} (RXW_TRAIL:{})",
 		setPacketState (skb, PacketState.PKT_LOST_DATA_STATE);
 	}
 
+/* Mark an existing sequence lost on expiry of the delivery deadline.  Skipped sequences
+ * are reported as a gap rather than data loss.
+ */
+	public void markSkipped (SequenceNumber sequence)
+	{
+/* Pre-conditions */
+                assert (null != sequence);
+                assert (!isEmpty());
+
+		LOG.debug ("markSkipped (\"sequence\": {})", sequence);
+
+		SocketBuffer skb = peek (sequence);
+                assert (null != skb);
+
+		((State)skb.getControlBuffer()).isSkipped = true;
+		setPacketState (skb, PacketState.PKT_LOST_DATA_STATE);
+	}
+
+/* Returns the delivery deadline of the first missing sequence in the incoming window,
+ * zero if there is no deadline pending.
+ */
+	public long firstDeliveryDeadline()
+	{
+		if (0 == this.maxDeliveryDelay)
+			return 0;
+		if (this.nakBackoffQueue.isEmpty() &&
+		    this.waitNakConfirmQueue.isEmpty() &&
+		    this.waitDataQueue.isEmpty())
+		{
+			return 0;
+		}
+
+		for (SequenceNumber sequence = this.commitLead;
+		     sequence.lte (this.lead);
+		     sequence = sequence.plus (1))
+		{
+			final SocketBuffer skb = peek (sequence);
+			switch (((State)skb.getControlBuffer()).pktState) {
+			case PKT_BACK_OFF_STATE:
+			case PKT_WAIT_NCF_STATE:
+			case PKT_WAIT_DATA_STATE:
+/* Placeholder timestamp is the time of loss detection */
+				return skb.getTimestamp() + this.maxDeliveryDelay;
+			default:
+				break;
+			}
+		}
+		return 0;
+	}
+
+/* Abandon recovery of missing sequences that have blocked the commit lead longer than
+ * the maximum delivery delay.  Fragments of APDUs that can no longer complete are
+ * skipped with them so later data is released.
+ *
+ * Returns count of sequences skipped.
+ */
+	public int skipExpired (long now)
+	{
+		int skipped = 0;
+
+		if (0 == this.maxDeliveryDelay)
+			return 0;
+
+		LOG.debug ("skipExpired (\"now\": {})", now);
+
+		for (SequenceNumber sequence = this.commitLead;
+		     sequence.lte (this.lead);
+		     sequence = sequence.plus (1))
+		{
+			final SocketBuffer skb = peek (sequence);
+			final State state = (State)skb.getControlBuffer();
+			switch (state.pktState) {
+			case PKT_BACK_OFF_STATE:
+			case PKT_WAIT_NCF_STATE:
+			case PKT_WAIT_DATA_STATE:
+				if (now < skb.getTimestamp() + this.maxDeliveryDelay)
+					return skipped;
+				markSkipped (sequence);
+				skipped++;
+/* Preceding fragments of the same APDU */
+				for (SequenceNumber previous = sequence.minus (1);
+				     previous.gte (this.commitLead);
+				     previous = previous.minus (1))
+				{
+					final SocketBuffer fragment = peek (previous);
+					if (PacketState.PKT_HAVE_DATA_STATE != ((State)fragment.getControlBuffer()).pktState ||
+					    !fragment.isFragment() ||
+					    isApduComplete (fragment.getFragmentOption().getFirstSequenceNumber()))
+					{
+						break;
+					}
+					markSkipped (previous);
+					skipped++;
+				}
+				break;
+			case PKT_HAVE_DATA_STATE:
+/* Following fragments of an abandoned APDU */
+				if (skb.isFragment() && isApduLost (skb)) {
+					markSkipped (sequence);
+					skipped++;
+				}
+				break;
+			default:
+				break;
+			}
+		}
+		return skipped;
+	}
+
 /* Received a uni/multicast ncf, search for a matching nak & tag or extend window if
  * beyond lead
  *
@@ -1322,10 +1826,71 @@ LOG.debug ("SKB:{} trail:{} commit:{} lead:{} (RXW_TRAIL:{})",
  * PGM_RXW_DUPLICATE - data already exists at sequence.
  * PGM_RXW_APPENDED - lead is extended with state set waiting for data.
  */        
-	private int confirm (SequenceNumber sequence)
+	public Returns confirm (SequenceNumber sequence, long now, long nak_rdata_expiry, long nak_rb_expiry)
 	{
+/* Pre-conditions */
                 assert (null != sequence);
-		return -1;
+
+		LOG.debug ("confirm (\"sequence\": {} \"nak-rdata-expiry\": {} \"nak-rb-expiry\": {})",
+                           sequence, nak_rdata_expiry, nak_rb_expiry);
+
+/* NCFs do not define the transmit window */
+		if (!this.isDefined)
+			return Returns.RXW_BOUNDS;
+
+/* Sequence already committed */
+		if (sequence.lt (this.commitLead)) {
+			if (sequence.gte (this.trail))
+				return Returns.RXW_DUPLICATE;
+			else
+				return Returns.RXW_BOUNDS;
+		}
+
+		if (sequence.lte (this.lead))
+			return recoveryUpdate (sequence, now, nak_rdata_expiry);
+
+/* Protocol sanity check: confirmed sequence jumps too far ahead */
+		if (sequence.minus (this.lead).longValue() > ((UINT32_MAX/2)-1))
+			return Returns.RXW_BOUNDS;
+
+/* Fill the gap before the confirmed sequence with back-off placeholders */
+		if (!this.lead.plus (1).equals (sequence)) {
+			updateLead (sequence.minus (1), now, nak_rb_expiry);
+			if (!this.lead.plus (1).equals (sequence))
+				return Returns.RXW_BOUNDS;	/* Constrained by commit window */
+		}
+		return recoveryAppend (now, nak_rdata_expiry);
+	}
+
+/* Received a peer NAK from another receiver on the segment, a sequence pending in
+ * back-off is treated as if this receiver sent the NAK itself and waits for the NCF.
+ *
+ * Returns:
+ * PGM_RXW_BOUNDS - sequence is outside of window, or window is undefined.
+ * PGM_RXW_UPDATED - pending NAK suppressed, waiting for NCF.
+ * PGM_RXW_DUPLICATE - sequence is not in back-off.
+ */
+	public Returns suppress (SequenceNumber sequence, long nak_rpt_expiry)
+	{
+/* Pre-conditions */
+                assert (null != sequence);
+
+		if (!this.isDefined)
+			return Returns.RXW_BOUNDS;
+
+		if (sequence.lt (this.commitLead) || sequence.gt (this.lead))
+			return Returns.RXW_BOUNDS;
+
+		SocketBuffer skb = peek (sequence);
+                assert (null != skb);
+		State state = (State)skb.getControlBuffer();
+		if (PacketState.PKT_BACK_OFF_STATE != state.pktState)
+			return Returns.RXW_DUPLICATE;
+
+		state.nakRepeatExpiration = nak_rpt_expiry;
+		setPacketState (skb, PacketState.PKT_WAIT_NCF_STATE);
+		this.naksSuppressed++;
+		return Returns.RXW_UPDATED;
 	}
 
 /* Update an incoming sequence with state transition to WAIT-DATA.
@@ -1334,10 +1899,39 @@ LOG.debug ("SKB:{} trail:{} commit:{} lead:{} (RXW_TRAIL:{})",
  * PGM_RXW_UPDATED - receiver state updated, waiting for data.
  * PGM_RXW_DUPLICATE - data already exists at sequence.
  */        
-	private int recoveryUpdate (SequenceNumber sequence)
+	private Returns recoveryUpdate (SequenceNumber sequence, long now, long nak_rdata_expiry)
 	{
+/* Pre-conditions */
                 assert (null != sequence);
-		return -1;
+
+		SocketBuffer skb = peek (sequence);
+                assert (null != skb);
+		State state = (State)skb.getControlBuffer();
+
+		if (PacketState.PKT_WAIT_NCF_STATE == state.pktState)
+			sampleRoundTrip (this.nakConfirmRtt, state, now);
+
+		switch (state.pktState) {
+		case PKT_WAIT_NCF_STATE:
+/* First time through, pending NAK suppressed by confirmation of another receivers NAK */
+		case PKT_BACK_OFF_STATE:
+/* Re-queue to keep the wait data queue in expiration order */
+		case PKT_WAIT_DATA_STATE:
+			state.repairDataExpiration = nak_rdata_expiry;
+			setPacketState (skb, PacketState.PKT_WAIT_DATA_STATE);
+			return Returns.RXW_UPDATED;
+
+		case PKT_HAVE_DATA_STATE:
+		case PKT_HAVE_PARITY_STATE:
+		case PKT_COMMIT_DATA_STATE:
+		case PKT_LOST_DATA_STATE:
+			break;
+
+		default:
+			System.exit (-1);
+		}
+
+		return Returns.RXW_DUPLICATE;
 	}
 
 /* Append an skb to the incoming window with WAIT-DATA state.
@@ -1346,9 +1940,111 @@ LOG.debug ("SKB:{} trail:{} commit:{} lead:{} (RXW_TRAIL:{})",
  * PGM_RXW_APPENDED - lead is extended with state set waiting for data.
  * PGM_RXW_BOUNDS   - constrained by commit window
  */        
-	private int recoveryAppend()
+	private Returns recoveryAppend (long now, long nak_rdata_expiry)
+	{
+		if (isFull()) {
+			if (isCommitEmpty()) {
+				LOG.trace (RX_WINDOW_MARKER, "Receive window full on confirmed sequence.");
+				removeTrail();
+			} else {
+				return Returns.RXW_BOUNDS;	/* Constrained by commit window */
+			}
+		}
+
+/* Advance leading edge */
+		this.lead = this.lead.plus (1);
+
+		SocketBuffer skb = new SocketBuffer (this.max_tpdu);
+		skb.setControlBuffer (new State ());
+		skb.setTimestamp (now);
+		skb.setSequenceNumber (this.lead);
+		State state = (State)skb.getControlBuffer();
+		state.repairDataExpiration = nak_rdata_expiry;
+
+/* Add skb to window */
+		final int index = (int)(this.lead.longValue() % getMaxLength());
+		this.pdata[index] = skb;
+
+		setPacketState (skb, PacketState.PKT_WAIT_DATA_STATE);
+
+/* Post-conditions */
+                assert (getLength() > 0);
+                assert (getLength() <= getMaxLength());
+                assert (getIncomingLength() > 0);
+
+		return Returns.RXW_APPENDED;
+	}
+
+/* Sample a NAK round trip unless the NAK was repeated and the reply is ambiguous.
+ */
+	private void sampleRoundTrip (RoundTripEstimator estimator, State state, long now)
+	{
+		if (1 != state.nakTransmitCount || 0 == state.nakTransmitTime)
+			return;
+		if (now < state.nakTransmitTime)
+			return;
+		estimator.update (now - state.nakTransmitTime);
+	}
+
+	public void setUnordered (boolean isUnordered)
+	{
+		this.isUnordered = isUnordered;
+	}
+
+/* Maximum count of fragments per APDU, limits above the default of MAX_FRAGMENTS also
+ * lift the MAX_APDU length limit.
+ */
+	public void setMaxFragments (int maxFragments)
+	{
+                assert (maxFragments > 0);
+		this.maxFragments = maxFragments;
+		this.maxApdu = maxFragments > MAX_FRAGMENTS ? (long)maxFragments * this.max_tpdu : MAX_APDU;
+	}
+
+/* Streaming delivery of fragmented APDUs as contiguous fragments arrive.
+ */
+	public void setStreaming (boolean isStreaming)
+	{
+		this.isStreaming = isStreaming;
+	}
+
+/* Sequences before the first observed to recover on joining a session, zero to start
+ * delivery at the lead.
+ */
+	public void setLateJoin (int sqns)
+	{
+		this.lateJoinSqns = sqns;
+	}
+
+/* Resume delivery of a session from sequence resume after a receiver restart, taking
+ * precedence over late join.  Only valid before the window is defined.
+ */
+	public void setResume (SequenceNumber resume)
+	{
+		assert (!this.isDefined);
+		this.resumeSqn = resume;
+	}
+
+/* Next sequence to be delivered, null before the window is defined.
+ */
+	public SequenceNumber getCommitLead()
+	{
+		return this.isDefined ? this.commitLead : null;
+	}
+
+/* Trail of the window, null before the window is defined.
+ */
+	public SequenceNumber getTrail()
+	{
+		return this.isDefined ? this.rxw_trail : null;
+	}
+
+/* Maximum time in microseconds a missing sequence may block delivery, zero to wait for
+ * recovery to complete or fail.
+ */
+	public void setMaxDeliveryDelay (long maxDeliveryDelay)
 	{
-		return -1;
+		this.maxDeliveryDelay = maxDeliveryDelay;
 	}
 
 	public boolean hasEvent()
@@ -1366,6 +2062,50 @@ LOG.debug ("SKB:{} trail:{} commit:{} lead:{} (RXW_TRAIL:{})",
 		return this.cumulativeLosses;
 	}
 
+	public long getCumulativePlaceholders()
+	{
+		return this.cumulativePlaceholders;
+	}
+
+	public long getCumulativeSkips()
+	{
+		return this.cumulativeSkips;
+	}
+
+	public long getNaksSuppressed()
+	{
+		return this.naksSuppressed;
+	}
+
+/* Round trip from NAK to the confirming NCF.
+ */
+	public RoundTripEstimator getNakConfirmRoundTrip()
+	{
+		return this.nakConfirmRtt;
+	}
+
+/* Round trip from NAK to the repair data.
+ */
+	public RoundTripEstimator getRepairDataRoundTrip()
+	{
+		return this.repairDataRtt;
+	}
+
+	public boolean isReadLimited()
+	{
+		return this.isReadLimited;
+	}
+
+	public long getBytesDelivered()
+	{
+		return this.bytesDelivered;
+	}
+
+	public long getMessagesDelivered()
+	{
+		return this.messagesDelivered;
+	}
+
 /* Dump window state */        
         @Override
 	public String toString() {
@@ -1387,6 +2127,11 @@ LOG.debug ("SKB:{} trail:{} commit:{} lead:{} (RXW_TRAIL:{})",
 				", \"isDefined\": " + this.isDefined + "" +
 				", \"hasEvent\": " + this.hasEvent + "" +
 				", \"cumulativeLosses\": " + this.cumulativeLosses + "" +
+				", \"cumulativeSkips\": " + this.cumulativeSkips + "" +
+				", \"naksSuppressed\": " + this.naksSuppressed + "" +
+				", \"trailRate\": " + this.trailRate + "" +
+				", \"nakConfirmRtt\": " + this.nakConfirmRtt + "" +
+				", \"repairDataRtt\": " + this.repairDataRtt + "" +
 				", \"bytesDelivered\": " + this.bytesDelivered + "" +
 				", \"messagesDelivered\": " + this.messagesDelivered + "" +
 				", \"size\": " + this.size + "" +
@@ -0,0 +1,66 @@
+/* Smoothed round trip time estimator for NAK recovery timing.
+ *
+ * Jacobson/Karels estimation as per TCP (RFC 6298) with gains of 1/8 for the
+ * smoothed time and 1/4 for the mean deviation, all times in microseconds.
+ */
+package hk.miru.javapgm;
+
+import static hk.miru.javapgm.Preconditions.checkArgument;
+
+public class RoundTripEstimator
+{
+        private long srtt = 0;
+        private long rttvar = 0;
+        private long samples = 0;
+
+/* Add a round trip sample taken from an unambiguous exchange, i.e. a first NAK
+ * transmission only (Karn's algorithm).
+ */
+        public void update (long sample) {
+/* Pre-conditions */
+                checkArgument (sample >= 0);
+
+                if (0 == this.samples) {
+                        this.srtt = sample;
+                        this.rttvar = sample / 2;
+                } else {
+                        final long delta = Math.abs (this.srtt - sample);
+                        this.rttvar += (delta - this.rttvar) / 4;
+                        this.srtt += (sample - this.srtt) / 8;
+                }
+                this.samples++;
+        }
+
+        public boolean hasEstimate() {
+                return this.samples > 0;
+        }
+
+        public long getSmoothedRoundTripTime() {
+                return this.srtt;
+        }
+
+        public long getVariance() {
+                return this.rttvar;
+        }
+
+/* Time after which a reply is considered overdue.
+ */
+        public long getTimeout() {
+                return this.srtt + 4 * this.rttvar;
+        }
+
+        public long getSampleCount() {
+                return this.samples;
+        }
+
+        @Override
+        public String toString() {
+                return "{ " +
+                        "\"srtt\": " + this.srtt +
+                      ", \"rttvar\": " + this.rttvar +
+                      ", \"samples\": " + this.samples +
+                       " }";
+        }
+}
+
+/* eof */
@@ -0,0 +1,211 @@
+/* Receive processing of many sources spread across worker threads by TSI.
+ *
+ * A single I/O thread reads datagrams from the socket joined to the groups and hands
+ * each packet over a single-producer single-consumer queue to the shard selected by hash
+ * of its TSI.  Every shard is a receive socket owning the peers, receive windows and NAK
+ * timers of its sources, driven by its own worker thread: parsing, checksum, window
+ * insertion and delivery all run in parallel across shards.
+ *
+ * Shard sockets are configured, bound, and connected as receivers like the I/O socket
+ * with PGM_SEND_GROUP set for NAKs, but without joining any group.  The message handler
+ * is called concurrently from each worker, ordering is maintained per source only.
+ */
+package hk.miru.javapgm;
+
+import static hk.miru.javapgm.Preconditions.checkArgument;
+import static hk.miru.javapgm.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+public class ShardedReceiver
+{
+        private static Logger LOG = LogManager.getLogger (ShardedReceiver.class.getName());
+
+/* Messages delivered per worker poll() call */
+        private static final int SHARD_POLL_LIMIT = 64;
+/* Longest idle wait, bounding reaction to stop() */
+        private static final long MAX_IDLE_NANOS = 10 * 1000 * 1000;
+        private static final long IO_SELECT_TIMEOUT = 100;
+
+        private final Socket io;
+        private final Socket[] shards;
+        private final SpscQueue<SocketBuffer>[] queues;
+        private final Thread[] workers;
+        private Thread ioThread = null;
+        private volatile boolean isRunning = false;
+        private final AtomicLong dropped = new AtomicLong (0);
+
+        @SuppressWarnings("unchecked")
+        public ShardedReceiver (Socket io, Socket[] shards, int queueCapacity) throws IOException {
+/* Pre-conditions */
+                checkNotNull (io);
+                checkNotNull (shards);
+                checkArgument (shards.length > 0);
+                checkArgument (queueCapacity > 0);
+                checkArgument (io.isBound && !io.recv_gsr.isEmpty());
+
+                this.io = io;
+                this.shards = shards.clone();
+                this.queues = (SpscQueue<SocketBuffer>[])new SpscQueue<?>[shards.length];
+                this.workers = new Thread[shards.length];
+                for (int i = 0; i < shards.length; i++) {
+                        checkArgument (shards[i].isBound && shards[i].canReceiveData);
+                        this.queues[i] = new SpscQueue<> (queueCapacity);
+                        this.shards[i].setReceiveQueue (this.queues[i]);
+                }
+        }
+
+/* Start the I/O thread and one worker thread per shard.
+ */
+        public synchronized void start (final MessageHandler handler) throws IOException {
+                checkNotNull (handler);
+                if (this.isRunning)
+                        return;
+
+                final Selector selector = Selector.open();
+                this.io.register (selector, SelectionKey.OP_READ);
+                this.isRunning = true;
+                for (int i = 0; i < this.shards.length; i++) {
+                        final Socket shard = this.shards[i];
+                        final SpscQueue<SocketBuffer> queue = this.queues[i];
+                        this.workers[i] = new Thread (new Runnable() {
+                                @Override
+                                public void run() {
+                                        runShard (shard, queue, handler);
+                                }
+                        }, "pgm-shard-" + i);
+                        this.workers[i].start();
+                }
+                this.ioThread = new Thread (new Runnable() {
+                        @Override
+                        public void run() {
+                                runIo (selector);
+                        }
+                }, "pgm-io");
+                this.ioThread.start();
+        }
+
+/* Stop and join all threads, packets still queued are abandoned.
+ */
+        public synchronized void stop() throws InterruptedException {
+                if (!this.isRunning)
+                        return;
+                this.isRunning = false;
+                this.ioThread.join();
+                for (Thread worker : this.workers) {
+                        LockSupport.unpark (worker);
+                        worker.join();
+                }
+        }
+
+/* Packets discarded on a full shard queue, recovered as any other loss.
+ */
+        public long getDroppedCount() {
+                return this.dropped.get();
+        }
+
+/* Shard of a packet by TSI, the GSI with the source port of downstream packets and the
+ * destination port of upstream or peer packets.
+ */
+        static int shardOf (SocketBuffer skb, int shards) {
+                final Header header = skb.getHeader();
+                final byte[] buf = skb.getRawBytes();
+                final int gsi_offset = skb.getDataOffset() + Packet.PGM_GSI_OFFSET;
+                int hash = header.isDownstream() ? header.getSourcePort() : header.getDestinationPort();
+                for (int i = 0; i < GlobalSourceId.SIZE; i++)
+                        hash = 31 * hash + buf[gsi_offset + i];
+                hash ^= (hash >>> 16);
+                return (hash & Integer.MAX_VALUE) % shards;
+        }
+
+        private void runIo (Selector selector) {
+                final ByteBuffer buffer = ByteBuffer.allocateDirect (this.io.max_tpdu);
+                try {
+                        while (this.isRunning) {
+                                if (0 == selector.select (IO_SELECT_TIMEOUT))
+                                        continue;
+                                selector.selectedKeys().clear();
+                                while (true) {
+                                        final InetSocketAddress src = this.io.receiveDatagram (buffer);
+                                        if (null == src)
+                                                break;
+                                        buffer.flip();
+                                        final SocketBuffer skb = this.io.rx_pool.allocate();
+                                        skb.setTimestamp (Socket.microTime());
+                                        final int len = buffer.remaining();
+                                        skb.put (len);
+                                        buffer.get (skb.getRawBytes(), 0, len);
+                                        buffer.clear();
+                                        if (len < Packet.SIZEOF_PGM_HEADER) {
+                                                skb.free();
+                                                continue;
+                                        }
+/* Unwanted packets are discarded before reaching a shard */
+                                        if (!this.io.isWanted (skb, src.getAddress(), this.io.rx_dst)) {
+                                                skb.free();
+                                                continue;
+                                        }
+                                        skb.setSourceAddress (src.getAddress());
+                                        skb.setDestinationAddress (this.io.rx_dst);
+                                        skb.setHeaderOffset (skb.getDataOffset());
+                                        final int shard = shardOf (skb, this.shards.length);
+                                        if (!this.queues[shard].offer (skb)) {
+                                                LOG.trace ("Shard {} queue full, packet discarded.", shard);
+                                                this.dropped.incrementAndGet();
+                                                skb.free();
+                                                continue;
+                                        }
+                                        LockSupport.unpark (this.workers[shard]);
+                                }
+                        }
+                } catch (IOException e) {
+                        LOG.error (e.toString());
+                        this.isRunning = false;
+                } finally {
+                        try {
+                                selector.close();
+                        } catch (IOException e) {
+                                LOG.error (e.toString());
+                        }
+                }
+        }
+
+        private void runShard (Socket shard, SpscQueue<SocketBuffer> queue, MessageHandler handler) {
+                try {
+                        while (this.isRunning) {
+                                final int count = shard.poll (handler, SHARD_POLL_LIMIT);
+                                if (count < 0) {
+                                        LOG.error ("Shard receive failed, status {}.", shard.getPollStatus());
+                                        return;
+                                }
+                                if (count > 0 || !queue.isEmpty())
+                                        continue;
+                                switch (shard.getPollStatus()) {
+                                case IO_STATUS_WOULD_BLOCK:
+                                case IO_STATUS_TIMER_PENDING:
+                                case IO_STATUS_RATE_LIMITED:
+/* Idle until the next packet or the next shard timer */
+                                        final long wait = (shard.nextPoll - Socket.microTime()) * 1000;
+                                        if (wait > 0)
+                                                LockSupport.parkNanos (Math.min (wait, MAX_IDLE_NANOS));
+                                        break;
+                                default:
+                                        break;
+                                }
+                        }
+                } catch (IOException e) {
+                        LOG.error (e.toString());
+                }
+        }
+}
+
+/* eof */
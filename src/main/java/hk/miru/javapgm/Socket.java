@@ -12,6 +12,7 @@ import static hk.miru.javapgm.ReceiveWindow.Returns.RXW_DUPLICATE;
 import static hk.miru.javapgm.ReceiveWindow.Returns.RXW_INSERTED;
 import static hk.miru.javapgm.ReceiveWindow.Returns.RXW_MALFORMED;
 import static hk.miru.javapgm.ReceiveWindow.Returns.RXW_MISSING;
+import static hk.miru.javapgm.ReceiveWindow.Returns.RXW_UPDATED;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
@@ -34,16 +35,23 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Random;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -64,6 +72,8 @@ public class Socket {
         ProtocolFamily family = null;
         TransportSessionId tsi = null;
 	int dataDestinationPort = 0;
+/* Poll handler by further data-destination port, null until the first is added */
+	MessageHandler[] dport_handlers = null;
 	int udpEncapsulationUnicastPort = 0;
 	int udpEncapsulationMulticastPort = 0;
 
@@ -71,6 +81,10 @@ public class Socket {
         boolean isConnected = false;
         boolean isDestroyed = false;
         boolean isReset = false;
+        boolean isGap = false;
+        boolean isFin = false;
+/* Last ODATA of the session sent with OPT_FIN by sendFinal() */
+        boolean isFinSent = false;
 	boolean shouldAbortOnReset = false;
 
         boolean canSendData = true;
@@ -88,17 +102,35 @@ public class Socket {
 	MulticastSocket send_sock = null;
         Map<hk.miru.javapgm.GroupSourceRequest, MembershipKey> recv_gsr = new TreeMap<>();
 	DatagramChannel recv_sock = null;
+/* Redundant A/B feed lines, read before recv_sock */
+	List<ReceiveLine> recv_lines = new ArrayList<>();
+	ReceiveLine rx_line = null;
+	int rx_line_index = 0;
+/* Channel per joined group, read in rotation before recv_sock */
+	List<ReceiveGroup> recv_groups = new ArrayList<>();
+	int rx_group_index = 0;
+/* Destination of the last datagram read */
+	InetAddress rx_dst = null;
+/* Header classification ahead of the checksum: blocked sources by group, and filter */
+	Map<InetAddress, Set<InetAddress>> blocked_sources = new HashMap<>();
+	PacketFilter packet_filter = null;
+	long filteredCount = 0;
 
         int max_apdu = 0;
+        int max_fragments = Packet.PGM_MAX_FRAGMENTS;
+        boolean isStreaming = false;
 	int max_tpdu = 0;
         int max_tsdu = 0;
         int max_tsdu_fragment = 0;
         int iphdr_len = 0;
         int hops = 0;
         int txw_sqns = 0, txw_secs = 0;
+        int txw_join_sqns = 0;
+        int late_join_sqns = 0, late_join_secs = 0;
         int rxw_sqns = 0, rxw_secs = 0;
 	long txw_max_rte = 0, rxw_max_rte = 0;
         long odata_max_rte = 0;
+        long nak_max_rte = 0;
         long rdata_max_rte = 0;
 
         TransmitWindow window = null;
@@ -118,18 +150,60 @@ public class Socket {
 	long peerExpiration = 0;
         long spmrExpiration = 0;
 
-        Random rand = null;
 	long nak_data_retries = 0, nak_ncf_retries = 0;
 	long nak_bo_ivl = 0, nak_rpt_ivl = 0, nak_rdata_ivl = 0;
+/* Bounds for NAK intervals scaled by peer round trip estimates */
+	boolean isNakAdaptive = false;
+	long nak_min_ivl = 100, nak_max_ivl = 5 * 1000 * 1000;
+/* Arbitration delay before NAKing a gap a redundant line may yet fill */
+	long nak_arb_ivl = 0;
         long next_heartbeat_spm = 0, next_ambient_spm = 0;
 
 	ByteBuffer buffer = null;
 	SocketBuffer rx_buffer = null;
+	SocketBufferPool rx_pool = null;
+/* Packets handed over by a ShardedReceiver instead of reading recv_sock */
+	SpscQueue<SocketBuffer> rx_queue = null;
+/* Free receive buffers retained for reuse */
+	static final int RX_POOL_CAPACITY = 1024;
+/* Datagrams read per receive() call, bounded such that timers are serviced under load */
+	static final int RX_BATCH_MAX = 256;
+/* SPM sequences behind the last seen within which an OPT_SYN is taken as a late duplicate */
+	static final int SPM_SQN_RECENT = 64;
 
 	Hashtable<TransportSessionId, Peer> peers_hashtable = null;
 	LinkedList<Peer> peers_pending = new LinkedList<>();
 	boolean hasPendingRead = false;
+/* Per receive() call delivery budget, zero for unlimited */
+	int recv_max_msgs = 0, recv_peer_quantum = 0;
+	long recv_max_bytes = 0;
+	int recvMessageBudget = 0;
+	long recvByteBudget = 0;
+	boolean isUnordered = false;
+/* Maximum time a missing sequence may block delivery, zero for unbounded */
+	long max_delivery_delay = 0;
 	long nextPoll = 0;
+/* poll() state reused between calls */
+	final List<SocketBuffer> pollSkbs = new ArrayList<>();
+/* Selector for receive() with a timeout, opened on first use */
+	Selector wait_selector = null;
+/* Journal of delivered APDUs, null for none */
+	ReceiveJournal journal = null;
+/* Per TSI delivery state for warm restart, null for none */
+	ReceiveCheckpoint checkpoint = null;
+/* Overflow of undelivered APDUs for a slow consumer, null for none */
+	ReceiveSpill spill = null;
+	final List<SocketBuffer> spillSkbs = new ArrayList<>();
+/* Kernel overrun attribution of detected loss, and receive buffer growth */
+	KernelDropMonitor drop_monitor = null;
+	long drop_check_ivl = 0, next_drop_check = 0;
+	int rcvbuf = 0, rcvbuf_max = 0;
+	long lastKernelDrops = 0, pendingKernelDrops = 0, pendingMissing = 0;
+	long kernelDropCount = 0, overrunLossCount = 0, networkLossCount = 0;
+	byte[] reassemblyBuffer = null;
+	int pollFlags = 0;
+	long pollTimestamp = 0;
+	IoStatus pollStatus = IoStatus.IO_STATUS_WOULD_BLOCK;
 /* Workaround Java lack of pass-by-reference for source peer. */
         Peer[] source = new Peer[1];
 
@@ -137,6 +211,7 @@ public class Socket {
 		IO_STATUS_ERROR,
 		IO_STATUS_NORMAL,
 		IO_STATUS_RESET,
+		IO_STATUS_GAP,
 		IO_STATUS_FIN,
 		IO_STATUS_EOF,
 		IO_STATUS_WOULD_BLOCK,
@@ -191,10 +266,19 @@ public class Socket {
                 return usecs;
         }
 
-/* Timeout for rate limited IO in microseconds */
+/* Timeout for rate limited IO in microseconds, the wait until a maximum sized TPDU
+ * fits every configured rate limit.
+ */
         public long getRateRemain() {
-                checkArgument (false);
-                return 0;
+                checkArgument (this.isConnected);
+                long usecs = 0;
+                if (null != this.rate_control)
+                        usecs = Math.max (usecs, RateControl.remaining (this.rate_control, this.iphdr_len + this.max_tpdu));
+                if (null != this.odata_rate_control)
+                        usecs = Math.max (usecs, RateControl.remaining (this.odata_rate_control, this.iphdr_len + this.max_tpdu));
+                if (null != this.rdata_rate_control)
+                        usecs = Math.max (usecs, RateControl.remaining (this.rdata_rate_control, this.iphdr_len + this.max_tpdu));
+                return usecs;
         }
         
         public int getMaximumTpdu() {
@@ -220,6 +304,34 @@ public class Socket {
         public long getMaximumReceiveRate() {
                 return this.rxw_max_rte;
         }
+
+/* Late join recovery in sequence numbers, the greater of the two policies.
+ */
+        public int getLateJoinSequenceNumbers() {
+                if (this.late_join_secs > 0 && this.rxw_max_rte > 0)
+                        return (int)Math.max (this.late_join_sqns, (this.late_join_secs * this.rxw_max_rte) / this.max_tpdu);
+                return this.late_join_sqns;
+        }
+
+        public boolean isUnordered() {
+                return this.isUnordered;
+        }
+
+        public long getMaximumDeliveryDelay() {
+                return this.max_delivery_delay;
+        }
+
+        public int getMaximumFragments() {
+                return this.max_fragments;
+        }
+
+        public boolean isStreaming() {
+                return this.isStreaming;
+        }
+
+        public boolean isAbortOnReset() {
+                return this.shouldAbortOnReset;
+        }
         
         public boolean setOption (int optname, Object optval) throws java.net.SocketException, IOException {
                 if (this.isConnected || this.isDestroyed)
@@ -251,6 +363,35 @@ public class Socket {
                         this.recv_sock.setOption (StandardSocketOptions.IP_MULTICAST_LOOP, ((Boolean)optval).booleanValue());
                         return true;
 
+/* Kernel receive buffer size in bytes for the receive socket and any receive lines.
+ * 0 < rcvbuf
+ */
+                case SocketOptions.PGM_RCVBUF:
+                        checkArgument (optval instanceof Integer);
+                        checkArgument ((Integer)optval > 0);
+                        this.rcvbuf = ((Integer)optval).intValue();
+                        this.recv_sock.setOption (StandardSocketOptions.SO_RCVBUF, this.rcvbuf);
+                        return true;
+
+/* Limit to which the kernel receive buffer is doubled on detecting overruns, zero to
+ * leave the buffer size fixed.  Requires PGM_DROP_CHECK_IVL.
+ * rcvbuf <= rcvbuf_max
+ */
+                case SocketOptions.PGM_RCVBUF_MAX:
+                        checkArgument (optval instanceof Integer);
+                        checkArgument ((Integer)optval >= 0);
+                        this.rcvbuf_max = ((Integer)optval).intValue();
+                        return true;
+
+/* Interval in microseconds between reads of the kernel drop counters to separate loss
+ * from local overruns from network loss, zero to disable.
+ */
+                case SocketOptions.PGM_DROP_CHECK_IVL:
+                        checkArgument (optval instanceof Integer);
+                        checkArgument ((Integer)optval >= 0);
+                        this.drop_check_ivl = ((Integer)optval).intValue();
+                        return true;
+
 /* 0 < hops < 256, hops == -1 use kernel default (ignored).
  */
                 case SocketOptions.PGM_MULTICAST_HOPS:
@@ -299,6 +440,16 @@ public class Socket {
                         this.txw_secs = ((Integer)optval).intValue();
                         return true;
 
+/* Late joining receivers may recover up to this many sequences behind the lead,
+ * advertised as OPT_JOIN in ODATA and SPM packets.
+ * 0 < txw_join_sqns < txw_sqns
+ */
+                case SocketOptions.PGM_TXW_JOIN_SQNS:
+                        checkArgument (optval instanceof Integer);
+                        checkArgument ((Integer)optval > 0);
+                        this.txw_join_sqns = ((Integer)optval).intValue();
+                        return true;
+
 /* Maximum transmit rate.
  * 0 < txw_max_rte < interface capacity
  *  10mb :   1250000
@@ -386,6 +537,25 @@ public class Socket {
                         this.rxw_max_rte = (((Integer)optval).intValue());
                         return true;
 
+/* Sequences before the first received to recover on joining a session, by default
+ * delivery starts at the lead.  Bounded by the source OPT_JOIN or transmit window trail.
+ * 0 < late_join_sqns < rxw_sqns
+ */
+                case SocketOptions.PGM_LATE_JOIN_SQNS:
+                        checkArgument (optval instanceof Integer);
+                        checkArgument ((Integer)optval > 0);
+                        this.late_join_sqns = ((Integer)optval).intValue();
+                        return true;
+
+/* Late join recovery in seconds, converted to sequences with rxw_max_rte.
+ * 0 < late_join_secs < rxw_secs
+ */
+                case SocketOptions.PGM_LATE_JOIN_SECS:
+                        checkArgument (optval instanceof Integer);
+                        checkArgument ((Integer)optval > 0);
+                        this.late_join_secs = ((Integer)optval).intValue();
+                        return true;
+
 /* Maximum NAK back-off value nak_rb_ivl in milliseconds.
  * 0 < nak_rb_ivl <= nak_bo_ivl
  */
@@ -408,6 +578,50 @@ public class Socket {
                         this.nak_rdata_ivl = (((Integer)optval).intValue());
                         return true;
 
+/* Scale NAK back-off, repeat and repair data intervals by the round trip measured
+ * to each peer, the configured intervals apply until a first estimate is taken.
+ */
+                case SocketOptions.PGM_NAK_ADAPTIVE:
+                        checkArgument (optval instanceof Boolean);
+                        this.isNakAdaptive = ((Boolean)optval).booleanValue();
+                        return true;
+
+/* Lower bound for adaptive NAK intervals, in microseconds.
+ * 0 < nak_min_ivl <= nak_max_ivl
+ */
+                case SocketOptions.PGM_NAK_MIN_IVL:
+                        checkArgument (optval instanceof Integer);
+                        checkArgument (((Integer)optval).intValue() > 0);
+                        this.nak_min_ivl = (((Integer)optval).intValue());
+                        return true;
+
+/* Upper bound for adaptive NAK intervals, in microseconds.
+ */
+                case SocketOptions.PGM_NAK_MAX_IVL:
+                        checkArgument (optval instanceof Integer);
+                        checkArgument (((Integer)optval).intValue() > 0);
+                        this.nak_max_ivl = (((Integer)optval).intValue());
+                        return true;
+
+/* A/B arbitration delay added to NAK back-off, in microseconds, such that a gap is only
+ * NAKed when still open on every line.
+ */
+                case SocketOptions.PGM_NAK_ARB_IVL:
+                        checkArgument (optval instanceof Integer);
+                        checkArgument ((Integer)optval >= 0);
+                        this.nak_arb_ivl = ((Integer)optval).intValue();
+                        return true;
+
+/* Maximum NAK rate towards each source, a bucket per peer such that one lossy source
+ * cannot starve requests to the others, sequences blocking delivery are requested first.
+ * max_tpdu <= nak_max_rte
+ */
+                case SocketOptions.PGM_NAK_MAX_RTE:
+                        checkArgument (optval instanceof Integer);
+                        checkArgument ((Integer)optval > 0);
+                        this.nak_max_rte = ((Integer)optval).intValue();
+                        return true;
+
 /* Limit for data.
  * 0 < nak_data_retries < 256
  */
@@ -424,6 +638,105 @@ public class Socket {
                         this.nak_ncf_retries = (((Integer)optval).intValue());
                         return true;
 
+/* Maximum count of APDUs returned by one receive() call, zero for unlimited.
+ */
+                case SocketOptions.PGM_RECV_MAX_MSGS:
+                        checkArgument (optval instanceof Integer);
+                        checkArgument ((Integer)optval >= 0);
+                        this.recv_max_msgs = ((Integer)optval).intValue();
+                        return true;
+
+/* Maximum payload bytes returned by one receive() call, zero for unlimited.  At least
+ * one APDU is always returned when available.
+ */
+                case SocketOptions.PGM_RECV_MAX_BYTES:
+                        checkArgument (optval instanceof Integer);
+                        checkArgument ((Integer)optval >= 0);
+                        this.recv_max_bytes = ((Integer)optval).intValue();
+                        return true;
+
+/* Maximum count of APDUs read from one peer before moving to the next pending peer,
+ * zero for unlimited.
+ */
+                case SocketOptions.PGM_RECV_PEER_QUANTUM:
+                        checkArgument (optval instanceof Integer);
+                        checkArgument ((Integer)optval >= 0);
+                        this.recv_peer_quantum = ((Integer)optval).intValue();
+                        return true;
+
+/* true = deliver each complete APDU on arrival without waiting for earlier gaps to
+ * be repaired, recovery continues in the background and repairs of delivered APDUs
+ * are discarded as duplicates.
+ * false = default, in-order delivery.
+ */
+                case SocketOptions.PGM_UNORDERED:
+                        checkArgument (optval instanceof Boolean);
+                        this.isUnordered = ((Boolean)optval).booleanValue();
+                        return true;
+
+/* Maximum time in microseconds the commit lead may be blocked by a missing sequence,
+ * after which the sequence is abandoned and receive() returns IO_STATUS_GAP instead of
+ * IO_STATUS_RESET.  NAKs are only sent whilst a repair can arrive before the deadline.
+ * Zero = default, wait for recovery to complete or fail.
+ */
+                case SocketOptions.PGM_MAX_DELIVERY_DELAY:
+                        checkArgument (optval instanceof Integer);
+                        checkArgument ((Integer)optval >= 0);
+                        this.max_delivery_delay = ((Integer)optval).intValue();
+                        return true;
+
+/* Maximum count of fragments per APDU, sending and receiving, set before bind.  Values
+ * above the default of PGM_MAX_FRAGMENTS also lift the PGM_MAX_APDU length limit, the
+ * transmit and receive windows must be sized to hold a complete APDU.
+ */
+                case SocketOptions.PGM_MAX_FRAGMENTS:
+                        checkArgument (optval instanceof Integer);
+                        checkArgument ((Integer)optval > 0);
+                        if (this.isBound)
+                                return false;
+                        this.max_fragments = ((Integer)optval).intValue();
+                        return true;
+
+/* true = deliver fragmented APDUs as contiguous fragments arrive instead of waiting for
+ * the complete APDU, each fragment carries its offset and the APDU length.
+ * false = default, deliver complete APDUs.
+ */
+                case SocketOptions.PGM_STREAMING:
+                        checkArgument (optval instanceof Boolean);
+                        this.isStreaming = ((Boolean)optval).booleanValue();
+                        return true;
+
+/* Append each delivered APDU to a journal owned by the application, null to stop.
+ */
+                case SocketOptions.PGM_JOURNAL:
+                        checkArgument (null == optval || optval instanceof ReceiveJournal);
+                        this.journal = (ReceiveJournal)optval;
+                        return true;
+
+/* Checkpoint per TSI delivery state to a file owned by the application, new peers resume
+ * from the checkpoint recovering only sequences not yet delivered.
+ */
+                case SocketOptions.PGM_CHECKPOINT:
+                        checkArgument (null == optval || optval instanceof ReceiveCheckpoint);
+                        this.checkpoint = (ReceiveCheckpoint)optval;
+                        return true;
+
+/* Spill complete APDUs from full receive windows to a file owned by the application
+ * whilst the consumer is slow, null for none.  Not with PGM_STREAMING or PGM_UNORDERED.
+ */
+                case SocketOptions.PGM_SPILL:
+                        checkArgument (null == optval || optval instanceof ReceiveSpill);
+                        this.spill = (ReceiveSpill)optval;
+                        return true;
+
+/* Allow and deny lists applied to packet headers before checksum verification, null for
+ * none.
+ */
+                case SocketOptions.PGM_FILTER:
+                        checkArgument (null == optval || optval instanceof PacketFilter);
+                        this.packet_filter = (PacketFilter)optval;
+                        return true;
+
 /* Enable FEC for this sock, specifically Reed Solmon encoding RS(n,k), common
  * setting is RS(255, 223).
  *
@@ -508,13 +821,31 @@ public class Socket {
                         {
                                 hk.miru.javapgm.GroupRequest gr = (hk.miru.javapgm.GroupRequest)optval;
                                 hk.miru.javapgm.GroupSourceRequest gsr = new hk.miru.javapgm.GroupSourceRequest (gr.getNetworkInterfaceIndex(), gr.getMulticastAddress(), null);
-                                MembershipKey key = this.recv_sock.join (gr.getMulticastAddress(), NetworkInterface.getByIndex (gr.getNetworkInterfaceIndex()));
+                                MembershipKey key = joinGroup (gsr);
                                 this.recv_gsr.put (gsr, key);
                                 LOG.trace (NETWORK_MARKER, "Join multicast group {} on interface index {}",
                                            gr.getMulticastAddress(), gr.getNetworkInterfaceIndex());
                         }
                         return true;
 
+/* Redundant feed line: a further receive channel joined to a group on one interface, all
+ * lines feeding the same receive windows.  Requires PGM_UDP_ENCAP_MCAST_PORT.
+ */
+                case SocketOptions.PGM_JOIN_LINE:
+                        checkArgument (optval instanceof hk.miru.javapgm.GroupRequest);
+                        if (0 == this.udpEncapsulationMulticastPort) {
+                                LOG.error ("Receive lines require PGM_UDP_ENCAP_MCAST_PORT.");
+                                return false;
+                        }
+                        {
+                                hk.miru.javapgm.GroupRequest gr = (hk.miru.javapgm.GroupRequest)optval;
+                                this.recv_lines.add (new ReceiveLine (this.family, gr, this.udpEncapsulationMulticastPort));
+                                updateDropMonitor();
+                                LOG.trace (NETWORK_MARKER, "Join line multicast group {} on interface index {}",
+                                           gr.getMulticastAddress(), gr.getNetworkInterfaceIndex());
+                        }
+                        return true;
+
 /* For any-source applications (ASM), leave a joined group.
  */
                 case SocketOptions.PGM_LEAVE_GROUP:
@@ -522,9 +853,9 @@ public class Socket {
                         {
                                 hk.miru.javapgm.GroupRequest gr = (hk.miru.javapgm.GroupRequest)optval;
                                 hk.miru.javapgm.GroupSourceRequest gsr = new hk.miru.javapgm.GroupSourceRequest (gr.getNetworkInterfaceIndex(), gr.getMulticastAddress(), null);
-                                MembershipKey key = this.recv_gsr.get (gsr);
-                                key.drop();
-                                this.recv_gsr.remove (gsr);
+                                MembershipKey key = this.recv_gsr.remove (gsr);
+                                leaveGroup (key);
+                                this.blocked_sources.remove (gr.getMulticastAddress());
                         }
                         return false;
 
@@ -537,6 +868,13 @@ public class Socket {
                                 hk.miru.javapgm.GroupSourceRequest search_gsr = new hk.miru.javapgm.GroupSourceRequest (gsr.getNetworkInterfaceIndex(), gsr.getMulticastAddress(), null);
                                 MembershipKey key = this.recv_gsr.get (search_gsr);
                                 key.block (gsr.getSourceAddress());
+/* Also discarded on reading where the kernel delivers a copy regardless */
+                                Set<InetAddress> sources = this.blocked_sources.get (gsr.getMulticastAddress());
+                                if (null == sources) {
+                                        sources = new HashSet<>();
+                                        this.blocked_sources.put (gsr.getMulticastAddress(), sources);
+                                }
+                                sources.add (gsr.getSourceAddress());
                         }
                         return false;
 
@@ -549,6 +887,9 @@ public class Socket {
                                 hk.miru.javapgm.GroupSourceRequest search_gsr = new hk.miru.javapgm.GroupSourceRequest (gsr.getNetworkInterfaceIndex(), gsr.getMulticastAddress(), null);
                                 MembershipKey key = this.recv_gsr.get (search_gsr);
                                 key.unblock (gsr.getSourceAddress());
+                                final Set<InetAddress> sources = this.blocked_sources.get (gsr.getMulticastAddress());
+                                if (null != sources && sources.remove (gsr.getSourceAddress()) && sources.isEmpty())
+                                        this.blocked_sources.remove (gsr.getMulticastAddress());
                         }
                         return false;
 
@@ -560,7 +901,7 @@ public class Socket {
                         checkArgument (optval instanceof hk.miru.javapgm.GroupSourceRequest);
                         {
                                 hk.miru.javapgm.GroupSourceRequest gsr = (hk.miru.javapgm.GroupSourceRequest)optval;
-                                MembershipKey key = this.recv_sock.join (gsr.getMulticastAddress(), NetworkInterface.getByIndex (gsr.getNetworkInterfaceIndex()), gsr.getSourceAddress());
+                                MembershipKey key = joinGroup (gsr);
                                 LOG.debug ("Join multicast group {} on interface index {} for source {}",
                                           gsr.getMulticastAddress(), gsr.getNetworkInterfaceIndex(), gsr.getSourceAddress());
                                 this.recv_gsr.put (gsr, key);
@@ -573,9 +914,8 @@ public class Socket {
                         checkArgument (optval instanceof hk.miru.javapgm.GroupSourceRequest);
                         {
                                 hk.miru.javapgm.GroupSourceRequest gsr = (hk.miru.javapgm.GroupSourceRequest)optval;
-                                MembershipKey key = this.recv_gsr.get (gsr);
-                                key.drop();
-                                this.recv_gsr.remove (gsr);
+                                MembershipKey key = this.recv_gsr.remove (gsr);
+                                leaveGroup (key);
                         }
                         return false;
 
@@ -645,6 +985,10 @@ public class Socket {
                                 LOG.error ("TXW_MAX_RTE not configured.");
                                 return false;
                         }
+                        if (this.txw_sqns > 0 && this.txw_join_sqns >= this.txw_sqns) {
+                                LOG.error ("TXW_JOIN_SQNS exceeds TXW_SQNS.");
+                                return false;
+                        }
                 }
                 if (this.canReceiveData) {
                         if (0 == this.rxw_sqns && 0 == this.rxw_secs) {
@@ -655,6 +999,22 @@ public class Socket {
                                 LOG.error ("RXW_MAX_RTE not configured.");
                                 return false;
                         }
+                        if (this.late_join_secs > 0 && 0 == this.rxw_max_rte) {
+                                LOG.error ("LATE_JOIN_SECS requires RXW_MAX_RTE.");
+                                return false;
+                        }
+                        if (this.rcvbuf_max > 0 && 0 == this.drop_check_ivl) {
+                                LOG.error ("RCVBUF_MAX requires DROP_CHECK_IVL.");
+                                return false;
+                        }
+                        if (this.rcvbuf_max > 0 && this.rcvbuf > this.rcvbuf_max) {
+                                LOG.error ("RCVBUF exceeds RCVBUF_MAX.");
+                                return false;
+                        }
+                        if (null != this.spill && (this.isStreaming || this.isUnordered)) {
+                                LOG.error ("SPILL requires ordered complete APDU delivery.");
+                                return false;
+                        }
                         if (0 == this.peerExpiration) {
                                 LOG.error ("Peer timeout not configured.");
                                 return false;
@@ -675,6 +1035,14 @@ public class Socket {
                                 LOG.error ("NAK_RDATA_IVL not configured.");
                                 return false;
                         }
+                        if (this.isNakAdaptive && this.nak_min_ivl > this.nak_max_ivl) {
+                                LOG.error ("NAK_MIN_IVL exceeds NAK_MAX_IVL.");
+                                return false;
+                        }
+                        if (this.nak_max_rte > 0 && this.nak_max_rte < this.max_tpdu) {
+                                LOG.error ("NAK_MAX_RTE less than maximum TPDU size.");
+                                return false;
+                        }
                         if (0 == this.nak_data_retries) {
                                 LOG.error ("NAK_DATA_RETRIES not configured.");
                                 return false;
@@ -696,9 +1064,6 @@ public class Socket {
                         } while (this.tsi.getSourcePort() == this.dataDestinationPort);
                 }
 
-/* pseudo-random number generator for back-off intervals */
-                this.rand = new Random();
-
 /* Determine IP header size for rate regulation engine & stats */
                 if (StandardProtocolFamily.INET == this.family)
                         this.iphdr_len = Packet.SIZEOF_IP_HEADER;
@@ -707,10 +1072,36 @@ public class Socket {
                 LOG.trace (NETWORK_MARKER, "Assuming IP header size of {} bytes", this.iphdr_len);
 
                 ProtocolFamily pgmcc_family = null;
-                this.max_tsdu = this.max_tpdu - this.iphdr_len - Packet.calculateOffset (false, pgmcc_family);
-                this.max_tsdu_fragment = this.max_tpdu - this.iphdr_len - Packet.calculateOffset (true, pgmcc_family);
-                int max_fragments = Packet.PGM_MAX_FRAGMENTS;
-                this.max_apdu = Math.min (Packet.PGM_MAX_APDU, max_fragments * this.max_tsdu_fragment);
+                final boolean canJoin = this.canSendData && this.txw_join_sqns > 0;
+                this.max_tsdu = this.max_tpdu - this.iphdr_len - Packet.calculateOffset (false, canJoin, pgmcc_family);
+                this.max_tsdu_fragment = this.max_tpdu - this.iphdr_len - Packet.calculateOffset (true, canJoin, pgmcc_family);
+/* Raising the fragment limit above the default lifts the APDU length limit, bounded by the
+ * largest array length.
+ */
+                final long max_apdu = (long)this.max_fragments * this.max_tsdu_fragment;
+                if (this.max_fragments > Packet.PGM_MAX_FRAGMENTS)
+                        this.max_apdu = (int)Math.min (Integer.MAX_VALUE - 8, max_apdu);
+                else
+                        this.max_apdu = (int)Math.min (Packet.PGM_MAX_APDU, max_apdu);
+
+/* Every fragment of the largest APDU must be held at once to be retransmitted or
+ * reassembled, a final APDU may carry one short extra fragment for OPT_FIN.
+ */
+                final long apdu_sqns = (this.max_apdu + this.max_tsdu_fragment - 1) / this.max_tsdu_fragment;
+                if (this.canSendData) {
+                        final long sqns = this.txw_sqns > 0 ? this.txw_sqns : ((long)this.txw_secs * this.txw_max_rte) / this.max_tpdu;
+                        if (sqns < apdu_sqns + 1) {
+                                LOG.error ("TXW_SQNS less than the {} fragments of the maximum APDU.", apdu_sqns + 1);
+                                return false;
+                        }
+                }
+                if (this.canReceiveData) {
+                        final long sqns = this.rxw_sqns > 0 ? this.rxw_sqns : ((long)this.rxw_secs * this.rxw_max_rte) / this.max_tpdu;
+                        if (sqns < apdu_sqns + 1) {
+                                LOG.error ("RXW_SQNS less than the {} fragments of the maximum APDU.", apdu_sqns + 1);
+                                return false;
+                        }
+                }
 
                 if (this.canSendData) {
                         LOG.trace (TX_WINDOW_MARKER, "Create transmit window.");
@@ -845,8 +1236,40 @@ public class Socket {
                         }
                 }
 
+                if (this.canReceiveData && this.nak_max_rte > 0) {
+                        LOG.trace (RATE_CONTROL_MARKER, "Setting NAK rate regulation to {} bytes per second per source",
+                                   this.nak_max_rte);
+                }
+
+/* Receive lines and groups share the receive socket buffer size */
+                if (this.rcvbuf > 0) {
+                        try {
+                                for (ReceiveLine line : this.recv_lines)
+                                        line.getChannel().setOption (StandardSocketOptions.SO_RCVBUF, this.rcvbuf);
+                                for (ReceiveGroup group : this.recv_groups)
+                                        group.getChannel().setOption (StandardSocketOptions.SO_RCVBUF, this.rcvbuf);
+                        } catch (IOException ex) {
+                                LOG.error ("Setting receive line buffer size: {}", ex);
+                                return false;
+                        }
+                }
+
+/* Kernel drop counters for the bound port */
+                if (this.canReceiveData && this.drop_check_ivl > 0) {
+                        this.drop_monitor = new KernelDropMonitor (this.udpEncapsulationMulticastPort);
+                        if (this.drop_monitor.isAvailable()) {
+                                this.drop_monitor.setWildcardExcluded (!this.recv_lines.isEmpty() || !this.recv_groups.isEmpty());
+                                this.lastKernelDrops = this.drop_monitor.sample();
+                                this.next_drop_check = Socket.microTime() + this.drop_check_ivl;
+                        } else {
+                                LOG.warn ("Kernel drop counters unavailable, all loss is reported as network loss.");
+                                this.drop_monitor = null;
+                        }
+                }
+
 /* Allocate first incoming packet buffer */
 		this.buffer = ByteBuffer.allocateDirect (this.max_tpdu);
+		this.rx_pool = new SocketBufferPool (this.max_tpdu, RX_POOL_CAPACITY);
 
 /* Bind complete */
                 this.isBound = true;
@@ -887,10 +1310,229 @@ public class Socket {
                 return true;
         }
 
+/* Close the socket.  With flush, repairs already requested are transmitted and the end
+ * of the session is announced with OPT_FIN SPMs such that receivers deliver the remaining
+ * data and release their peer state immediately, as after a last APDU sent by sendFinal()
+ * with OPT_FIN on its final ODATA.  Without flush the session is aborted
+ * with OPT_RST SPMs and receivers discard any undelivered data.
+ *
+ * Returns TRUE on success, FALSE if the socket is already closed.
+ */
+        public boolean close (boolean flush) {
+                if (this.isDestroyed) {
+                        return false;
+                }
+
+                LOG.debug ("close (flush:{})", flush);
+
+                if (this.canSendData && this.isConnected)
+                {
+                        if (flush) {
+/* Outstanding repairs, stopping when rate limited */
+                                while (!this.window.isRetransmitEmpty()) {
+                                        if (!onDeferredNak())
+                                                break;
+                                }
+                        }
+/* Announce end of session, as per SYN on connect() */
+                        final int flags = flush ? Packet.PGM_OPT_FIN : Packet.PGM_OPT_RST;
+                        if (!this.sendSpm (flags) ||
+                            !this.sendSpm (flags) ||
+                            !this.sendSpm (flags))
+                        {
+                                LOG.error ("Sending {} SPM broadcast", flush ? "FIN" : "RST");
+                        }
+                }
+
+                this.isConnected = false;
+                this.isDestroyed = true;
+                if (null != this.peers_hashtable)
+                        this.peers_hashtable.clear();
+                if (null != this.peers_pending)
+                        this.peers_pending.clear();
+
+/* Closing the channel drops all group memberships */
+                try {
+                        this.recv_sock.close();
+                        for (ReceiveLine line : this.recv_lines)
+                                line.close();
+                        for (ReceiveGroup group : this.recv_groups)
+                                group.close();
+                } catch (IOException e) {
+                        LOG.error (e.toString());
+                }
+                this.send_sock.close();
+                if (null != this.wait_selector) {
+                        try {
+                                this.wait_selector.close();
+                        } catch (IOException e) {
+                                LOG.error (e.toString());
+                        }
+                }
+
+                LOG.debug ("PGM socket closed.");
+                return true;
+        }
+
+/* Take receive packets from the queue of a ShardedReceiver shard, the socket's own receive
+ * channels are closed to release the port to the I/O socket.
+ */
+        void setReceiveQueue (SpscQueue<SocketBuffer> rx_queue) throws IOException {
+/* Pre-conditions */
+                assert (null != rx_queue);
+
+                this.rx_queue = rx_queue;
+                this.recv_sock.close();
+                for (ReceiveGroup group : this.recv_groups)
+                        group.close();
+                this.recv_groups.clear();
+        }
+
+/* Register the receive channel, and any receive lines and groups, with the selector.
+ * Returns the key of the receive channel.  Groups joined later are not registered.
+ */
         public SelectionKey register (Selector selector, int op) throws ClosedChannelException {
+                for (ReceiveLine line : this.recv_lines)
+                        line.getChannel().register (selector, op);
+                for (ReceiveGroup group : this.recv_groups)
+                        group.getChannel().register (selector, op);
                 return this.recv_sock.register (selector, op);
         }
 
+/* Join on the channel of the group, opened on first membership.  Without a multicast port
+ * the group is joined on the receive socket and destinations are not distinguished.
+ */
+        private MembershipKey joinGroup (hk.miru.javapgm.GroupSourceRequest gsr) throws IOException {
+                if (0 == this.udpEncapsulationMulticastPort) {
+                        final NetworkInterface ni = NetworkInterface.getByIndex (gsr.getNetworkInterfaceIndex());
+                        return (null == gsr.getSourceAddress()) ?
+                                this.recv_sock.join (gsr.getMulticastAddress(), ni) :
+                                this.recv_sock.join (gsr.getMulticastAddress(), ni, gsr.getSourceAddress());
+                }
+                ReceiveGroup group = findReceiveGroup (gsr.getMulticastAddress());
+                if (null == group) {
+                        group = new ReceiveGroup (this.family, gsr.getMulticastAddress(), this.udpEncapsulationMulticastPort);
+                        if (this.rcvbuf > 0)
+                                group.getChannel().setOption (StandardSocketOptions.SO_RCVBUF, this.rcvbuf);
+                        if (null != this.wait_selector)
+                                group.getChannel().register (this.wait_selector, SelectionKey.OP_READ);
+                        this.recv_groups.add (group);
+                        updateDropMonitor();
+                }
+                try {
+                        return group.join (gsr);
+                } catch (IOException | RuntimeException e) {
+                        if (group.isEmpty())
+                                closeGroup (group);
+                        throw e;
+                }
+        }
+
+/* Drop a membership, closing the group channel with its last membership.
+ */
+        private void leaveGroup (MembershipKey key) throws IOException {
+                final ReceiveGroup group = findReceiveGroup (key.group());
+                if (null == group || key.channel() != group.getChannel()) {
+                        key.drop();
+                        return;
+                }
+                if (group.drop (key))
+                        closeGroup (group);
+        }
+
+        private void closeGroup (ReceiveGroup group) throws IOException {
+                this.recv_groups.remove (group);
+                this.rx_group_index = 0;
+                group.close();
+                updateDropMonitor();
+        }
+
+/* Drops on the receive socket are of copies of multicast traffic when lines or groups
+ * receive it, and are not counted against the receive window.
+ */
+        private void updateDropMonitor() {
+                if (null == this.drop_monitor)
+                        return;
+                final boolean isWildcardExcluded = !this.recv_lines.isEmpty() || !this.recv_groups.isEmpty();
+                if (isWildcardExcluded == this.drop_monitor.isWildcardExcluded())
+                        return;
+                this.drop_monitor.setWildcardExcluded (isWildcardExcluded);
+/* New baseline, a negative sample disables the monitor on the next check */
+                this.lastKernelDrops = this.drop_monitor.sample();
+        }
+
+        private ReceiveGroup findReceiveGroup (InetAddress address) {
+                for (ReceiveGroup group : this.recv_groups) {
+                        if (group.getGroupAddress().equals (address))
+                                return group;
+                }
+                return null;
+        }
+
+/* Joined groups with their packet counts, only valid on the receive thread.
+ */
+        public List<ReceiveGroup> getReceiveGroups() {
+                return Collections.unmodifiableList (this.recv_groups);
+        }
+
+/* Receive the sessions of a further data-destination port on this socket, their APDUs
+ * passed by poll() to handler instead of the poll() handler.  Sessions of every port share
+ * the receive channels, timers and buffer pool, with ports looked up by table index.
+ *
+ * Call from the receive thread after bind.
+ */
+        public boolean addDataDestinationPort (int dport, MessageHandler handler) {
+                checkArgument (dport > 0 && dport <= UINT16_MAX);
+                checkNotNull (handler);
+                if (!this.isBound || !this.canReceiveData) {
+                        LOG.error ("Data-destination ports require a bound receive socket.");
+                        return false;
+                }
+                if (dport == this.dataDestinationPort || dport == this.tsi.getSourcePort()) {
+                        LOG.error ("Data-destination port {} is in use by the socket.", dport);
+                        return false;
+                }
+                if (null == this.dport_handlers)
+                        this.dport_handlers = new MessageHandler[UINT16_MAX + 1];
+                this.dport_handlers[dport] = handler;
+                return true;
+        }
+
+/* Stop receiving a data-destination port added with addDataDestinationPort(), its peers
+ * are removed with any undelivered data.
+ */
+        public boolean removeDataDestinationPort (int dport) {
+                checkArgument (dport > 0 && dport <= UINT16_MAX);
+                if (null == this.dport_handlers || null == this.dport_handlers[dport])
+                        return false;
+                this.dport_handlers[dport] = null;
+                for (Peer peer : new ArrayList<> (this.peers_hashtable.values())) {
+                        if (dport == peer.getDataDestinationPort())
+                                removePeer (peer);
+                }
+                return true;
+        }
+
+        private boolean isDataDestinationPort (int dport) {
+                return dport == this.dataDestinationPort ||
+                       (null != this.dport_handlers && null != this.dport_handlers[dport]);
+        }
+
+/* Handler of the port a delivered skb was sent to, or the default handler.
+ */
+        private MessageHandler handlerOf (SocketBuffer skb, MessageHandler handler) {
+                if (null == this.dport_handlers)
+                        return handler;
+                final MessageHandler target = this.dport_handlers[skb.getHeader().getDestinationPort()];
+                return null == target ? handler : target;
+        }
+
+/* Redundant feed lines with their arbitration statistics, only valid on the receive thread.
+ */
+        public List<ReceiveLine> getReceiveLines() {
+                return Collections.unmodifiableList (this.recv_lines);
+        }
+
 /* Send one APDU, whether it fits within one TPDU or more.
  *
  * On success, returns PGM_IO_STATUS_NORMAL, on block for non-blocking sockets
@@ -901,17 +1543,109 @@ public class Socket {
                 LOG.debug ("send");
 
 /* State */
-                if (!this.isBound || this.isDestroyed || apdu_length > this.max_apdu)
+                if (!this.isBound || this.isDestroyed || this.isFinSent || apdu_length > this.max_apdu)
                         return IoStatus.IO_STATUS_ERROR;
 
 /* Pass on non-fragment calls */
                 if (apdu_length <= this.max_tsdu) {
-                        return this.sendOriginalData (apdu, offset, apdu_length);
+                        return this.sendOriginalData (apdu, offset, apdu_length, false);
                 } else {
-                        return this.send_apdu (apdu, offset, apdu_length);
+                        return this.send_apdu (apdu, offset, apdu_length, false);
                 }
         }
 
+/* Send the last APDU of the session, its final ODATA carries OPT_FIN such that receivers
+ * release the session once it is delivered without waiting for the FIN SPMs of close().
+ * Further sends fail.
+ */
+        public IoStatus sendFinal (byte[] apdu, int offset, int apdu_length) {
+                LOG.debug ("sendFinal");
+
+/* State */
+                if (!this.isBound || this.isDestroyed || this.isFinSent || apdu_length > this.max_apdu)
+                        return IoStatus.IO_STATUS_ERROR;
+
+/* OPT_LENGTH is added when no other option is present */
+                final int fin_length = OriginalData.SIZEOF_FIN_OPTION + (this.txw_join_sqns > 0 ? 0 : Packet.SIZEOF_PGM_OPT_LENGTH);
+                final IoStatus status;
+                if (apdu_length <= this.max_tsdu - fin_length) {
+                        status = this.sendOriginalData (apdu, offset, apdu_length, true);
+                } else {
+                        status = this.send_apdu (apdu, offset, apdu_length, true);
+                }
+                if (IoStatus.IO_STATUS_NORMAL == status)
+                        this.isFinSent = true;
+                return status;
+        }
+
+/* As send() waiting up to timeout for the APDU to fit within the transmit rate limits, a
+ * negative timeout waits indefinitely.  Waiting parks the calling thread without holding
+ * any monitor, such that virtual threads unmount.
+ *
+ * Returns PGM_IO_STATUS_RATE_LIMITED if the timeout expires first.
+ */
+        public IoStatus send (byte[] apdu, int offset, int apdu_length, long timeout, TimeUnit unit) {
+                checkNotNull (unit);
+
+/* State */
+                if (!this.isBound || this.isDestroyed || this.isFinSent || apdu_length > this.max_apdu)
+                        return IoStatus.IO_STATUS_ERROR;
+
+                final long deadline = timeout < 0 ? Long.MAX_VALUE : Socket.microTime() + unit.toMicros (timeout);
+/* Refuse up front an APDU the rate cannot admit before the deadline, every TPDU carrying
+ * its own headers, such that a started APDU is never abandoned.
+ */
+                if (timeout >= 0) {
+                        final int tpdus = apdu_length <= this.max_tsdu ? 1 : (apdu_length + this.max_tsdu_fragment - 1) / this.max_tsdu_fragment;
+                        final int overhead = this.max_tpdu - this.iphdr_len - this.max_tsdu_fragment;
+                        final long bytes = apdu_length + (long)tpdus * (this.iphdr_len + overhead);
+                        if (Socket.microTime() + remainingOriginalData (bytes) > deadline)
+                                return IoStatus.IO_STATUS_RATE_LIMITED;
+                }
+/* Pacing is by send(), which refuses the first TPDU whilst the buckets are empty */
+                final long first_tpdu_length = apdu_length <= this.max_tsdu ?
+                                               this.max_tpdu - this.iphdr_len - this.max_tsdu + apdu_length :
+                                               this.max_tpdu - this.iphdr_len;
+                while (true) {
+                        final IoStatus status = send (apdu, offset, apdu_length);
+                        if (IoStatus.IO_STATUS_RATE_LIMITED != status)
+                                return status;
+                        final long now = Socket.microTime();
+                        if (now >= deadline)
+                                return IoStatus.IO_STATUS_RATE_LIMITED;
+                        final long usecs = Math.min (deadline - now, remainingOriginalData (this.iphdr_len + first_tpdu_length));
+                        LockSupport.parkNanos (TimeUnit.MICROSECONDS.toNanos (Math.max (1, usecs)));
+                        if (Thread.interrupted()) {
+                                Thread.currentThread().interrupt();
+                                return IoStatus.IO_STATUS_RATE_LIMITED;
+                        }
+                }
+        }
+
+/* Debit tpdu_length from the total and ODATA buckets, neither is debited unless both
+ * admit it.  Blocking waits for the buckets to refill after debiting.
+ */
+        private boolean checkOriginalData (long tpdu_length, boolean isNonBlocking) {
+                if (null != this.rate_control && null != this.odata_rate_control)
+                        return RateControl.check2 (this.rate_control, this.odata_rate_control, tpdu_length, isNonBlocking);
+                if (null != this.rate_control)
+                        return RateControl.check (this.rate_control, tpdu_length, isNonBlocking);
+                if (null != this.odata_rate_control)
+                        return RateControl.check (this.odata_rate_control, tpdu_length, isNonBlocking);
+                return true;
+        }
+
+/* Microseconds until the total and ODATA buckets admit n bytes.
+ */
+        private long remainingOriginalData (long n) {
+                long usecs = 0;
+                if (null != this.rate_control)
+                        usecs = Math.max (usecs, RateControl.remaining (this.rate_control, n));
+                if (null != this.odata_rate_control)
+                        usecs = Math.max (usecs, RateControl.remaining (this.odata_rate_control, n));
+                return usecs;
+        }
+
 /* Data incoming on receive sockets, can be from a sender or receiver, or simply bogus.
  * For IPv4 we receive the IP header to handle fragmentation, for IPv6 we cannot, but the
  * underlying stack handles this for us.
@@ -925,15 +1659,303 @@ public class Socket {
  * PGM_IO_STATUS_WOULD_BLOCK.  When rate limited sending repair data, returns
  * PGM_IO_STATUS_RATE_LIMITED and caller should wait.  During recovery state,
  * returns PGM_IO_STATUS_TIMER_PENDING and caller should also wait.  On
- * unrecoverable dataloss, returns PGM_IO_STATUS_CONN_RESET.  If connection is
- * closed, returns PGM_IO_STATUS_EOF.  On error, returns PGM_IO_STATUS_ERROR.
+ * unrecoverable dataloss, returns PGM_IO_STATUS_CONN_RESET.  When a source ends
+ * its session with OPT_FIN, returns PGM_IO_STATUS_FIN once its remaining data has
+ * been delivered.  If connection is closed, returns PGM_IO_STATUS_EOF.  On error,
+ * returns PGM_IO_STATUS_ERROR.
+ *
+ * Returned skbs are valid until the next call, unless retained with SocketBuffer.get()
+ * and later released with SocketBuffer.free() from any thread.
  */
         
 	public IoStatus receive (List<SocketBuffer> skbs) throws IOException {
+		return recvmsgv (skbs, this.recv_max_msgs);
+	}
+
+/* As receive() blocking up to timeout for data, a negative timeout waits indefinitely.
+ * Waits on channel readiness, the next protocol timer and any rate limit, whichever is
+ * first, running timers as they expire.  No monitor is held whilst waiting.
+ *
+ * Returns PGM_IO_STATUS_NORMAL with data, a loss or session status as receive(), or the
+ * last status on timeout: PGM_IO_STATUS_TIMER_PENDING, PGM_IO_STATUS_RATE_LIMITED or
+ * PGM_IO_STATUS_WOULD_BLOCK.  An interrupt ends the wait as a timeout with the interrupt
+ * status kept.
+ */
+	public IoStatus receive (List<SocketBuffer> skbs, long timeout, TimeUnit unit) throws IOException {
+		checkNotNull (unit);
+
+		final long deadline = timeout < 0 ? Long.MAX_VALUE : Socket.microTime() + unit.toMicros (timeout);
+		while (true) {
+			final IoStatus status = receive (skbs);
+			long usecs;
+			switch (status) {
+			case IO_STATUS_TIMER_PENDING:
+				usecs = Math.max (1, getTimeRemain());
+				break;
+			case IO_STATUS_RATE_LIMITED:
+/* Retry promptly if the limit has already refilled */
+				usecs = Math.max (1000, getRateRemain());
+				break;
+			case IO_STATUS_WOULD_BLOCK:
+				usecs = Long.MAX_VALUE;
+				break;
+			default:
+				return status;
+			}
+			final long now = Socket.microTime();
+			if (now >= deadline || Thread.currentThread().isInterrupted())
+				return status;
+			awaitReceive (Math.min (usecs, deadline - now));
+		}
+	}
+
+/* Wait up to usecs for a datagram on the receive channel or lines.  Shard sockets fed
+ * by a ShardedReceiver have no channel and are unparked by the I/O thread.
+ */
+	private void awaitReceive (long usecs) throws IOException {
+		if (null != this.rx_queue) {
+			if (this.rx_queue.isEmpty())
+				LockSupport.parkNanos (TimeUnit.MICROSECONDS.toNanos (Math.min (usecs, 1000 * 1000)));
+			return;
+		}
+		if (null == this.wait_selector) {
+			this.wait_selector = Selector.open();
+			register (this.wait_selector, SelectionKey.OP_READ);
+		}
+/* Selector treats zero as infinite, round up to whole milliseconds */
+		final long msecs = Long.MAX_VALUE == usecs ? 0 : Math.max (1, (usecs + 999) / 1000);
+		if (this.wait_selector.select (msecs) > 0)
+			this.wait_selector.selectedKeys().clear();
+	}
+
+/* As receive() delivering at most maxMessages APDUs, further contiguous data remains
+ * committed in the receive windows until a later call.
+ */
+	public IoStatus receive (List<SocketBuffer> skbs, int maxMessages) throws IOException {
+		checkArgument (maxMessages > 0);
+		return recvmsgv (skbs, this.recv_max_msgs > 0 ? Math.min (maxMessages, this.recv_max_msgs) : maxMessages);
+	}
+
+/* Read incoming packets and run timers without delivering any data, such that a
+ * consumer without demand still receives, NAKs and holds data in the receive windows.
+ * Once the windows fill, new data is refused as with any slow consumer.
+ *
+ * Returns as receive(), never PGM_IO_STATUS_NORMAL.
+ */
+	public IoStatus service() throws IOException {
+		final List<SocketBuffer> skbs = this.pollSkbs;
+		skbs.clear();
+		return recvmsgv (skbs, -1);
+	}
+
+/* Callback variant of receive(), each complete APDU is passed to the handler in turn
+ * without allocating per message.  Single TPDU APDUs are passed in place in the socket
+ * buffer, fragmented APDUs are copied into a per-socket reassembly buffer, or with
+ * PGM_STREAMING passed in place per fragment.  Buffer contents are only valid for the
+ * duration of the callback.
+ *
+ * Data loss reported by receive() as PGM_IO_STATUS_RESET or PGM_IO_STATUS_GAP is
+ * flagged on the next message handled.
+ *
+ * Sessions of ports added with addDataDestinationPort() are passed to that port's handler.
+ *
+ * Returns count of messages handled, up to limit, zero if none were available and
+ * getPollStatus() holds the reason, or -1 on error.
+ */
+	public int poll (MessageHandler handler, int limit) throws IOException {
+		checkNotNull (handler);
+		checkArgument (limit > 0);
+
+		final List<SocketBuffer> skbs = this.pollSkbs;
+		skbs.clear();
+		this.pollStatus = recvmsgv (skbs, this.recv_max_msgs > 0 ? Math.min (limit, this.recv_max_msgs) : limit);
+		switch (this.pollStatus) {
+		case IO_STATUS_NORMAL:
+			break;
+		case IO_STATUS_RESET:
+			this.pollFlags |= MessageHandler.MSG_RESET;
+			return 0;
+		case IO_STATUS_GAP:
+			this.pollFlags |= MessageHandler.MSG_GAP;
+			return 0;
+		case IO_STATUS_ERROR:
+			return -1;
+		default:
+			return 0;
+		}
+
+		int count = 0;
+		for (int i = 0; i < skbs.size(); count++) {
+			final SocketBuffer skb = skbs.get (i++);
+			final MessageHandler target = handlerOf (skb, handler);
+			this.pollTimestamp = skb.getTimestamp();
+			if (!skb.isFragment()) {
+				target.onMessage (skb.getTransportSessionId(),
+						   skb.getRawBytes(), skb.getDataOffset(), skb.getLength(),
+						   this.pollFlags | skb.getMessageFlags());
+			} else if (this.isStreaming) {
+/* Each fragment in place, flagged until the APDU is complete */
+				final OptionFragment fragment = skb.getFragmentOption();
+				final boolean isPartial = fragment.getFragmentOffset() + skb.getLength() < fragment.getApduLength();
+				target.onMessage (skb.getTransportSessionId(),
+						   skb.getRawBytes(), skb.getDataOffset(), skb.getLength(),
+						   this.pollFlags | (isPartial ? MessageHandler.MSG_PARTIAL : 0));
+			} else {
+				final int apdu_length = (int)skb.getFragmentOption().getApduLength();
+				if (null == this.reassemblyBuffer || this.reassemblyBuffer.length < apdu_length)
+					this.reassemblyBuffer = new byte[Math.max (apdu_length, ReceiveWindow.MAX_APDU)];
+				System.arraycopy (skb.getRawBytes(), skb.getDataOffset(), this.reassemblyBuffer, 0, skb.getLength());
+				int contiguous_length = skb.getLength();
+				while (contiguous_length < apdu_length) {
+					final SocketBuffer fragment = skbs.get (i++);
+					System.arraycopy (fragment.getRawBytes(), fragment.getDataOffset(),
+							  this.reassemblyBuffer, contiguous_length,
+							  fragment.getLength());
+					contiguous_length += fragment.getLength();
+/* Complete on arrival of the latest fragment */
+					if (fragment.getTimestamp() > this.pollTimestamp)
+						this.pollTimestamp = fragment.getTimestamp();
+				}
+				target.onMessage (skb.getTransportSessionId(),
+						   this.reassemblyBuffer, 0, apdu_length,
+						   this.pollFlags | MessageHandler.MSG_REASSEMBLED);
+			}
+			this.pollFlags = 0;
+		}
+		skbs.clear();
+		return count;
+	}
+
+/* Receive timestamp in microseconds of the message being passed by poll(), the latest
+ * fragment of a reassembled APDU, valid for the duration of the callback.
+ */
+	public long getMessageTimestamp() {
+		return this.pollTimestamp;
+	}
+
+/* Status of the last poll() call.
+ */
+	public IoStatus getPollStatus() {
+		return this.pollStatus;
+	}
+
+/* Read one datagram into buffer, from the receive socket, then the receive lines, then the
+ * group channels in rotation, setting rx_line and rx_dst.  Returns null if none is
+ * immediately available.
+ *
+ * The wildcard bound receive socket is also delivered a copy of all multicast traffic to
+ * the port.  With lines or groups, downstream packets are read from their channels and the
+ * copies on the receive socket are drained and discarded on every call such that its buffer
+ * never overruns, whilst upstream and peer-to-peer packets, unicast or multicast, are read
+ * from the receive socket alone such that each is processed once.
+ */
+	InetSocketAddress receiveDatagram (ByteBuffer buffer) throws IOException {
+		InetSocketAddress src = null;
+		this.rx_line = null;
+		final int lines = this.recv_lines.size();
+		final int groups = this.recv_groups.size();
+		final boolean hasChannels = lines > 0 || groups > 0;
+		while (null != (src = (InetSocketAddress)this.recv_sock.receive (buffer))) {
+			if (hasChannels && isDownstream (buffer)) {
+				buffer.clear();
+				continue;
+			}
+			if (!this.recv_gsr.isEmpty())
+				this.rx_dst = this.recv_gsr.keySet().iterator().next().getMulticastAddress();
+			else
+				this.rx_dst = this.send_gsr.getMulticastAddress();
+			return src;
+		}
+/* Redundant lines, rotating the first line read */
+		for (int i = 0; i < lines && null == src; i++) {
+			final ReceiveLine line = this.recv_lines.get ((this.rx_line_index + i) % lines);
+			while (null != (src = (InetSocketAddress)line.getChannel().receive (buffer))) {
+				if (isDownstream (buffer)) {
+					this.rx_line = line;
+					line.onPacket();
+					break;
+				}
+				buffer.clear();
+			}
+		}
+		if (lines > 0)
+			this.rx_line_index = (this.rx_line_index + 1) % lines;
+		if (null != src) {
+			this.rx_dst = this.rx_line.getGroupAddress();
+			return src;
+		}
+/* Groups continue after the last group read such that none is starved */
+		for (int i = 0; i < groups; i++) {
+			final int index = (this.rx_group_index + i) % groups;
+			final ReceiveGroup group = this.recv_groups.get (index);
+			while (null != (src = (InetSocketAddress)group.getChannel().receive (buffer))) {
+				if (isDownstream (buffer)) {
+					this.rx_group_index = (index + 1) % groups;
+					this.rx_dst = group.getGroupAddress();
+					group.onPacket();
+					return src;
+				}
+				buffer.clear();
+			}
+		}
+		return null;
+	}
+
+	private static boolean isDownstream (ByteBuffer buffer) {
+		return buffer.position() > Packet.PGM_TYPE_OFFSET &&
+		       Header.isDownstream (buffer.get (Packet.PGM_TYPE_OFFSET) & 0xff);
+	}
+
+/* Header only classification before the checksum and parse, discarding packets this socket
+ * would discard later: downstream packets for a muted receiver or another data-destination
+ * port, sources blocked on the destination group, and packets refused by the filter.
+ *
+ * Returns false to discard.
+ */
+	boolean isWanted (SocketBuffer skb, InetAddress src_addr, InetAddress dst_addr) {
+		final int length = skb.getLength();
+		if (length < Packet.SIZEOF_PGM_HEADER)
+			return true;		/* reported by parse */
+		final byte[] buf = skb.getRawBytes();
+		final int offset = skb.getDataOffset();
+		if (Header.isDownstream (buf[offset + Packet.PGM_TYPE_OFFSET] & 0xff) &&
+		    (!this.canReceiveData ||
+		     !isDataDestinationPort (((buf[offset + Packet.PGM_DPORT_OFFSET] & 0xff) << 8) | (buf[offset + Packet.PGM_DPORT_OFFSET + 1] & 0xff))))
+		{
+			this.filteredCount++;
+			return false;
+		}
+		if (!this.blocked_sources.isEmpty()) {
+			final Set<InetAddress> sources = this.blocked_sources.get (dst_addr);
+			if (null != sources && sources.contains (src_addr)) {
+				this.filteredCount++;
+				return false;
+			}
+		}
+		if (null != this.packet_filter &&
+		    !this.packet_filter.accept (buf, offset, src_addr, dst_addr))
+		{
+			this.filteredCount++;
+			return false;
+		}
+		return true;
+	}
+
+/* Packets discarded by header classification before checksum verification.
+ */
+	public long getFilteredCount() {
+		return this.filteredCount;
+	}
+
+/* maxMessages of zero delivers without limit, negative delivers nothing.
+ */
+	private IoStatus recvmsgv (List<SocketBuffer> skbs, int maxMessages) throws IOException {
 		IoStatus status = IoStatus.IO_STATUS_WOULD_BLOCK;
 
 /* State */
-                if (!this.isBound || this.isDestroyed)
+                if (this.isDestroyed)
+                        return IoStatus.IO_STATUS_EOF;
+                if (!this.isBound)
                         return IoStatus.IO_STATUS_ERROR;
                 
 /* Pre-conditions */
@@ -950,6 +1972,14 @@ public class Socket {
 				this.isReset = !this.isReset;
 			return IoStatus.IO_STATUS_RESET;
 		}
+		if (this.isGap) {
+			this.isGap = false;
+			return IoStatus.IO_STATUS_GAP;
+		}
+		if (this.isFin) {
+			this.isFin = false;
+			return IoStatus.IO_STATUS_FIN;
+		}
 
 /* Timer status */
 		if (timerCheck() &&
@@ -970,47 +2000,81 @@ public class Socket {
 		if (0 == ++(this.lastCommit))
 			++(this.lastCommit);
 
+/* Delivered skbs start here */
+		final int firstSkb = skbs.size();
+
+/* Delivery budget for this call */
+                this.recvMessageBudget = maxMessages > 0 ? maxMessages : (0 == maxMessages ? Integer.MAX_VALUE : 0);
+                this.recvByteBudget = this.recv_max_bytes > 0 ? this.recv_max_bytes : Long.MAX_VALUE;
+
 		do {
 /* second, flush any remaining contiguous messages from previous call(s) */
 			if (null != this.peers_pending && !this.peers_pending.isEmpty()) {
-				if (0 != flushPeersPending (skbs))
+				if (0 != flushPending (skbs))
 					break;
 			}
 
-			do {
-				InetSocketAddress src = (InetSocketAddress)this.recv_sock.receive (this.buffer);
+/* Read until data is delivered, or no datagram remains on any channel within the batch */
+			for (int datagrams = 0; datagrams < RX_BATCH_MAX; datagrams++) {
+				final InetAddress src_addr, dst_addr;
+				if (null != this.rx_queue) {
+/* Packet handed over by the I/O thread of a ShardedReceiver */
+					this.rx_line = null;
+					this.rx_buffer = this.rx_queue.poll();
+					if (null == this.rx_buffer)
+						break;
+					this.rx_buffer.setSocket (this);
+					src_addr = this.rx_buffer.getSourceAddress();
+					dst_addr = this.rx_buffer.getDestinationAddress();
+				} else {
+					final InetSocketAddress src = receiveDatagram (this.buffer);
 /* No datagram was immediately available. */
-                                if (null == src)
-                                        break;
-				this.buffer.flip();
-				this.rx_buffer = new SocketBuffer (this.buffer.remaining());
-                                this.rx_buffer.setSocket (this);
-				this.rx_buffer.setTimestamp (Socket.microTime());
-				this.rx_buffer.put (this.rx_buffer.getRawBytes().length);
-				this.buffer.get (this.rx_buffer.getRawBytes(), 0, this.rx_buffer.getRawBytes().length);
-				this.buffer.clear();
+					if (null == src)
+						break;
+					this.buffer.flip();
+					this.rx_buffer = this.rx_pool.allocate();
+					this.rx_buffer.setSocket (this);
+					this.rx_buffer.setTimestamp (Socket.microTime());
+					final int len = this.buffer.remaining();
+					this.rx_buffer.put (len);
+					this.buffer.get (this.rx_buffer.getRawBytes(), 0, len);
+					this.buffer.clear();
+					src_addr = src.getAddress();
+					dst_addr = this.rx_dst;
+				}
 /* Rx testing */
                                 if (false && (Math.random() < 0.25)) {
                                         LOG.debug ("Simulated packet loss");
+                                        this.rx_buffer.free();
                                         continue;
                                 }
-				if (!Packet.parseUdpEncapsulated (this.rx_buffer))
-					break;
+				if (!isWanted (this.rx_buffer, src_addr, dst_addr)) {
+					this.rx_buffer.free();
+					continue;
+				}
+				if (!Packet.parseUdpEncapsulated (this.rx_buffer)) {
+					this.rx_buffer.free();
+					continue;
+				}
 				this.source[0] = null;
-				if (!onPgm (this.rx_buffer, src.getAddress(), this.recv_gsr.keySet().iterator().next().getMulticastAddress(), this.source))
-					break;
+				final boolean isValid = onPgm (this.rx_buffer, src_addr, dst_addr, this.source);
+/* Release receive reference, the window retains its own */
+				this.rx_buffer.free();
+				this.rx_buffer = null;
+				if (!isValid)
+					continue;
 /* Check whether this source has waiting data */
 				if (null != this.source[0] && this.source[0].hasPending()) {
 					LOG.trace (RX_WINDOW_MARKER, "New pending data.");
-					this.peers_pending.addFirst (this.source[0]);
+					this.peers_pending.addLast (this.source[0]);
 					this.source[0].setPendingLinkData();
 				}
 /* Flush any congtiguous packets generated by the receipt of this packet */
 				if (null != this.peers_pending && !this.peers_pending.isEmpty()) {
-					if (0 != flushPeersPending (skbs))
+					if (0 != flushPending (skbs))
 						break;
 				}
-			} while (false);
+			}
 		} while (false);
 
 		if (skbs.isEmpty()) {
@@ -1020,6 +2084,16 @@ public class Socket {
 					this.isReset = !this.isReset;
 				return IoStatus.IO_STATUS_RESET;
 			}
+/* Report sequences skipped on the delivery deadline */
+			if (this.isGap) {
+				this.isGap = false;
+				return IoStatus.IO_STATUS_GAP;
+			}
+/* Report sessions ended by the source */
+			if (this.isFin) {
+				this.isFin = false;
+				return IoStatus.IO_STATUS_FIN;
+			}
 			if (IoStatus.IO_STATUS_WOULD_BLOCK == status &&
                                 (this.canSendData ||
                                  this.canReceiveData && !this.peers_hashtable.isEmpty()))
@@ -1029,9 +2103,47 @@ public class Socket {
 			return status;
 		}
 
+		if (null != this.journal)
+			journalSkbs (skbs, firstSkb);
 		return IoStatus.IO_STATUS_NORMAL;
 	}
 
+/* Append APDUs delivered from index first onwards to the journal, fragments are gathered
+ * straight into the journal record.  Streamed fragments are journalled as delivered.
+ */
+	private void journalSkbs (List<SocketBuffer> skbs, int first) throws IOException {
+		final ReceiveJournal journal = this.journal;
+		for (int i = first; i < skbs.size();) {
+			final SocketBuffer skb = skbs.get (i++);
+			final int sequence = skb.getSequenceNumber().intValue();
+			if (!skb.isFragment()) {
+				journal.append (skb.getTransportSessionId(), sequence, skb.getTimestamp(),
+						skb.getRawBytes(), skb.getDataOffset(), skb.getLength(), skb.getMessageFlags());
+			} else if (this.isStreaming) {
+				final OptionFragment fragment = skb.getFragmentOption();
+				final boolean isPartial = fragment.getFragmentOffset() + skb.getLength() < fragment.getApduLength();
+				journal.append (skb.getTransportSessionId(), sequence, skb.getTimestamp(),
+						skb.getRawBytes(), skb.getDataOffset(), skb.getLength(),
+						isPartial ? MessageHandler.MSG_PARTIAL : 0);
+			} else {
+				final int apdu_length = (int)skb.getFragmentOption().getApduLength();
+				final boolean isJournalled = journal.begin (skb.getTransportSessionId(), sequence, skb.getTimestamp(),
+									    apdu_length, MessageHandler.MSG_REASSEMBLED);
+				if (isJournalled)
+					journal.write (skb.getRawBytes(), skb.getDataOffset(), skb.getLength());
+				int contiguous_length = skb.getLength();
+				while (contiguous_length < apdu_length) {
+					final SocketBuffer fragment = skbs.get (i++);
+					if (isJournalled)
+						journal.write (fragment.getRawBytes(), fragment.getDataOffset(), fragment.getLength());
+					contiguous_length += fragment.getLength();
+				}
+				if (isJournalled)
+					journal.commit();
+			}
+		}
+	}
+
 /* Upstream = receiver to source, peer-to-peer = receive to receiver
  *
  * NB: SPMRs can be upstream or peer-to-peer, if the packet is multicast then its
@@ -1108,7 +2220,45 @@ public class Socket {
 		InetAddress destinationAddress
 		)
 	{
-		return false;
+		if (!this.canReceiveData) {
+			LOG.trace (NETWORK_MARKER, "Discarded peer packet for muted receiver.");
+			return false;
+		}
+
+/* Peer NAK travels upstream, sport is one of our data-destination ports */
+		if (!isDataDestinationPort (skb.getHeader().getSourcePort())) {
+			LOG.trace (NETWORK_MARKER, "Discarded peer packet on data-destination port mismatch.");
+			return false;
+		}
+
+/* We are expecting a peer NAK of a known TSI, dport is the source port */
+		final TransportSessionId tsi = new TransportSessionId (skb.getHeader().getGlobalSourceId(),
+								      skb.getHeader().getDestinationPort());
+		final Peer source = this.peers_hashtable.get (tsi);
+		if (null == source) {
+			LOG.trace (NETWORK_MARKER, "Discarded peer packet about new source.");
+			return false;
+		}
+		if (skb.getHeader().getSourcePort() != source.getDataDestinationPort()) {
+			LOG.trace (NETWORK_MARKER, "Discarded peer packet on data-destination port mismatch.");
+			return false;
+		}
+
+/* Advance SKB pointer to PGM type header */
+		skb.pull (Packet.SIZEOF_PGM_HEADER);
+
+		switch (skb.getHeader().getType()) {
+		case Packet.PGM_NAK:
+			if (!onPeerNak (source, skb))
+				return false;
+			break;
+
+		default:
+			LOG.trace (NETWORK_MARKER, "Discarded unsupported PGM peer packet.");
+			return false;
+		}
+
+		return true;
 	}
 
 /* Source to receiver message
@@ -1136,10 +2286,11 @@ public class Socket {
 			return false;
 		}
 
-/* PGM packet DPORT contains our sock DPORT */                
-		if (skb.getHeader().getDestinationPort() != this.dataDestinationPort) {
+/* PGM packet DPORT contains one of our sock DPORTs */                
+		final int dport = skb.getHeader().getDestinationPort();
+		if (!isDataDestinationPort (dport)) {
 			LOG.trace (NETWORK_MARKER, "Discarded packet on data-destination port mismatch.");
-			LOG.debug ("Data-destination port: {}", skb.getHeader().getDestinationPort());
+			LOG.debug ("Data-destination port: {}", dport);
 			return false;
 		}
 
@@ -1148,7 +2299,15 @@ public class Socket {
 		source[0] = this.peers_hashtable.get (tsi);
 		if (null == source[0]) {
 			source[0] = new Peer (this, tsi, sourceAddress, destinationAddress, skb.getTimestamp());
+			source[0].setDataDestinationPort (dport);
 			this.peers_hashtable.put (tsi, source[0]);
+			if (null != this.checkpoint)
+				this.checkpoint.attach (source[0], false);
+		} else if (dport != source[0].getDataDestinationPort()) {
+/* One TSI is one session, on one port */
+			LOG.trace (NETWORK_MARKER, "Discarded packet on data-destination port change, tsi {}", tsi);
+			source[0] = null;
+			return false;
 		}
 
 		source[0].setLastPacketTimestamp (skb.getTimestamp());
@@ -1169,10 +2328,11 @@ public class Socket {
 			break;
 
 		case Packet.PGM_SPM:
-			if (!this.onSourcePathMessage (source[0], skb))
+			if (!this.onSourcePathMessage (source, skb))
 				return false;
-/* Update group NLA if appropriate */                        
-			if (destinationAddress.isMulticastAddress())
+/* Update group NLA if appropriate, the peer is gone if the session ended */                        
+			if (null != source[0] &&
+			    destinationAddress.isMulticastAddress())
 				source[0].setGroupAddress (destinationAddress);
 			break;
 
@@ -1224,10 +2384,15 @@ public class Socket {
 /* SPM indicate start of a session, continued presence of a session, or flushing final packets
  * of a session.
  *
+ * OPT_SYN with a rewound SPM sequence number from an established session is a restarted
+ * source, the peer is replaced.  OPT_FIN flushes the remaining data then releases the
+ * peer, OPT_RST releases the peer immediately.  source[0] is updated accordingly and may
+ * be cleared.
+ *
  * Returns TRUE on valid packet, FALSE on invalid packet or duplicate SPM sequence number.
  */        
 	private boolean onSourcePathMessage (
-		Peer source,
+		Peer[] source,
 		SocketBuffer skb
 		)
 	{
@@ -1235,34 +2400,106 @@ public class Socket {
 
 		SourcePathMessage spm = new SourcePathMessage (skb, skb.getDataOffset());
 
-/* check for advancing sequence number, or first SPM */
-/* BUG: cannot join old networks */
-		if (spm.getSpmSequenceNumber().gte (source.getSpmSequenceNumber()))
+/* OPT_JOIN bounds recovery for a late joining receiver, OPT_SYN/FIN/RST mark the session */
+		if (skb.getHeader().isOptionExtensionPresent() &&
+		    !Packet.parseOptionExtensions (skb, spm.getOptionOffset()))
+		{
+			return false;
+		}
+
+		Peer peer = source[0];
+
+/* End of a session we hold no state for */
+		if ((skb.hasFinOption() || skb.hasRstOption()) &&
+		    !peer.hasSpmSequenceNumber() &&
+		    !peer.hasIncomingData())
+		{
+			LOG.trace (SESSION_MARKER, "Discarded session end for unknown tsi {}", peer.getTransportSessionId());
+			removePeer (peer);
+			source[0] = null;
+			return false;
+		}
+
+/* Session aborted by the source */
+		if (skb.hasRstOption()) {
+			LOG.trace (SESSION_MARKER, "Session reset by source, tsi {}", peer.getTransportSessionId());
+			removePeer (peer);
+			source[0] = null;
+			this.isReset = true;
+			return true;
+		}
+
+/* New session from the same TSI: the SPM sequence restarted well behind the last seen, or
+ * the advertised window precedes the receive window.  A SYN within the recent range is a
+ * repeat of connect() reordered or delivered late by another line.
+ */
+		if (skb.hasSynOption() &&
+		    peer.hasSpmSequenceNumber() &&
+		    spm.getSpmSequenceNumber().lt (peer.getSpmSequenceNumber()) &&
+		    (peer.getSpmSequenceNumber().minus (spm.getSpmSequenceNumber()).longValue() > SPM_SQN_RECENT ||
+		     (null != peer.getTrail() && spm.getSpmTrail().lt (peer.getTrail()))))
+		{
+			LOG.trace (SESSION_MARKER, "Session restarted by source, tsi {}", peer.getTransportSessionId());
+			removePeer (peer);
+/* Undelivered data of the previous session is lost */
+			if (peer.hasIncomingData())
+				this.isReset = true;
+			final int dport = peer.getDataDestinationPort();
+			peer = new Peer (this, peer.getTransportSessionId(), peer.getLocalNetworkLayerAddress(), peer.getGroupAddress(), skb.getTimestamp());
+			peer.setDataDestinationPort (dport);
+			this.peers_hashtable.put (peer.getTransportSessionId(), peer);
+			if (null != this.checkpoint)
+				this.checkpoint.attach (peer, true);
+			source[0] = peer;
+		}
+
+/* check for advancing sequence number, or first SPM of a session of any age */
+		if (!peer.hasSpmSequenceNumber() ||
+		    spm.getSpmSequenceNumber().gte (peer.getSpmSequenceNumber()))
 		{
 /* copy NLA for replies */
-			source.setNetworkLayerAddress (spm.getSpmNla());
+			peer.setNetworkLayerAddress (spm.getSpmNla());
 
 /* save sequence number */
-			source.setSpmSequenceNumber (spm.getSpmSequenceNumber());
+			peer.setSpmSequenceNumber (spm.getSpmSequenceNumber());
+			if (null != this.checkpoint)
+				this.checkpoint.spm (peer, spm.getSpmSequenceNumber(), skb.getTimestamp());
 
 /* update receive window */
-			final long nak_rb_expiry = skb.getTimestamp() + calculateNakRandomBackoffInterval();
-			final int naks = source.update (spm.getSpmLead(),
-							spm.getSpmTrail(),
-							skb.getTimestamp(),
-							nak_rb_expiry);
+			if (null != this.spill && peer.isWindowFull())
+				spillPeer (peer);
+			final long nak_rb_expiry = skb.getTimestamp() + calculateNakRandomBackoffInterval (peer);
+			final int naks = peer.update (spm.getSpmLead(),
+						      spm.getSpmTrail(),
+						      skb.hasJoinOption() ? skb.getJoinOption().getJoinMinimum() : null,
+						      skb.getTimestamp(),
+						      nak_rb_expiry);
 			if (naks > 0) {
+				if (null != this.drop_monitor)
+					this.pendingMissing += naks;
 				if (this.nextPoll > nak_rb_expiry)
 					this.nextPoll = nak_rb_expiry;
 			}
 
 /* mark receiver window for flushing on next recv() */
-			if (source.hasDataLoss() &&
-			    !source.hasPendingLinkData())
+			if (peer.hasDataLoss() &&
+			    !peer.hasPendingLinkData())
 			{
 				this.isReset = true;
-				source.clearDataLoss();
-				setPendingPeer (source);
+				peer.clearDataLoss();
+				setPendingPeer (peer);
+			}
+
+/* Final lead advertised, release the peer once the remainder is delivered */
+			if (skb.hasFinOption()) {
+				if (!peer.isFin())
+					LOG.trace (SESSION_MARKER, "Session finished by source, tsi {}", peer.getTransportSessionId());
+				peer.setFin();
+				if (peer.isFinished()) {
+					removeFinishedPeer (peer);
+					source[0] = null;
+					return true;
+				}
 			}
 		}
 		else
@@ -1272,8 +2509,8 @@ public class Socket {
 		}
 
 /* either way bump expiration timer */
-		source.setExpiration (skb.getTimestamp() + this.peerExpiration);
-		source.clearSpmrExpiration();
+		peer.setExpiration (skb.getTimestamp() + this.peerExpiration);
+		peer.clearSpmrExpiration();
 		return true;
 	}
         
@@ -1289,6 +2526,62 @@ public class Socket {
 		)
 	{
                 LOG.debug ("onNakConfirm");
+
+		NakConfirm ncf = new NakConfirm (skb, skb.getDataOffset());
+
+/* NCF_SRC_NLA contains the source unicast NLA, OPT_REDIRECT is not supported */
+		if (!source.hasValidNla() ||
+		    !ncf.getNakSourceNla().equals (source.getNetworkLayerAddress()))
+		{
+			LOG.trace (NETWORK_MARKER, "Discarded NCF on NLA mismatch: {}", ncf.getNakSourceNla());
+			return false;
+		}
+
+/* NCF_GRP_NLA echoes the group of our NAK, the group the source was received on */
+		if (!ncf.getNakGroupNla().equals (source.getGroupAddress())) {
+			LOG.trace (NETWORK_MARKER, "Discarded NCF on multicast group mismatch: {}", ncf.getNakGroupNla());
+			return false;
+		}
+
+		List<SequenceNumber> sqn_list = new ArrayList<> ();
+		sqn_list.add (ncf.getNakSequenceNumber());
+
+/* Check NCF list */
+		if (skb.getHeader().isOptionExtensionPresent()) {
+			SequenceNumber[] ncf_list = ncf.getNakListOption();
+			if (null == ncf_list) {
+				LOG.trace (NETWORK_MARKER, "Discarded malformed NCF on missing sequence list.");
+				return false;
+			}
+			sqn_list.addAll (Arrays.asList (ncf_list));
+		}
+
+		if (sqn_list.size() > 63) {
+			LOG.trace (NETWORK_MARKER, "Discarded malformed NCF on sequence list overrun, {} reported NCFs.", sqn_list.size());
+			return false;
+		}
+
+		LOG.debug ("ncf_sqn {}", sqn_list);
+
+/* Pending NAKs for confirmed sequences are suppressed and wait for RDATA, sequences beyond
+ * the lead extend the window.
+ */
+		final long ncf_rdata_ivl = skb.getTimestamp() + calculateNakRepairDataInterval (source);
+		final long ncf_rb_ivl    = skb.getTimestamp() + calculateNakRandomBackoffInterval (source);
+		for (SequenceNumber ncf_sqn : sqn_list) {
+			final ReceiveWindow.Returns status = source.confirm (ncf_sqn, skb.getTimestamp(), ncf_rdata_ivl, ncf_rb_ivl);
+			if (RXW_UPDATED == status ||
+			    RXW_APPENDED == status)
+			{
+				final long ncf_ivl = (RXW_APPENDED == status) ? ncf_rb_ivl : ncf_rdata_ivl;
+				if (this.nextPoll > ncf_ivl)
+					this.nextPoll = ncf_ivl;
+			}
+			else
+			{
+				LOG.trace (NETWORK_MARKER, "NCF #{} not applied: {}", ncf_sqn, status);
+			}
+		}
 		return true;
 	}
 
@@ -1310,20 +2603,43 @@ public class Socket {
 
 		LOG.debug ("onData");
 
-		final long nakBackoffExpiration = skb.getTimestamp() + calculateNakRandomBackoffInterval();
+		final long nakBackoffExpiration = skb.getTimestamp() + calculateNakRandomBackoffInterval (source);
 
 		skb.setOriginalDataOffset (skb.getDataOffset());
 
 		final int opt_total_length = skb.getAsOriginalData().getOptionTotalLength();
+		final int opt_offset = skb.getDataOffset() + OriginalData.SIZEOF_DATA_HEADER;
 
 /* advance data pointer to payload */
 		skb.pull (OriginalData.SIZEOF_DATA_HEADER + opt_total_length);
 
-		if (opt_total_length > 0)
-			Packet.parseOptionExtensions (skb, skb.getDataOffset());
+		if (opt_total_length > 0 &&
+		    !Packet.parseOptionExtensions (skb, opt_offset))
+		{
+			return false;
+		}
 
+		final SequenceNumber sequence = skb.getAsOriginalData().getDataSequenceNumber();
+/* Make room by spilling undelivered data rather than refusing or pulling it */
+		if (null != this.spill && source.isWindowFull())
+			spillPeer (source);
+		final long placeholders = source.getCumulativePlaceholders();
 		final ReceiveWindow.Returns addStatus = source.add (skb, skb.getTimestamp(), nakBackoffExpiration);
 LOG.debug ("ReceiveWindow.add returned " + addStatus);
+		if (null != this.drop_monitor)
+			this.pendingMissing += source.getCumulativePlaceholders() - placeholders;
+
+/* A/B arbitration, the first copy of each sequence wins.  Copies arriving after the trail
+ * has advanced past the sequence are returned as out of bounds.
+ */
+		if (null != this.rx_line &&
+		    RXW_MALFORMED != addStatus)
+		{
+			this.rx_line.onData (source.getTransportSessionId(),
+					     sequence,
+					     Packet.PGM_ODATA == skb.getHeader().getType(),
+					     RXW_DUPLICATE != addStatus && RXW_BOUNDS != addStatus);
+		}
 
 		switch (addStatus) {
 		case RXW_MISSING:
@@ -1339,6 +2655,12 @@ LOG.debug ("ReceiveWindow.add returned " + addStatus);
 			return false;
 		}
 
+/* Last ODATA of the session, the peer is released once the remainder is delivered */
+		if (skb.hasFinOption() && !source.isFin()) {
+			LOG.trace (SESSION_MARKER, "Session finished by source, tsi {}", source.getTransportSessionId());
+			source.setFin();
+		}
+
 		if (flushNaks) {
 /* flush out 1st time nak packets */
 			if (flushNaks && this.nextPoll > nakBackoffExpiration)
@@ -1449,7 +2771,7 @@ LOG.debug ("ReceiveWindow.add returned " + addStatus);
                 LOG.debug ("nak_sqn {}", sqn_list);
                 
 /* NAK list numbers */
-                if (sqn_list.size() > 62) {
+                if (sqn_list.size() > 63) {
                         LOG.trace (NETWORK_MARKER, "Malformed NAK rejected on sequence list overrun, {} reported NAKs.", sqn_list.size());
                         return false;
                 }
@@ -1473,6 +2795,76 @@ LOG.debug ("ReceiveWindow.add returned " + addStatus);
                 return true;
         }
         
+/* NAK multicast by another receiver on the segment for a source we are also receiving.
+ * Matching sequences in back-off are moved to WAIT_NCF without sending our own NAK,
+ * the NAK repeat timer restores back-off should the NCF never arrive.
+ *
+ * If peer NAK is valid, returns TRUE.  on error, FALSE is returned.
+ */
+	private boolean onPeerNak (
+		Peer source,
+		SocketBuffer skb
+		)
+	{
+/* Pre-conditions */
+                assert (null != source);
+                assert (null != skb);
+
+                LOG.debug ("onPeerNak");
+
+		Nak nak = new Nak (skb, skb.getDataOffset());
+
+/* NAK_SRC_NLA must not contain our sock unicast NLA */
+		if (nak.getNakSourceNla().equals (this.send_addr)) {
+			LOG.trace (NETWORK_MARKER, "Discarded peer NAK on multicast loop-back.");
+			return false;
+		}
+
+/* NAK_GRP_NLA contains one of our sock receive multicast groups */
+		boolean isMember = false;
+		for (hk.miru.javapgm.GroupSourceRequest gsr : this.recv_gsr.keySet()) {
+			if (nak.getNakGroupNla().equals (gsr.getMulticastAddress())) {
+				isMember = true;
+				break;
+			}
+		}
+		if (!isMember) {
+			LOG.trace (NETWORK_MARKER, "Discarded peer NAK on multicast group mismatch: {}", nak.getNakGroupNla());
+			return false;
+		}
+
+		List<SequenceNumber> sqn_list = new ArrayList<> ();
+		sqn_list.add (nak.getNakSequenceNumber());
+
+/* Check NAK list */
+		if (skb.getHeader().isOptionExtensionPresent()) {
+			SequenceNumber[] nak_list = nak.getNakListOption();
+			if (null == nak_list) {
+				LOG.trace (NETWORK_MARKER, "Discarded malformed peer NAK on missing sequence list.");
+				return false;
+			}
+			sqn_list.addAll (Arrays.asList (nak_list));
+		}
+
+		if (sqn_list.size() > 63) {
+			LOG.trace (NETWORK_MARKER, "Discarded malformed peer NAK on sequence list overrun, {} reported NAKs.", sqn_list.size());
+			return false;
+		}
+
+		final long nak_rpt_expiry = skb.getTimestamp() + calculateNakRepeatInterval (source);
+		int suppressed = 0;
+		for (SequenceNumber nak_sqn : sqn_list) {
+			if (RXW_UPDATED == source.suppress (nak_sqn, nak_rpt_expiry))
+				suppressed++;
+		}
+		if (suppressed > 0) {
+			LOG.trace (RX_WINDOW_MARKER, "Suppressed {} pending NAKs on peer NAK.", suppressed);
+			if (this.nextPoll > nak_rpt_expiry)
+				this.nextPoll = nak_rpt_expiry;
+		}
+		return true;
+	}
+
 /* Null-NAK, or N-NAK propogated by a DLR for hand waving excitement
  *
  * If NNAK is valid, returns TRUE.  on error, FALSE is returned.
@@ -1491,7 +2883,14 @@ LOG.debug ("ReceiveWindow.add returned " + addStatus);
                 return false;
         }
         
-/* copy any contiguous buffers in the peer list to the provided buffer.
+/* Copy contiguous buffers from the pending peers to the provided buffer.
+ *
+ * Peers are visited round-robin, each reading at most one quantum of APDUs whilst
+ * the per-call budget remains.  A peer with data left over is moved to the tail of
+ * the list and carried over to the next call, so one fast source cannot monopolise
+ * delivery.
+ *
+ * Returns -1 on data loss, otherwise count of bytes read.
  */
 	private int flushPeersPending (
 			List<SocketBuffer> skbs
@@ -1499,33 +2898,189 @@ LOG.debug ("ReceiveWindow.add returned " + addStatus);
 	{
 LOG.debug ("flushPeersPending");
 		int bytes_read = 0;
-		int data_read = 0;
-		ListIterator<Peer> it = this.peers_pending.listIterator();
-		while (it.hasNext()) {
-			Peer peer = it.next();
+		int peer_count = this.peers_pending.size();
+		while (peer_count-- > 0 &&
+		       this.recvMessageBudget > 0 &&
+		       this.recvByteBudget > 0)
+		{
+			final Peer peer = this.peers_pending.removeFirst();
 			if (peer.hasLastCommit() && peer.getLastCommit() < this.lastCommit)
 				peer.removeCommit();
-			final int peer_bytes = peer.read (skbs);
+			final int quantum = this.recv_peer_quantum > 0 ?
+						Math.min (this.recv_peer_quantum, this.recvMessageBudget) :
+						this.recvMessageBudget;
+			final long messages = peer.getMessagesDelivered();
+			final int peer_bytes = peer.read (skbs, quantum, this.recvByteBudget);
 			if (peer.hasDataLoss())
 			{
 				this.isReset = true;
 				peer.clearDataLoss();
 			}
-			if (peer_bytes > 0) {
+			if (peer.hasGap())
+			{
+				this.isGap = true;
+				peer.clearGap();
+			}
+			if (peer_bytes >= 0) {
 				bytes_read += peer_bytes;
-				data_read++;
+				this.recvMessageBudget -= (int)(peer.getMessagesDelivered() - messages);
+				this.recvByteBudget -= peer_bytes;
 				peer.setLastCommit (this.lastCommit);
-			} else
+				if (null != this.checkpoint)
+					this.checkpoint.commit (peer, peer.getCommitLead(), Socket.microTime());
+			} else if (!peer.hasCommitData())
 				peer.setLastCommit (0);
-			if (this.isReset)
+			if (this.isReset || this.isGap) {
+/* Resume with this peer after the loss has been reported */
+				this.peers_pending.addFirst (peer);
 				return -1;
+			}
+			if (peer.hasPendingRead()) {
+				LOG.trace (RX_WINDOW_MARKER, "Delivery budget expired, carrying over peer {}.", peer.getTransportSessionId());
+				this.peers_pending.addLast (peer);
+				continue;
+			}
 /* clear this reference and move to next */
-			this.peers_pending.remove();
 			peer.clearPendingLinkData();
+			if (peer.isFinished())
+				removeFinishedPeer (peer);
+		}
+		return bytes_read;
+	}
+
+/* Deliver through the spill whilst it holds data: pending peers append their data behind
+ * it such that per source order is kept, then the oldest records are read up to the
+ * delivery budget.
+ */
+	private int flushPending (
+			List<SocketBuffer> skbs
+			)
+	{
+		if (null == this.spill || this.spill.isEmpty())
+			return flushPeersPending (skbs);
+		for (Peer peer : this.peers_pending) {
+			if (!spillPeer (peer))
+				break;
+		}
+		final int bytes_read = flushSpill (skbs);
+		if (bytes_read < 0 || !this.spill.isEmpty())
+			return bytes_read;
+/* Spill drained, continue with the windows */
+		if (this.peers_pending.isEmpty() || 0 == this.recvMessageBudget || this.recvByteBudget <= 0)
+			return bytes_read;
+		final int peers_read = flushPeersPending (skbs);
+		return peers_read < 0 ? peers_read : bytes_read + peers_read;
+	}
+
+/* Read spilled APDUs up to the delivery budget, a loss event is reported before any
+ * later data as with the windows.
+ *
+ * Returns count of bytes read, or -1 on loss to report.
+ */
+	private int flushSpill (
+			List<SocketBuffer> skbs
+			)
+	{
+		int bytes_read = 0;
+		boolean isRead = false;
+		while (this.recvMessageBudget > 0 && this.recvByteBudget > 0) {
+			final int flags = this.spill.peekFlags();
+			if (flags < 0)
+				break;
+			if (0 != (flags & ReceiveSpill.EVENT)) {
+				if (isRead)
+					break;
+				this.spill.poll();
+				if (0 != (flags & MessageHandler.MSG_RESET))
+					this.isReset = true;
+				if (0 != (flags & MessageHandler.MSG_GAP))
+					this.isGap = true;
+				return -1;
+			}
+			final SocketBuffer skb = this.spill.poll();
+			skbs.add (skb);
+			isRead = true;
+			bytes_read += skb.getLength();
+			this.recvMessageBudget--;
+			this.recvByteBudget -= skb.getLength();
+			if (null != this.checkpoint) {
+				final Peer peer = this.peers_hashtable.get (skb.getTransportSessionId());
+				if (null != peer)
+					this.checkpoint.commit (peer, SequenceNumber.valueOf (this.spill.getNextSequence() & 0xffffffffL), skb.getTimestamp());
+			}
 		}
 		return bytes_read;
 	}
 
+/* Move the complete APDUs at the commit lead of peer into the spill, releasing them from
+ * the window.  Data delivered to the application by the current call is still held and
+ * the peer is left as is.
+ *
+ * Returns false once the spill is full.
+ */
+	private boolean spillPeer (Peer peer)
+	{
+		if (peer.hasLastCommit()) {
+			if (peer.getLastCommit() >= this.lastCommit)
+				return true;
+			peer.removeCommit();
+		}
+		final ReceiveSpill spill = this.spill;
+		final List<SocketBuffer> skbs = this.spillSkbs;
+		final TransportSessionId tsi = peer.getTransportSessionId();
+/* Room for the largest APDU and loss events ahead of it, data read cannot be returned */
+		final int reserve = (int)Math.min (peer.getMaxApdu() + 2 * ReceiveSpill.SIZEOF_RECORD_HEADER, Integer.MAX_VALUE / 2);
+		while (spill.hasRoom (reserve)) {
+			skbs.clear();
+			final int bytes = peer.read (skbs, 1, Long.MAX_VALUE);
+/* Loss precedes the data read with it */
+			if (peer.hasDataLoss()) {
+				peer.clearDataLoss();
+				spill.event (tsi, MessageHandler.MSG_RESET);
+			}
+			if (peer.hasGap()) {
+				peer.clearGap();
+				spill.event (tsi, MessageHandler.MSG_GAP);
+			}
+			if (bytes < 0)
+				break;
+			spillApdu (skbs);
+			peer.removeCommit();
+		}
+		skbs.clear();
+		if (!peer.hasCommitData())
+			peer.setLastCommit (0);
+		return spill.hasRoom (reserve);
+	}
+
+/* Write one APDU read from a window, fragments are gathered into one record.
+ */
+	private void spillApdu (List<SocketBuffer> skbs)
+	{
+		final SocketBuffer skb = skbs.get (0);
+		final int next = skbs.get (skbs.size() - 1).getSequenceNumber().plus (1).intValue();
+		if (!skb.isFragment()) {
+			if (this.spill.begin (skb.getTransportSessionId(), skb.getHeader().getDestinationPort(),
+					      skb.getSequenceNumber().intValue(), next,
+					      skb.getTimestamp(), skb.getLength(), 0))
+			{
+				this.spill.write (skb.getRawBytes(), skb.getDataOffset(), skb.getLength());
+				this.spill.commit();
+			}
+			return;
+		}
+		final int apdu_length = (int)skb.getFragmentOption().getApduLength();
+		if (!this.spill.begin (skb.getTransportSessionId(), skb.getHeader().getDestinationPort(),
+				       skb.getSequenceNumber().intValue(), next,
+				       skb.getTimestamp(), apdu_length, MessageHandler.MSG_REASSEMBLED))
+		{
+			return;
+		}
+		for (SocketBuffer fragment : skbs)
+			this.spill.write (fragment.getRawBytes(), fragment.getDataOffset(), fragment.getLength());
+		this.spill.commit();
+	}
+
 	private boolean timerCheck()
 	{
 		final long now = Socket.microTime();
@@ -1560,6 +3115,11 @@ LOG.debug ("now: {} next: {}", now, (this.nextPoll - now) / (1000 * 1000));
 			if (!checkPeerState (now))
 				return false;
 			nextExpiration = minReceiverExpiration (now + this.peerExpiration);
+			if (null != this.drop_monitor) {
+				if (now >= this.next_drop_check)
+					checkKernelDrops (now);
+				nextExpiration = Math.min (nextExpiration, this.next_drop_check);
+			}
 		}
 
 		if (this.canSendData) {
@@ -1616,6 +3176,86 @@ LOG.debug ("nextExpiration:{} this.nextPoll:{}", nextExpiration, this.nextPoll);
 		return true;
 	}
 
+/* Attribute sequences found missing since the last check to kernel receive buffer
+ * overruns, up to the count of datagrams the kernel dropped in the meantime or left
+ * unmatched by the previous check, and the remainder to network loss.  Overruns double
+ * the receive buffer up to rcvbuf_max.
+ */
+	private void checkKernelDrops (long now)
+	{
+		this.next_drop_check = now + this.drop_check_ivl;
+		final long drops = this.drop_monitor.sample();
+		if (drops < 0) {
+			LOG.warn ("Kernel drop counters lost, disabling overrun detection.");
+			this.drop_monitor = null;
+			return;
+		}
+		final long delta = Math.max (0, drops - this.lastKernelDrops);
+		this.lastKernelDrops = drops;
+		this.kernelDropCount += delta;
+
+/* Drops may precede detection of the gap until the next packet arrives */
+		final long available = this.pendingKernelDrops + delta;
+		final long overrun = Math.min (available, this.pendingMissing);
+		this.overrunLossCount += overrun;
+		this.networkLossCount += this.pendingMissing - overrun;
+		this.pendingKernelDrops = Math.min (delta, available - overrun);
+		this.pendingMissing = 0;
+
+		if (delta > 0) {
+			LOG.trace (RX_WINDOW_MARKER, "Kernel dropped {} datagrams, {} sequences lost to overrun.", delta, overrun);
+			if (this.rcvbuf_max > 0)
+				growReceiveBuffer();
+		}
+	}
+
+/* Double the kernel receive buffer of the receive socket, lines and groups, within rcvbuf_max.
+ */
+	private void growReceiveBuffer()
+	{
+		try {
+			final int current = this.recv_sock.getOption (StandardSocketOptions.SO_RCVBUF);
+/* Linux reports double the requested size to allow for overhead */
+			final int requested = this.rcvbuf > 0 ? this.rcvbuf : current / 2;
+			if (requested >= this.rcvbuf_max)
+				return;
+			this.rcvbuf = (int)Math.min ((long)requested * 2, this.rcvbuf_max);
+			LOG.info ("Growing receive buffer to {} bytes on kernel overrun.", this.rcvbuf);
+			this.recv_sock.setOption (StandardSocketOptions.SO_RCVBUF, this.rcvbuf);
+			for (ReceiveLine line : this.recv_lines)
+				line.getChannel().setOption (StandardSocketOptions.SO_RCVBUF, this.rcvbuf);
+			for (ReceiveGroup group : this.recv_groups)
+				group.getChannel().setOption (StandardSocketOptions.SO_RCVBUF, this.rcvbuf);
+		} catch (IOException e) {
+			LOG.error (e.toString());
+		}
+	}
+
+/* Datagrams dropped by the kernel on the bound port since bind.
+ */
+	public long getKernelDropCount() {
+		return this.kernelDropCount;
+	}
+
+/* Sequences found missing attributed to kernel receive buffer overruns.
+ */
+	public long getOverrunLossCount() {
+		return this.overrunLossCount;
+	}
+
+/* Sequences found missing attributed to the network.  Without kernel drop counters all
+ * loss is network loss and neither counter is maintained.
+ */
+	public long getNetworkLossCount() {
+		return this.networkLossCount;
+	}
+
+/* Current kernel receive buffer size requested, zero for the system default.
+ */
+	public int getReceiveBufferSize() {
+		return this.rcvbuf;
+	}
+
 /* Check this peer for NAK state timers, uses the tail of each queue for the nearest
  * timer execution.
  *
@@ -1639,6 +3279,15 @@ LOG.debug ("nextExpiration:{} this.nextPoll:{}", nextExpiration, this.nextPoll);
 				peer.clearSpmrExpiration();
 			}
 
+/* Deadline delivery, abandon recovery blocking the commit lead */
+			final long deliveryDeadline = peer.firstDeliveryDeadline();
+			if (deliveryDeadline > 0 &&
+			    now >= deliveryDeadline)
+			{
+				if (peer.skipExpired (now) > 0)
+					setPendingPeer (peer);
+			}
+
 			if (!peer.getNakBackoffQueue().isEmpty() &&
 			    now >= peer.firstNakBackoffExpiration())
 			{
@@ -1658,6 +3307,13 @@ LOG.debug ("nextExpiration:{} this.nextPoll:{}", nextExpiration, this.nextPoll);
 				nakRepairDataState (peer, now);
 			}
 
+/* session ended and fully delivered */
+			if (peer.isFinished())
+			{
+				removeFinishedPeer (peer);
+				continue;
+			}
+
 /* expired, remove from hash table and linked list */
 			if (now >= peer.getExpiration())
 			{
@@ -1674,7 +3330,7 @@ LOG.debug ("nextExpiration:{} this.nextPoll:{}", nextExpiration, this.nextPoll);
 				else
 				{
 					LOG.trace (SESSION_MARKER, "Peer expired, tsi {}", peer.getTransportSessionId());
-					this.peers_hashtable.remove (peer.getTransportSessionId());
+					removePeer (peer);
 					peer = null;
 				}
 			}
@@ -1732,6 +3388,14 @@ LOG.debug ("Next expiration: NAK repeat");
 LOG.debug ("Next expiration: RDATA");
 				expiration = peer.firstRepairDataExpiration();
 			}
+
+			final long deliveryDeadline = peer.firstDeliveryDeadline();
+			if (deliveryDeadline > 0 &&
+			    expiration >= deliveryDeadline)
+			{
+LOG.debug ("Next expiration: delivery deadline");
+				expiration = deliveryDeadline;
+			}
 		}
 
 		return expiration;
@@ -1747,6 +3411,8 @@ LOG.debug ("Next expiration: RDATA");
 	private boolean nakBackoffState (Peer peer, long now)
 	{
 		int droppedInvalid = 0;
+		int droppedLate = 0;
+		int droppedUnrepairable = 0;
 
 		LOG.debug ("nakBackoffState");
 
@@ -1757,9 +3423,14 @@ LOG.debug ("Next expiration: RDATA");
 		}
 
 		final boolean isValidNla = peer.hasValidNla();
+		long nla_wait_expiry = 0;
+
+/* Expected time for a repair requested now, as for the delivery deadline */
+		final long repair_ivl = calculateExpectedRepairInterval (peer);
+		final RateControl nak_rate_control = getNakRateControl (peer);
 
 		{
-			ArrayList<SequenceNumber> nakList = new ArrayList<>();
+			ArrayList<SocketBuffer> expired = new ArrayList<>();
 
 /* select NAK generation */
 
@@ -1770,6 +3441,19 @@ LOG.debug ("nakBackoffQueue contains {} SKBs.", nakBackoffQueue.size());
 
 				if (now >= ReceiveWindow.getNakBackoffExpiration (skb))
 				{
+/* Source NLA unknown whilst an SPM-Request is answered, e.g. on a late join, wait up to
+ * NAK_RPT_IVL from loss detection before abandoning.
+ */
+					if (!isValidNla &&
+					    now < skb.getTimestamp() + this.nak_rpt_ivl)
+					{
+						if (0 == nla_wait_expiry)
+							nla_wait_expiry = now + calculateNakRandomBackoffInterval (peer);
+						ReceiveWindow.setNakBackoffExpiration (skb, nla_wait_expiry);
+						if (this.nextPoll > nla_wait_expiry)
+							this.nextPoll = nla_wait_expiry;
+						continue;
+					}
 					if (!isValidNla) {
 						droppedInvalid++;
 						peer.markLost (skb.getSequenceNumber());
@@ -1777,20 +3461,23 @@ LOG.debug ("nakBackoffQueue contains {} SKBs.", nakBackoffQueue.size());
 						continue;
 					}
 
-					peer.setWaitNakConfirmState (skb);
-					nakList.add (skb.getSequenceNumber());
-					ReceiveWindow.incrementNakTransmitCount (skb);
-
-					ReceiveWindow.setNakRepeatExpiration (skb, now + this.nak_rpt_ivl);
-					LOG.trace (NETWORK_MARKER, "nak_rpt_expiry in {} seconds.", ((ReceiveWindow.getNakRepeatExpiration (skb) - now) / 1000));
-					if (this.nextPoll > ReceiveWindow.getNakRepeatExpiration (skb))
-						this.nextPoll = ReceiveWindow.getNakRepeatExpiration (skb);
+/* Repair cannot arrive before the delivery deadline */
+					if (!isRepairInTime (peer, skb, now)) {
+						droppedLate++;
+						peer.markSkipped (skb.getSequenceNumber());
+						setPendingPeer (peer);
+						continue;
+					}
 
-					if (nakList.size() == 63) {
-						if (!sendNakList (peer, nakList))
-							return false;
-						nakList.clear();
+/* Source will have purged the sequence before a repair could be sent */
+					if (!peer.isRepairable (skb.getSequenceNumber(), repair_ivl)) {
+						droppedUnrepairable++;
+						peer.markLost (skb.getSequenceNumber());
+						setPendingPeer (peer);
+						continue;
 					}
+
+					expired.add (skb);
 				}
 				else
 				{	/* packet expires some time later */
@@ -1799,18 +3486,73 @@ LOG.debug ("SKB expiration now + {}", (ReceiveWindow.getNakBackoffExpiration (sk
 				}
 			}
 
-			if (!nakList.isEmpty()) {
-				if (nakList.size() > 1 && !sendNakList (peer, nakList))
-					return false;
-				else if (!sendNak (peer, nakList.get (0)))
+/* Sequences nearest the commit lead block delivery and are requested first, retries
+ * re-enter back-off at the tail of the queue.
+ */
+			Collections.sort (expired, new Comparator<SocketBuffer>() {
+				@Override
+				public int compare (SocketBuffer lhs, SocketBuffer rhs) {
+					if (lhs.getSequenceNumber().equals (rhs.getSequenceNumber()))
+						return 0;
+					return lhs.getSequenceNumber().lt (rhs.getSequenceNumber()) ? -1 : 1;
+				}
+			});
+
+			ArrayList<SequenceNumber> nakList = new ArrayList<>();
+			int index = 0;
+			while (index < expired.size())
+			{
+				final int count = Math.min (63, expired.size() - index);
+				final int tpdu_length = Nak.getTpduLength (peer.getNetworkLayerAddress(), count);
+
+/* Paced NAK output, remaining sequences stay in back-off until the bucket refills */
+				if (null != nak_rate_control &&
+				    !RateControl.check (nak_rate_control, tpdu_length, true /* non-blocking */))
+				{
+					final long nakBackoffExpiration = now + Math.max (1, RateControl.remaining (nak_rate_control, this.iphdr_len + tpdu_length));
+					for (SocketBuffer skb : expired.subList (index, expired.size()))
+						ReceiveWindow.setNakBackoffExpiration (skb, nakBackoffExpiration);
+					if (this.nextPoll > nakBackoffExpiration)
+						this.nextPoll = nakBackoffExpiration;
+					LOG.trace (RATE_CONTROL_MARKER, "NAK rate limited, {} sequences deferred.", expired.size() - index);
+					break;
+				}
+
+				nakList.clear();
+				for (SocketBuffer skb : expired.subList (index, index + count))
+				{
+					peer.setWaitNakConfirmState (skb);
+					nakList.add (skb.getSequenceNumber());
+					ReceiveWindow.incrementNakTransmitCount (skb);
+					ReceiveWindow.setNakTransmitTime (skb, now);
+
+					ReceiveWindow.setNakRepeatExpiration (skb, now + calculateNakRepeatInterval (peer));
+					LOG.trace (NETWORK_MARKER, "nak_rpt_expiry in {} seconds.", ((ReceiveWindow.getNakRepeatExpiration (skb) - now) / 1000));
+					if (this.nextPoll > ReceiveWindow.getNakRepeatExpiration (skb))
+						this.nextPoll = ReceiveWindow.getNakRepeatExpiration (skb);
+				}
+				index += count;
+
+				if (nakList.size() > 1) {
+					if (!sendNakList (peer, nakList))
+						return false;
+				} else if (!sendNak (peer, nakList.get (0))) {
 					return false;
+				}
 			}
 		}
 
+		if (droppedUnrepairable > 0)
+			LOG.trace (RX_WINDOW_MARKER, "Lost {} messages purged from the source transmit window.", droppedUnrepairable);
+
+		if (droppedLate > 0)
+			LOG.trace (RX_WINDOW_MARKER, "Skipped {} messages due to delivery deadline.", droppedLate);
+
 		if (droppedInvalid > 0)
-		{
 			LOG.trace (RX_WINDOW_MARKER, "Dropped {} messages due to invalid NLA.", droppedInvalid);
 
+		if (droppedInvalid > 0 || droppedUnrepairable > 0)
+		{
 			if (peer.hasDataLoss() &&
 			    !peer.hasPendingLinkData())
 			{
@@ -1868,7 +3610,13 @@ LOG.debug ("waitNcfQueue contains {} SKBs.", waitNakConfirmQueue.size());
 				else
 				{
 /* retry */
-					ReceiveWindow.setNakBackoffExpiration (skb, now + calculateNakRandomBackoffInterval());
+					final long nakBackoffExpiration = now + calculateNakRandomBackoffInterval (peer);
+					if (!isRepairInTime (peer, skb, nakBackoffExpiration)) {
+						dropped++;
+						skip (peer, skb);
+						continue;
+					}
+					ReceiveWindow.setNakBackoffExpiration (skb, nakBackoffExpiration);
 					peer.setBackoffState (skb);
 					LOG.trace (RX_WINDOW_MARKER, "NCF retry #{} attempt {}/{}.",
                                                    skb.getSequenceNumber(),
@@ -1955,7 +3703,13 @@ LOG.debug ("waitDataQueue contains {} SKBs.", waitDataQueue.size());
 				else
 				{
 /* Retry back to backoff state */
-					ReceiveWindow.setNakBackoffExpiration (skb, now + calculateNakRandomBackoffInterval());
+					final long nakBackoffExpiration = now + calculateNakRandomBackoffInterval (peer);
+					if (!isRepairInTime (peer, skb, nakBackoffExpiration)) {
+						dropped++;
+						skip (peer, skb);
+						continue;
+					}
+					ReceiveWindow.setNakBackoffExpiration (skb, nakBackoffExpiration);
 					peer.setBackoffState (skb);
 					LOG.trace (RX_WINDOW_MARKER, "Data retry #{} attempt {}/{}.",
                                                    skb.getSequenceNumber(),
@@ -2000,10 +3754,37 @@ LOG.debug ("waitDataQueue contains {} SKBs.", waitDataQueue.size());
                 assert (null != peer);
                 
 		if (peer.hasPendingLinkData()) return;
-		this.peers_pending.addFirst (peer);
+		this.peers_pending.addLast (peer);
 		peer.setPendingLinkData();
 	}
 
+/* Release all state of a peer, from the hash table and the pending list.
+ */
+	private void removePeer (Peer peer)
+	{
+/* Pre-conditions */
+                assert (null != peer);
+
+		this.peers_hashtable.remove (peer.getTransportSessionId());
+		if (peer.hasPendingLinkData()) {
+			this.peers_pending.remove (peer);
+			peer.clearPendingLinkData();
+		}
+		for (ReceiveLine line : this.recv_lines)
+			line.removeSource (peer.getTransportSessionId());
+		if (null != this.checkpoint)
+			this.checkpoint.detach (peer);
+	}
+
+/* Release a peer whose session ended with OPT_FIN, reported once by recv().
+ */
+	private void removeFinishedPeer (Peer peer)
+	{
+		LOG.trace (SESSION_MARKER, "Session end delivered, releasing tsi {}", peer.getTransportSessionId());
+		removePeer (peer);
+		this.isFin = true;
+	}
+
 /* Send SPM-request to a new peer, this packet type has no contents
  *
  * On success, TRUE is returned, if operation would block FALSE is
@@ -2017,28 +3798,36 @@ LOG.debug ("waitDataQueue contains {} SKBs.", waitDataQueue.size());
 		Header header = skb.getHeader();
 		header.setGlobalSourceId (peer.getTransportSessionId().getGlobalSourceId());
 /* dport & sport reversed communicating upstream */
-		header.setSourcePort (this.dataDestinationPort);
+		header.setSourcePort (peer.getDataDestinationPort());
 		header.setDestinationPort (peer.getSourcePort());
 		header.setChecksum (Packet.doChecksum (skb.getRawBytes()));
 
 /* Send multicast SPMR TTL 1 to our peers listening on the same groups */
 		DatagramPacket pkt = new DatagramPacket (skb.getRawBytes(),
-							 skb.getDataOffset(),
-							 skb.getLength(),
+							 0,
+							 skb.getRawBytes().length,
 							 null,
 							 this.udpEncapsulationMulticastPort);
+                int ttl = 0;
                 try {
+                        ttl = this.send_sock.getTimeToLive();
                         this.send_sock.setTimeToLive (1);
-                        for (GroupSourceRequest gsr : this.recv_gsr.keySet()) {
+                        for (hk.miru.javapgm.GroupSourceRequest gsr : this.recv_gsr.keySet()) {
                                 pkt.setAddress (gsr.getMulticastAddress());
 /* Ignore errors on peer multicast */
                                 this.send_sock.send (pkt);
                         }
                 } catch (java.io.IOException e) {}
+                finally {
+                        try {
+                                if (ttl > 0) this.send_sock.setTimeToLive (ttl);
+                        } catch (java.io.IOException e) {}
+                }
 
-/* Send unicast SPMR with regular TTL */
+/* Send unicast SPMR with regular TTL, the source NLA is unknown until the first SPM */
                 try {
-                        pkt.setAddress (peer.getNetworkLayerAddress());
+                        pkt.setAddress (peer.getLocalNetworkLayerAddress());
+                        pkt.setPort (this.udpEncapsulationUnicastPort);
 			this.send_sock.send (pkt);
 		} catch (java.io.IOException e) {
 			LOG.error (e.toString());
@@ -2058,7 +3847,7 @@ LOG.debug ("waitDataQueue contains {} SKBs.", waitDataQueue.size());
         {
                 LOG.debug ("sendSpm");
 
-                SocketBuffer skb = SourcePathMessage.create (this.family, flags);
+                SocketBuffer skb = SourcePathMessage.create (this.family, flags, this.txw_join_sqns > 0);
                 Header header = skb.getHeader();
                 SourcePathMessage spm = new SourcePathMessage (skb, skb.getDataOffset());
 		header.setGlobalSourceId (this.tsi.getGlobalSourceId());
@@ -2071,6 +3860,9 @@ LOG.debug ("waitDataQueue contains {} SKBs.", waitDataQueue.size());
                 spm.setSpmLead (this.window.getLead());
 /* Our NLA */
                 spm.setSpmNla (this.send_addr);
+/* OPT_JOIN */
+                if (skb.hasJoinOption())
+                        skb.getJoinOption().setJoinMinimum (getJoinMinimum());
 
 /* Checksum optional for SPMs */
 		header.setChecksum (Packet.doChecksum (skb.getRawBytes()));
@@ -2105,7 +3897,7 @@ LOG.debug ("waitDataQueue contains {} SKBs.", waitDataQueue.size());
 		header.setGlobalSourceId (peer.getTransportSessionId().getGlobalSourceId());
 
 /* dport & sport swap over for a nak */
-		header.setSourcePort (this.dataDestinationPort);
+		header.setSourcePort (peer.getDataDestinationPort());
 		header.setDestinationPort (peer.getSourcePort());
 
 /* NAK */
@@ -2152,7 +3944,7 @@ LOG.debug ("waitDataQueue contains {} SKBs.", waitDataQueue.size());
 		header.setGlobalSourceId (peer.getTransportSessionId().getGlobalSourceId());
 
 /* dport & sport swap over for a nak */
-		header.setSourcePort (this.dataDestinationPort);
+		header.setSourcePort (peer.getDataDestinationPort());
 		header.setDestinationPort (peer.getSourcePort());
 		header.setOptions (Packet.PGM_OPT_PRESENT | Packet.PGM_OPT_NETWORK);
 
@@ -2302,14 +4094,22 @@ LOG.debug ("waitDataQueue contains {} SKBs.", waitDataQueue.size());
  * returns PGM_IO_STATUS_WOULD_BLOCK, returns PGM_IO_STATUS_RATE_LIMITED if
  * packet size exceeds the current rate limit.
  */        
-        private IoStatus sendOriginalData (byte[] tsdu, int offset, int tsdu_length)
+        private IoStatus sendOriginalData (byte[] tsdu, int offset, int tsdu_length, boolean isFin)
         {
 /* Pre-conditions */
                 assert (tsdu_length <= this.max_tsdu);
 
                 LOG.debug ("sendOriginalData");
 
-		SocketBuffer skb = OriginalData.create (this.family, tsdu_length);
+/* Rate check, nothing is sent or added to the transmit window unless admitted */
+                final long tpdu_length = this.max_tpdu - this.iphdr_len - this.max_tsdu + tsdu_length +
+                                         (isFin ? OriginalData.SIZEOF_FIN_OPTION + (this.txw_join_sqns > 0 ? 0 : Packet.SIZEOF_PGM_OPT_LENGTH) : 0);
+                if (!checkOriginalData (tpdu_length, true /* non-blocking */)) {
+                        LOG.trace (RATE_CONTROL_MARKER, "ODATA rate limited.");
+                        return IoStatus.IO_STATUS_RATE_LIMITED;
+                }
+
+		SocketBuffer skb = OriginalData.create (this.family, tsdu_length, this.txw_join_sqns > 0, isFin);
                 skb.setSocket (this);
                 skb.setTimestamp (Socket.microTime());
 		Header header = skb.getHeader();
@@ -2323,6 +4123,10 @@ LOG.debug ("waitDataQueue contains {} SKBs.", waitDataQueue.size());
                 odata.setDataTrail (this.window.getTrail());
                 odata.setData (tsdu, offset, tsdu_length);
 
+/* OPT_JOIN */
+                if (skb.hasJoinOption())
+                        skb.getJoinOption().setJoinMinimum (getJoinMinimum());
+
 		header.setChecksum (Packet.doChecksum (skb.getRawBytes()));
 
 /* Add to transmit window, skb::data set to payload */
@@ -2349,6 +4153,17 @@ LOG.debug ("waitDataQueue contains {} SKBs.", waitDataQueue.size());
                 return IoStatus.IO_STATUS_NORMAL;
         }
 
+/* Earliest sequence offered to late joining receivers, txw_join_sqns behind the next
+ * lead bounded by the transmit window trail.
+ */
+        private SequenceNumber getJoinMinimum()
+        {
+                final SequenceNumber join_min = this.window.getNextLead().minus (this.txw_join_sqns);
+                if (join_min.lt (this.window.getTrail()))
+                        return this.window.getTrail();
+                return join_min;
+        }
+
         private int calculateMaximumTsdu (boolean canFragment) {
                 int max_tsdu = canFragment ? this.max_tsdu_fragment : this.max_tsdu;
                 return max_tsdu;
@@ -2361,15 +4176,36 @@ LOG.debug ("waitDataQueue contains {} SKBs.", waitDataQueue.size());
  * returns PGM_IO_STATUS_WOULD_BLOCK, returns PGM_IO_STATUS_RATE_LIMITED if
  * packet size exceeds the current rate limit.
  */        
-        private IoStatus send_apdu (byte[] apdu, int offset, int apdu_length)
+        private IoStatus send_apdu (byte[] apdu, int offset, int apdu_length, boolean isFin)
         {
                 SocketBuffer skb = null;
                 int data_bytes_offset = 0;
 
+                final SequenceNumber first_sqn = this.window.getNextLead();
+
                 do {
-                        int tsdu_length = Math.min (calculateMaximumTsdu (true), apdu_length - data_bytes_offset);
+                        final int max_tsdu = calculateMaximumTsdu (true);
+                        int tsdu_length = Math.min (max_tsdu, apdu_length - data_bytes_offset);
+/* OPT_FIN on the last fragment, leaving a short final fragment if it does not fit */
+                        if (isFin &&
+                            data_bytes_offset + tsdu_length == apdu_length &&
+                            tsdu_length > max_tsdu - OriginalData.SIZEOF_FIN_OPTION)
+                        {
+                                tsdu_length = max_tsdu - OriginalData.SIZEOF_FIN_OPTION;
+                        }
+                        final boolean isLast = data_bytes_offset + tsdu_length == apdu_length;
+
+/* Rate check, the first TPDU is refused whilst rate limited, once started the APDU is
+ * completed waiting on the buckets such that receivers are not left a partial APDU.
+ */
+                        final long tpdu_length = this.max_tpdu - this.iphdr_len - max_tsdu + tsdu_length +
+                                                 (isFin && isLast ? OriginalData.SIZEOF_FIN_OPTION : 0);
+                        if (!checkOriginalData (tpdu_length, 0 == data_bytes_offset)) {
+                                LOG.trace (RATE_CONTROL_MARKER, "ODATA rate limited.");
+                                return IoStatus.IO_STATUS_RATE_LIMITED;
+                        }
 
-                        skb = OriginalData.create (this.family, tsdu_length);
+                        skb = OriginalData.createFragment (this.family, tsdu_length, this.txw_join_sqns > 0, isFin && isLast);
                         skb.setSocket (this);
                         skb.setTimestamp (Socket.microTime());
                         Header header = skb.getHeader();
@@ -2383,6 +4219,16 @@ LOG.debug ("waitDataQueue contains {} SKBs.", waitDataQueue.size());
                         odata.setDataTrail (this.window.getTrail());
                         odata.setData (apdu, offset + data_bytes_offset, tsdu_length);
 
+/* OPT_FRAGMENT */
+                        OptionFragment optFragment = skb.getFragmentOption();
+                        optFragment.setFirstSequenceNumber (first_sqn);
+                        optFragment.setFragmentOffset (data_bytes_offset);
+                        optFragment.setApduLength (apdu_length);
+
+/* OPT_JOIN */
+                        if (skb.hasJoinOption())
+                                skb.getJoinOption().setJoinMinimum (getJoinMinimum());
+
                         header.setChecksum (Packet.doChecksum (skb.getRawBytes()));
 
 /* Add to transmit window, skb::data set to payload */
@@ -2465,20 +4311,98 @@ LOG.debug ("waitDataQueue contains {} SKBs.", waitDataQueue.size());
 		setPendingPeer (peer);
 	}
 
-/* The java Math library function Math.random() generates a double value in the
- * range [0,1]. Notice this range does not include the 1.
- * Reference: http://stackoverflow.com/a/363732/175849
+/* Mark sequence as abandoned on the delivery deadline.
+ */
+	private void skip (Peer peer, SocketBuffer skb)
+	{
+		LOG.trace (RX_WINDOW_MARKER, "Skipped data #{} due to delivery deadline.", skb.getSequenceNumber());
+
+		peer.markSkipped (skb.getSequenceNumber());
+
+/* mark receiver window for flushing on next recv() */
+		setPendingPeer (peer);
+	}
+
+/* Returns TRUE if a NAK sent at the given time can still be answered before the delivery
+ * deadline of the missing sequence, allowing the expected repair time of the peer.
+ */
+	private boolean isRepairInTime (Peer peer, SocketBuffer skb, long nakTime)
+	{
+		if (0 == this.max_delivery_delay)
+			return true;
+/* Placeholder timestamp is the time of loss detection */
+		return nakTime + calculateExpectedRepairInterval (peer) < skb.getTimestamp() + this.max_delivery_delay;
+	}
+
+/* Expected time from a NAK sent now to the arrival of its repair.  The NAK to RDATA round
+ * trip is only sampled from repairs of our own NAKs, so without one the NAK to NCF round
+ * trip is the optimistic bound, and zero before either is measured: a pessimistic default
+ * would suppress the first NAK and no estimate would ever form.
+ */
+	private long calculateExpectedRepairInterval (Peer peer)
+	{
+		if (peer.getRepairDataRoundTrip().hasEstimate())
+			return peer.getRepairDataRoundTrip().getSmoothedRoundTripTime();
+		if (peer.getNakConfirmRoundTrip().hasEstimate())
+			return peer.getNakConfirmRoundTrip().getSmoothedRoundTripTime();
+		return 0;
+	}
+
+/* NAK rate bucket of the peer, created on first use, null without PGM_NAK_MAX_RTE.
+ */
+	private RateControl getNakRateControl (Peer peer)
+	{
+		if (0 == this.nak_max_rte)
+			return null;
+		if (null == peer.getNakRateControl())
+			peer.setNakRateControl (new RateControl (this.nak_max_rte, this.iphdr_len, this.max_tpdu));
+		return peer.getNakRateControl();
+	}
+
+/* Uniform random value in the range [begin, end] from the per-thread generator, avoiding
+ * contention on the shared generator behind Math.random().
  */
 	private long randomIntRange (long begin, long end)
 	{
-		return begin + (long)(Math.random() * ((end - begin) + 1));
+		return ThreadLocalRandom.current().nextLong (begin, end + 1);
+	}
+
+/* Constrain an adaptive interval to the configured bounds.
+ */
+	private long boundNakInterval (long interval)
+	{
+		return Math.min (Math.max (interval, this.nak_min_ivl), this.nak_max_ivl);
 	}
 
 /* calculate NAK_RB_IVL as random time interval 1 - NAK_BO_IVL.
+ *
+ * Adaptive back-off spans one NAK to NCF round trip so that the first NAK of a
+ * correlated loss is confirmed before most other receivers expire.
+ */
+	private long calculateNakRandomBackoffInterval (Peer peer)
+	{
+		long nak_bo_ivl = this.nak_bo_ivl;
+		if (this.isNakAdaptive && peer.getNakConfirmRoundTrip().hasEstimate())
+			nak_bo_ivl = boundNakInterval (peer.getNakConfirmRoundTrip().getSmoothedRoundTripTime());
+		return this.nak_arb_ivl + randomIntRange (1 /* us */, nak_bo_ivl);
+	}
+
+/* NAK_RPT_IVL, time waiting for an NCF before returning to back-off.
+ */
+	private long calculateNakRepeatInterval (Peer peer)
+	{
+		if (this.isNakAdaptive && peer.getNakConfirmRoundTrip().hasEstimate())
+			return boundNakInterval (peer.getNakConfirmRoundTrip().getTimeout());
+		return this.nak_rpt_ivl;
+	}
+
+/* NAK_RDATA_IVL, time waiting for repair data after an NCF.
  */
-	private long calculateNakRandomBackoffInterval()
+	private long calculateNakRepairDataInterval (Peer peer)
 	{
-		return randomIntRange (1 /* us */, this.nak_bo_ivl);
+		if (this.isNakAdaptive && peer.getRepairDataRoundTrip().hasEstimate())
+			return boundNakInterval (peer.getRepairDataRoundTrip().getTimeout());
+		return this.nak_rdata_ivl;
 	}
 }
 
@@ -5,6 +5,7 @@ package hk.miru.javapgm;
 import static hk.miru.javapgm.Preconditions.checkArgument;
 import static hk.miru.javapgm.Preconditions.checkNotNull;
 
+import java.net.InetAddress;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
@@ -14,18 +15,27 @@ import org.apache.logging.log4j.LogManager;
 public class SocketBuffer {
 
 	private hk.miru.javapgm.Socket	_socket = null;
+	private SocketBufferPool	_pool = null;
 	private long			_timestamp = 0;
 	private TransportSessionId	_tsi = null;
+	private InetAddress		_src_addr = null;
+	private InetAddress		_dst_addr = null;
 
 	private SequenceNumber		_sequence = null;
 
 	private ControlBuffer		_cb = null;
 
 	private int			_len = 0;	/* actual data */
+/* MessageHandler.MSG_* of data replayed as a whole APDU */
+	private int			_msg_flags = 0;
 
 	private Header			_header = null;
 	private OriginalData		_odata = null;
 	private OptionFragment		_opt_fragment = null;
+	private OptionJoin		_opt_join = null;
+	private boolean			_opt_syn = false;
+	private boolean			_opt_fin = false;
+	private boolean			_opt_rst = false;
 
 	private byte[]			_buf = null;
 
@@ -47,6 +57,35 @@ public class SocketBuffer {
                 this._socket = socket;
         }
 
+/* Pool receiving this buffer when the last reference is released.
+ */
+        void setPool (@Nullable SocketBufferPool pool) {
+                this._pool = pool;
+        }
+
+/* Return a recycled buffer to the freshly allocated state with one user.
+ */
+        void reset() {
+                this._socket = null;
+                this._timestamp = 0;
+                this._tsi = null;
+                this._src_addr = null;
+                this._dst_addr = null;
+                this._sequence = null;
+                this._cb = null;
+                this._len = 0;
+                this._msg_flags = 0;
+                this._header = null;
+                this._odata = null;
+                this._opt_fragment = null;
+                this._opt_join = null;
+                this._opt_syn = false;
+                this._opt_fin = false;
+                this._opt_rst = false;
+                this._data = this._tail = this._head;
+                this._users.set (1);
+        }
+
 	public long getTimestamp() {
 		return this._timestamp;
 	}
@@ -55,6 +94,24 @@ public class SocketBuffer {
 		this._timestamp = timestamp;
 	}
 
+/* Datagram addressing, retained when a packet is handed between threads before parsing.
+ */
+	public InetAddress getSourceAddress() {
+		return this._src_addr;
+	}
+
+	public void setSourceAddress (InetAddress src_addr) {
+		this._src_addr = src_addr;
+	}
+
+	public InetAddress getDestinationAddress() {
+		return this._dst_addr;
+	}
+
+	public void setDestinationAddress (InetAddress dst_addr) {
+		this._dst_addr = dst_addr;
+	}
+
 	public void setTransportSessionId (TransportSessionId tsi) {
                 checkNotNull (tsi);
 		this._tsi = tsi;
@@ -64,6 +121,14 @@ public class SocketBuffer {
 		return this._tsi;
 	}
 
+	int getMessageFlags() {
+		return this._msg_flags;
+	}
+
+	void setMessageFlags (int flags) {
+		this._msg_flags = flags;
+	}
+
 	public SequenceNumber getSequenceNumber() {
 		return this._sequence;
 	}
@@ -101,14 +166,26 @@ public class SocketBuffer {
 		return this._len;
 	}
 
-/* Increase reference count */        
+/* Increase reference count.
+ *
+ * Buffers returned by Socket.receive() are only guaranteed until the next receive()
+ * call.  Taking a reference retains the buffer, contents and parsed headers, beyond
+ * that point, for example to hand off to another thread without copying.  Each get()
+ * must be matched by a free().
+ */        
         public SocketBuffer get() {
                 this._users.incrementAndGet();
                 return this;
         }
-        
+
+/* Release a reference, from any thread.  Pooled buffers are recycled when the last
+ * reference is released and must not be accessed afterwards.
+ */
         public void free() {
-                this._users.decrementAndGet();
+                final int users = this._users.decrementAndGet();
+                assert (users >= 0);
+                if (0 == users && null != this._pool)
+                        this._pool.release (this);
         }
         
 /* Add data */        
@@ -163,6 +240,44 @@ public class SocketBuffer {
 		return this._opt_fragment;
 	}
 
+	public void setJoinOptionOffset (int offset) {
+		this._opt_join = new OptionJoin (this, offset);
+	}
+
+	public final boolean hasJoinOption() {
+		return (null != this._opt_join);
+	}
+
+	public final OptionJoin getJoinOption() {
+		return this._opt_join;
+	}
+
+/* Session lifecycle options carry no data beyond their presence.
+ */
+	public void setSynOption() {
+		this._opt_syn = true;
+	}
+
+	public final boolean hasSynOption() {
+		return this._opt_syn;
+	}
+
+	public void setFinOption() {
+		this._opt_fin = true;
+	}
+
+	public final boolean hasFinOption() {
+		return this._opt_fin;
+	}
+
+	public void setRstOption() {
+		this._opt_rst = true;
+	}
+
+	public final boolean hasRstOption() {
+		return this._opt_rst;
+	}
+
 	public ControlBuffer getControlBuffer() {
 		return this._cb;
 	}
@@ -294,6 +409,10 @@ public class SocketBuffer {
                                 LogManager.getLogger (SocketBuffer.class.getName()).error ("SKB option fragment defined without header.");
                                 return false;
                         }
+                        if (null != skb._opt_join) {
+                                LogManager.getLogger (SocketBuffer.class.getName()).error ("SKB option join defined without header.");
+                                return false;
+                        }
                 }
                 return true;
         }
@@ -308,6 +427,10 @@ public class SocketBuffer {
 			", \"header\": " + this._header +
 			", \"odata\": " + this._odata +
 			", \"opt_fragment\": " + this._opt_fragment +
+			", \"opt_join\": " + this._opt_join +
+			", \"opt_syn\": " + this._opt_syn +
+			", \"opt_fin\": " + this._opt_fin +
+			", \"opt_rst\": " + this._opt_rst +
 			", \"buf\": { " +
 				  "\"head\": " + this._head +
 				", \"data\": " + this._data +
@@ -0,0 +1,70 @@
+/* Free list of fixed size socket buffers for the receive path.
+ *
+ * Buffers are returned by SocketBuffer.free() when the last reference is dropped, which
+ * may happen on any application thread.
+ */
+package hk.miru.javapgm;
+
+import static hk.miru.javapgm.Preconditions.checkArgument;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SocketBufferPool
+{
+        private final Queue<SocketBuffer> freeList = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger freeCount = new AtomicInteger (0);
+        private final int bufferSize;
+        private final int capacity;
+
+/* Create a pool of buffers of bufferSize bytes, retaining at most capacity free
+ * buffers.  Buffers released beyond capacity are left to the garbage collector.
+ */
+        public SocketBufferPool (int bufferSize, int capacity) {
+/* Pre-conditions */
+                checkArgument (bufferSize > 0);
+                checkArgument (capacity >= 0);
+
+                this.bufferSize = bufferSize;
+                this.capacity = capacity;
+        }
+
+/* Returns an empty buffer holding one reference for the caller.
+ */
+        public SocketBuffer allocate() {
+                SocketBuffer skb = this.freeList.poll();
+                if (null == skb) {
+                        skb = new SocketBuffer (this.bufferSize);
+                        skb.setPool (this);
+                        return skb;
+                }
+                this.freeCount.decrementAndGet();
+                skb.reset();
+                return skb;
+        }
+
+/* Return a buffer without remaining references to the free list.
+ */
+        void release (SocketBuffer skb) {
+/* Pre-conditions */
+                assert (null != skb);
+                assert (0 == skb.getUsers());
+
+                if (this.freeCount.incrementAndGet() > this.capacity) {
+                        this.freeCount.decrementAndGet();
+                        return;
+                }
+                this.freeList.offer (skb);
+        }
+
+        public int getBufferSize() {
+                return this.bufferSize;
+        }
+
+        public int getFreeCount() {
+                return this.freeCount.get();
+        }
+}
+
+/* eof */
@@ -58,6 +58,29 @@ public interface SocketOptions
         static final int PGM_UNCONTROLLED_RDATA     = 0x2033;
         static final int PGM_ODATA_MAX_RTE          = 0x2034;
         static final int PGM_RDATA_MAX_RTE          = 0x2035;
+        static final int PGM_RECV_MAX_MSGS          = 0x2036;
+        static final int PGM_RECV_MAX_BYTES         = 0x2037;
+        static final int PGM_RECV_PEER_QUANTUM      = 0x2038;
+        static final int PGM_UNORDERED              = 0x2039;
+        static final int PGM_MAX_DELIVERY_DELAY     = 0x203a;
+        static final int PGM_MAX_FRAGMENTS          = 0x203b;
+        static final int PGM_STREAMING              = 0x203c;
+        static final int PGM_NAK_ADAPTIVE           = 0x203d;
+        static final int PGM_NAK_MIN_IVL            = 0x203e;
+        static final int PGM_NAK_MAX_IVL            = 0x203f;
+        static final int PGM_NAK_MAX_RTE            = 0x2040;
+        static final int PGM_TXW_JOIN_SQNS          = 0x2041;
+        static final int PGM_LATE_JOIN_SQNS         = 0x2042;
+        static final int PGM_LATE_JOIN_SECS         = 0x2043;
+        static final int PGM_JOIN_LINE              = 0x2044;
+        static final int PGM_NAK_ARB_IVL            = 0x2045;
+        static final int PGM_JOURNAL                = 0x2046;
+        static final int PGM_CHECKPOINT             = 0x2047;
+        static final int PGM_RCVBUF                 = 0x2048;
+        static final int PGM_RCVBUF_MAX             = 0x2049;
+        static final int PGM_DROP_CHECK_IVL         = 0x204a;
+        static final int PGM_SPILL                  = 0x204b;
+        static final int PGM_FILTER                 = 0x204c;
 }
 
 /* eof */
\ No newline at end of file
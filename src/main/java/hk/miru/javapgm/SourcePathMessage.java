@@ -46,25 +46,87 @@ public class SourcePathMessage {
 	}
         
         public static SocketBuffer create (ProtocolFamily family, int flags) {
+                return create (family, flags, false);
+        }
+
+/* With canJoin the SPM carries OPT_LENGTH and OPT_JOIN, the join option is returned
+ * through the skb.  A flags value of PGM_OPT_SYN, PGM_OPT_FIN, or PGM_OPT_RST appends
+ * the matching session option, announcing the start, end, or abort of the session.
+ */
+        public static SocketBuffer create (ProtocolFamily family, int flags, boolean canJoin) {
                 int tpdu_length = Packet.SIZEOF_PGM_HEADER;
+                final int spm_length;
                 if (StandardProtocolFamily.INET6 == family)
-                        tpdu_length += SIZEOF_SPM6_HEADER;
+                        spm_length = SIZEOF_SPM6_HEADER;
                 else
-                        tpdu_length += SIZEOF_SPM_HEADER;
-                if (Packet.PGM_OPT_FIN == flags)
-                {
-                        tpdu_length += Packet.SIZEOF_PGM_OPT_LENGTH;
+                        spm_length = SIZEOF_SPM_HEADER;
+                tpdu_length += spm_length;
+                final int session_length;
+                switch (flags) {
+/* Start of session */
+                case Packet.PGM_OPT_SYN:
+                        session_length = Packet.SIZEOF_PGM_OPT_HEADER + Packet.SIZEOF_PGM_OPT_SYN;
+                        break;
 /* End of session */
-                        if (Packet.PGM_OPT_FIN == flags)
-                                tpdu_length += Packet.SIZEOF_PGM_OPT_HEADER + Packet.SIZEOF_PGM_OPT_FIN;
+                case Packet.PGM_OPT_FIN:
+                        session_length = Packet.SIZEOF_PGM_OPT_HEADER + Packet.SIZEOF_PGM_OPT_FIN;
+                        break;
+/* Session aborted */
+                case Packet.PGM_OPT_RST:
+                        session_length = Packet.SIZEOF_PGM_OPT_HEADER + Packet.SIZEOF_PGM_OPT_RST;
+                        break;
+                default:
+                        session_length = 0;
+                        break;
+                }
+                if (session_length > 0 || canJoin)
+                {
+                        tpdu_length += Packet.SIZEOF_PGM_OPT_LENGTH + session_length;
+/* Late join */
+                        if (canJoin)
+                                tpdu_length += Packet.SIZEOF_PGM_OPT_HEADER + Packet.SIZEOF_PGM_OPT_JOIN;
                 }
                 SocketBuffer skb = new SocketBuffer (tpdu_length);
 		skb.setHeaderOffset (0);
 		skb.getHeader().setType (Packet.PGM_SPM);
 		skb.reserve (Packet.SIZEOF_PGM_HEADER);
+                if (session_length > 0 || canJoin) {
+                        skb.getHeader().setOptions (Packet.PGM_OPT_PRESENT);
+                        final int opt_offset = skb.getDataOffset() + spm_length;
+                        OptionLength optLength = new OptionLength (skb, opt_offset);
+                        skb.setUnsignedByte (opt_offset, OptionHeader.OPT_LENGTH);
+                        skb.setUnsignedByte (opt_offset + 1, optLength.getLength());
+                        int total_length = optLength.getLength();
+                        int last_offset = opt_offset;
+                        if (canJoin) {
+                                OptionJoin optJoin = new OptionJoin (skb, opt_offset + total_length);
+                                skb.setUnsignedByte (optJoin.getOffset(), OptionHeader.OPT_JOIN);
+                                skb.setUnsignedByte (optJoin.getOffset() + 1, optJoin.getLength());
+                                total_length += optJoin.getLength();
+                                last_offset = optJoin.getOffset();
+                                skb.setJoinOptionOffset (optJoin.getOffset());
+                        }
+                        if (session_length > 0) {
+                                last_offset = opt_offset + total_length;
+                                skb.setUnsignedByte (last_offset, flags);
+                                skb.setUnsignedByte (last_offset + 1, session_length);
+                                total_length += session_length;
+                        }
+                        new OptionHeader (skb, last_offset).setLastOption();
+                        optLength.setTotalLength (total_length);
+                }
                 return skb;
         }
 
+/* Offset of the first option extension, if present.
+ */
+	public final int getOptionOffset() {
+		if (Packet.AFI_IP6 == getSpmNlaAfi())
+			return this._offset + SPM6_OPTIONS_OFFSET;
+		else
+			return this._offset + SPM_OPTIONS_OFFSET;
+	}
+
 	public final SequenceNumber getSpmSequenceNumber() {
 		return SequenceNumber.fromIntBits (this._skb.getSignedInt (this._offset + SPM_SQN_OFFSET));
 	}
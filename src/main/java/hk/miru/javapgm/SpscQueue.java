@@ -0,0 +1,78 @@
+/* Bounded single-producer single-consumer queue.
+ *
+ * Lock free hand over between exactly one producing thread and one consuming thread,
+ * each side only publishes its own index with an ordered store.  Capacity is rounded
+ * up to a power of two.
+ */
+package hk.miru.javapgm;
+
+import static hk.miru.javapgm.Preconditions.checkArgument;
+import static hk.miru.javapgm.Preconditions.checkNotNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class SpscQueue<E>
+{
+        private final AtomicReferenceArray<E> buffer;
+        private final int mask;
+/* Consumer index */
+        private final AtomicLong head = new AtomicLong (0);
+/* Producer index */
+        private final AtomicLong tail = new AtomicLong (0);
+/* Producer view of the consumer index, refreshed only when the queue appears full */
+        private long headCache = 0;
+
+        public SpscQueue (int capacity) {
+/* Pre-conditions */
+                checkArgument (capacity > 0 && capacity <= (1 << 30));
+
+                int size = 1;
+                while (size < capacity)
+                        size <<= 1;
+                this.buffer = new AtomicReferenceArray<> (size);
+                this.mask = size - 1;
+        }
+
+/* Producer thread only.  Returns FALSE if the queue is full.
+ */
+        public boolean offer (E e) {
+                checkNotNull (e);
+                final long t = this.tail.get();
+                if (t - this.headCache > this.mask) {
+                        this.headCache = this.head.get();
+                        if (t - this.headCache > this.mask)
+                                return false;
+                }
+                this.buffer.lazySet ((int)t & this.mask, e);
+                this.tail.lazySet (t + 1);
+                return true;
+        }
+
+/* Consumer thread only.  Returns null if the queue is empty.
+ */
+        public E poll() {
+                final long h = this.head.get();
+                if (h >= this.tail.get())
+                        return null;
+                final int index = (int)h & this.mask;
+                final E e = this.buffer.get (index);
+                this.buffer.lazySet (index, null);
+                this.head.lazySet (h + 1);
+                return e;
+        }
+
+        public boolean isEmpty() {
+                return this.head.get() >= this.tail.get();
+        }
+
+        public int size() {
+                return (int)(this.tail.get() - this.head.get());
+        }
+
+        public int capacity() {
+                return this.mask + 1;
+        }
+}
+
+/* eof */
@@ -0,0 +1,161 @@
+/* Simulation of receiver NAK suppression by peer NAK snooping.  A population of receive
+ * windows shares correlated loss, every receiver missing the same sequences, without any
+ * network or source.
+ *
+ * Each receiver schedules a NAK for each gap after a uniform random back-off.  A NAK sent
+ * is multicast to the segment and, with snooping, every other receiver still in back-off
+ * for the sequence moves to WAIT_NCF once the propagation delay has passed.  Confirmation
+ * by the source is not modelled, so without snooping every receiver NAKs every loss.
+ *
+ * Usage: naksim [receivers] [sequences] [losses] [nak_bo_ivl ms] [delay us] [seed]
+ */
+
+import hk.miru.javapgm.GlobalSourceId;
+import hk.miru.javapgm.OriginalData;
+import hk.miru.javapgm.ReceiveWindow;
+import hk.miru.javapgm.SequenceNumber;
+import hk.miru.javapgm.SocketBuffer;
+import hk.miru.javapgm.TransportSessionId;
+
+import java.net.StandardProtocolFamily;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.TreeSet;
+
+public class naksim {
+	int receivers = 500;
+	int sequences = 1000;
+	int losses = 99;
+	long nak_bo_ivl = 50 * 1000;
+	long delay = 100;
+	long seed = 1;
+/* Time between original data packets */
+	long odata_ivl = 100;
+	long nak_rpt_ivl = 2 * 1000 * 1000;
+	int max_tpdu = 1500;
+
+	final TransportSessionId tsi = new TransportSessionId (new GlobalSourceId (new byte[] { 1, 2, 3, 4, 5, 6 }), 7500);
+
+/* Events of the simulation, time ordered with NAK arrivals before back-off expiry */
+	static final int SNOOP = 0;
+	static final int EXPIRE = 1;
+
+	static class Event {
+		final long time;
+		final int type;
+		final int receiver;
+		final SequenceNumber sequence;
+
+		Event (long time, int type, int receiver, SequenceNumber sequence) {
+			this.time = time;
+			this.type = type;
+			this.receiver = receiver;
+			this.sequence = sequence;
+		}
+	}
+
+	public naksim (String[] args)
+	{
+		if (args.length > 0) this.receivers = Integer.parseInt (args[0]);
+		if (args.length > 1) this.sequences = Integer.parseInt (args[1]);
+		if (args.length > 2) this.losses = Integer.parseInt (args[2]);
+		if (args.length > 3) this.nak_bo_ivl = Long.parseLong (args[3]) * 1000;
+		if (args.length > 4) this.delay = Long.parseLong (args[4]);
+		if (args.length > 5) this.seed = Long.parseLong (args[5]);
+
+		final TreeSet<Integer> lost = new TreeSet<>();
+		final Random random = new Random (this.seed);
+/* First and last sequences are received such that every loss is detected */
+		while (lost.size() < Math.min (this.losses, this.sequences - 2))
+			lost.add (1 + random.nextInt (this.sequences - 2));
+
+		final long without = run (lost, false);
+		final long with = run (lost, true);
+		System.out.println ("receivers: " + this.receivers +
+				    " losses: " + lost.size() +
+				    " nak_bo_ivl: " + (this.nak_bo_ivl / 1000) + "ms" +
+				    " delay: " + this.delay + "us");
+		System.out.println ("NAKs without snooping: " + without);
+		System.out.println ("NAKs with snooping: " + with);
+	}
+
+/* Returns count of NAKs sent by the population.
+ */
+	long run (TreeSet<Integer> lost, boolean isSnooping)
+	{
+		final Random random = new Random (this.seed);
+		final ReceiveWindow[] windows = new ReceiveWindow[this.receivers];
+		final PriorityQueue<Event> events = new PriorityQueue<> (1024, new Comparator<Event>() {
+			@Override
+			public int compare (Event lhs, Event rhs) {
+				if (lhs.time != rhs.time)
+					return lhs.time < rhs.time ? -1 : 1;
+				return lhs.type - rhs.type;
+			}
+		});
+
+/* Deliver the original data, each gap placed in back-off with its own expiration */
+		for (int r = 0; r < this.receivers; r++) {
+			windows[r] = new ReceiveWindow (this.tsi, this.max_tpdu, this.sequences + 1, 0, 0);
+			for (int i = 0; i < this.sequences; i++) {
+				if (lost.contains (i))
+					continue;
+				final long now = 1 + i * this.odata_ivl;
+				final long nak_rb_expiry = now + 1 + (long)(random.nextDouble() * this.nak_bo_ivl);
+				windows[r].add (createData (i), now, nak_rb_expiry);
+			}
+			for (SocketBuffer skb : windows[r].getNakBackoffQueue())
+				events.add (new Event (ReceiveWindow.getNakBackoffExpiration (skb), EXPIRE, r, skb.getSequenceNumber()));
+		}
+
+		long naks = 0;
+		Event event;
+		while (null != (event = events.poll())) {
+			final ReceiveWindow window = windows[event.receiver];
+			if (SNOOP == event.type) {
+				window.suppress (event.sequence, event.time + this.nak_rpt_ivl);
+				continue;
+			}
+/* Back-off expired, the NAK is sent unless suppressed meanwhile */
+			SocketBuffer placeholder = null;
+			for (SocketBuffer skb : window.getNakBackoffQueue()) {
+				if (skb.getSequenceNumber().equals (event.sequence)) {
+					placeholder = skb;
+					break;
+				}
+			}
+			if (null == placeholder)
+				continue;
+			window.setWaitNakConfirmState (placeholder);
+			naks++;
+			if (!isSnooping)
+				continue;
+			for (int r = 0; r < this.receivers; r++) {
+				if (r != event.receiver)
+					events.add (new Event (event.time + this.delay, SNOOP, r, event.sequence));
+			}
+		}
+		return naks;
+	}
+
+/* Original data as parsed by the receive path, data pointer at the payload.
+ */
+	SocketBuffer createData (int sequence)
+	{
+		final SocketBuffer skb = OriginalData.create (StandardProtocolFamily.INET, 1);
+		skb.getHeader().setGlobalSourceId (this.tsi.getGlobalSourceId());
+		skb.getHeader().setSourcePort (this.tsi.getSourcePort());
+		skb.getAsOriginalData().setDataSequenceNumber (SequenceNumber.valueOf (sequence));
+		skb.getAsOriginalData().setDataTrail (SequenceNumber.ZERO);
+		skb.setTransportSessionId (this.tsi);
+		return skb;
+	}
+
+	public static void main (String[] args)
+	{
+		new naksim (args);
+	}
+}
+
+/* eof */
@@ -10,11 +10,10 @@ import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.ProtocolFamily;
 import java.net.StandardProtocolFamily;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class pgmrecv {   
 /* Windows does not have convenient adapter names. */
@@ -99,31 +98,14 @@ public class pgmrecv {
 			}
 		});
 
-		Selector selector = Selector.open();
-                SelectionKey sk = this.sock.register (selector, SelectionKey.OP_READ);
-                long timeout = 0;
 		while (true) {
                         final List<SocketBuffer> skbs = new ArrayList<>();
-			final hk.miru.javapgm.Socket.IoStatus status = this.sock.receive (skbs);
+/* Blocks on the socket, its timers and rate limits */
+			final hk.miru.javapgm.Socket.IoStatus status = this.sock.receive (skbs, -1, TimeUnit.MILLISECONDS);
 			switch (status) {
 			case IO_STATUS_NORMAL:
                                 on_data (skbs);
 				break;
-			case IO_STATUS_TIMER_PENDING:
-                                timeout = this.sock.getTimeRemain() / 1000L;
-/* Workaround lack of functional goto in Java */                                    
-			case IO_STATUS_RATE_LIMITED:
-                                if (hk.miru.javapgm.Socket.IoStatus.IO_STATUS_RATE_LIMITED == status) {
-                                        timeout = this.sock.getRateRemain() / 1000L;
-                                }
-			case IO_STATUS_WOULD_BLOCK:
-                                if (hk.miru.javapgm.Socket.IoStatus.IO_STATUS_WOULD_BLOCK == status) {
-                                        timeout = 0;
-                                }
-                                if (selector.select (timeout) > 0) {
-                                        selector.selectedKeys().clear();
-                                }
-                                break;
 			default:
 				System.err.format ("unhandled return state: %s%n", status);
 				break;